@@ -102,6 +102,7 @@ public class LogTag {
                 Conversation.dump();
                 Conversation.dumpSmsTable(context);
                 Contact.dump();
+                MmsApp.dumpCacheStats();
             }
         }).start();
     }
@@ -17,6 +17,8 @@
 
 package com.android.mms;
 
+import java.util.Map;
+
 import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
@@ -26,6 +28,7 @@ import android.location.Country;
 import android.location.CountryDetector;
 import android.location.CountryListener;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.SearchRecentSuggestions;
 import android.telephony.TelephonyManager;
@@ -38,10 +41,10 @@ import com.android.mms.transaction.MessagingNotification;
 import com.android.mms.transaction.MmsSystemEventReceiver;
 import com.android.mms.transaction.SmsReceiver;
 import com.android.mms.transaction.SmsReceiverService;
-import com.android.mms.util.DownloadManager;
+import com.android.mms.util.CacheStatsRecorder;
 import com.android.mms.util.DraftCache;
 import com.android.mms.util.PduLoaderManager;
-import com.android.mms.util.RateController;
+import com.android.mms.util.StartupGraph;
 import com.android.mms.util.ThumbnailManager;
 
 public class MmsApp extends Application {
@@ -56,6 +59,11 @@ public class MmsApp extends Application {
     private PduLoaderManager mPduLoaderManager;
     private ThumbnailManager mThumbnailManager;
     private DrmManagerClient mDrmManagerClient;
+    private StartupGraph mStartup;
+    private long mOnCreateTime;
+
+    // The initializers are mostly waiting on disk, more threads don't help much.
+    private static final int STARTUP_THREADS = 3;
 
     @Override
     public void onCreate() {
@@ -69,11 +77,9 @@ public class MmsApp extends Application {
                     new StrictMode.ThreadPolicy.Builder().detectAll().penaltyLog().build());
         }
 
+        long start = SystemClock.elapsedRealtime();
         sMmsApp = this;
 
-        // Load the default preference values
-        PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
-
         // Figure out the country *before* loading contacts and formatting numbers
         mCountryDetector = (CountryDetector) getSystemService(Context.COUNTRY_DETECTOR);
         mCountryListener = new CountryListener() {
@@ -88,16 +94,81 @@ public class MmsApp extends Application {
         mPduLoaderManager = new PduLoaderManager(context);
         mThumbnailManager = new ThumbnailManager(context);
 
-        MmsConfig.init(this);
-        Contact.init(this);
-        DraftCache.init(this);
-        Conversation.init(this);
-        DownloadManager.init(this);
-        RateController.init(this);
-        LayoutManager.init(this);
-        MessagingNotification.init(this);
+        // DownloadManager, RateController and LayoutManager are created on first use.
+        mStartup = new StartupGraph(STARTUP_THREADS);
+        StartupGraph.Task preferences = new StartupGraph.Task("preferences") {
+            @Override
+            protected void run() {
+                // Load the default preference values
+                PreferenceManager.setDefaultValues(MmsApp.this, R.xml.preferences, false);
+            }
+        };
+        StartupGraph.Task config = new StartupGraph.Task("config") {
+            @Override
+            protected void run() {
+                MmsConfig.init(MmsApp.this);
+            }
+        };
+        StartupGraph.Task contacts = new StartupGraph.Task("contacts") {
+            @Override
+            protected void run() {
+                Contact.init(MmsApp.this);
+            }
+        };
+        StartupGraph.Task drafts = new StartupGraph.Task("drafts") {
+            @Override
+            protected void run() {
+                DraftCache.init(MmsApp.this);
+            }
+        };
+        StartupGraph.Task notifications = new StartupGraph.Task("notifications") {
+            @Override
+            protected void run() {
+                MessagingNotification.init(MmsApp.this);
+            }
+        };
+        StartupGraph.Task conversations = new StartupGraph.Task("conversations",
+                contacts, drafts) {
+            @Override
+            protected void run() {
+                Conversation.init(MmsApp.this);
+            }
+        };
+        StartupGraph.Task pendingMessages = new StartupGraph.Task("pendingMessages",
+                preferences, config, contacts) {
+            @Override
+            protected void run() {
+                activePendingMessages();
+            }
+        };
+        mStartup.add(preferences);
+        mStartup.add(config);
+        mStartup.add(contacts);
+        mStartup.add(drafts);
+        mStartup.add(notifications);
+        mStartup.add(conversations);
+        mStartup.add(pendingMessages);
+        mStartup.start();
 
-        activePendingMessages();
+        // Activities and receivers use these as soon as we return. The others finish in
+        // the background.
+        config.await();
+        contacts.await();
+        drafts.await();
+        notifications.await();
+        mOnCreateTime = SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Waits until all the initializers started by onCreate are done, and returns the
+     * milliseconds each one took by name. "onCreate" is the time the main thread spent
+     * in onCreate.
+     */
+    public Map<String, Long> awaitStartupTimings() {
+        mStartup.await();
+        Map<String, Long> timings = mStartup.getTimings();
+        timings.put("onCreate", mOnCreateTime);
+        return timings;
     }
 
     /**
@@ -132,6 +203,25 @@ public class MmsApp extends Application {
         mThumbnailManager.onLowMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        mPduLoaderManager.onTrimMemory(level);
+        mThumbnailManager.onTrimMemory(level);
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            // Once per trip to the background, so the next start shows names at once.
+            Contact.saveSnapshot();
+        }
+    }
+
+    /**
+     * Logs the hit, miss, eviction and size statistics of all the caches.
+     */
+    public static void dumpCacheStats() {
+        CacheStatsRecorder.dumpAll();
+    }
+
     public PduLoaderManager getPduLoaderManager() {
         return mPduLoaderManager;
     }
@@ -16,7 +16,18 @@
 
 package com.android.mms;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -24,7 +35,11 @@ import org.xmlpull.v1.XmlPullParserException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.content.res.XmlResourceParser;
+import android.os.Build;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.text.TextUtils;
@@ -51,66 +66,228 @@ public class MmsConfig {
     private static final int MAX_TEXT_LENGTH = 2000;
 
     /**
-     * Whether to hide MMS functionality from the user (i.e. SMS only).
+     * The values of mms_config.xml, or their defaults. Filled in by
+     * {@link #loadMmsSettings} or read from the snapshot, and never modified once
+     * published in {@link #sConfig}, so it can be read from any thread.
      */
-    private static boolean mTransIdEnabled = false;
-    private static int mMmsEnabled = 1;                         // default to true
-    private static int mMaxMessageSize = 300 * 1024;            // default to 300k max size
-    private static String mUserAgent = DEFAULT_USER_AGENT;
-    private static String mUaProfTagName = DEFAULT_HTTP_KEY_X_WAP_PROFILE;
-    private static String mUaProfUrl = null;
-    private static String mHttpParams = null;
-    private static String mHttpParamsLine1Key = null;
-    private static String mEmailGateway = null;
-    private static int mMaxImageHeight = MAX_IMAGE_HEIGHT;      // default value
-    private static int mMaxImageWidth = MAX_IMAGE_WIDTH;        // default value
-    private static int mRecipientLimit = Integer.MAX_VALUE;     // default value
-    private static int mDefaultSMSMessagesPerThread = 10000;    // default value
-    private static int mDefaultMMSMessagesPerThread = 1000;     // default value
-    private static int mMinMessageCountPerThread = 2;           // default value
-    private static int mMaxMessageCountPerThread = 5000;        // default value
-    private static int mHttpSocketTimeout = 60*1000;            // default to 1 min
-    private static int mMinimumSlideElementDuration = 7;        // default to 7 sec
-    private static boolean mNotifyWapMMSC = false;
-    private static boolean mAllowAttachAudio = true;
-
-    // If mEnableMultipartSMS is true, long sms messages are always sent as multi-part sms
-    // messages, with no checked limit on the number of segments.
-    // If mEnableMultipartSMS is false, then as soon as the user types a message longer
-    // than a single segment (i.e. 140 chars), then the message will turn into and be sent
-    // as an mms message. This feature exists for carriers that don't support multi-part sms's.
-    private static boolean mEnableMultipartSMS = true;
-
-    // If mEnableMultipartSMS is true and mSmsToMmsTextThreshold > 1, then multi-part SMS messages
-    // will be converted into a single mms message. For example, if the mms_config.xml file
-    // specifies <int name="smsToMmsTextThreshold">4</int>, then on the 5th sms segment, the
-    // message will be converted to an mms.
-    private static int mSmsToMmsTextThreshold = -1;
-
-    private static boolean mEnableSlideDuration = true;
-    private static boolean mEnableMMSReadReports = true;        // key: "enableMMSReadReports"
-    private static boolean mEnableSMSDeliveryReports = true;    // key: "enableSMSDeliveryReports"
-    private static boolean mEnableMMSDeliveryReports = true;    // key: "enableMMSDeliveryReports"
-    private static int mMaxTextLength = -1;
-
-    // This is the max amount of storage multiplied by mMaxMessageSize that we
-    // allow of unsent messages before blocking the user from sending any more
-    // MMS's.
-    private static int mMaxSizeScaleForPendingMmsAllowed = 4;       // default value
-
-    // Email gateway alias support, including the master switch and different rules
-    private static boolean mAliasEnabled = false;
-    private static int mAliasRuleMinChars = 2;
-    private static int mAliasRuleMaxChars = 48;
-
-    private static int mMaxSubjectLength = 40;  // maximum number of characters allowed for mms
-                                                // subject
-
-    // If mEnableGroupMms is true, a message with multiple recipients, regardless of contents,
-    // will be sent as a single MMS message with multiple "TO" fields set for each recipient.
-    // If mEnableGroupMms is false, the group MMS setting/preference will be hidden in the settings
-    // activity.
-    private static boolean mEnableGroupMms = true;
+    private static final class Config {
+        // Whether to hide MMS functionality from the user (i.e. SMS only).
+        boolean mTransIdEnabled = false;
+        int mMmsEnabled = 1;                         // default to true
+        int mMaxMessageSize = 300 * 1024;            // default to 300k max size
+        String mUserAgent = DEFAULT_USER_AGENT;
+        String mUaProfTagName = DEFAULT_HTTP_KEY_X_WAP_PROFILE;
+        String mUaProfUrl = null;
+        String mHttpParams = null;
+        String mHttpParamsLine1Key = null;
+        String mEmailGateway = null;
+        int mMaxImageHeight = MAX_IMAGE_HEIGHT;      // default value
+        int mMaxImageWidth = MAX_IMAGE_WIDTH;        // default value
+        int mRecipientLimit = Integer.MAX_VALUE;     // default value
+        int mDefaultSMSMessagesPerThread = 10000;    // default value
+        int mDefaultMMSMessagesPerThread = 1000;     // default value
+        int mMinMessageCountPerThread = 2;           // default value
+        int mMaxMessageCountPerThread = 5000;        // default value
+        int mHttpSocketTimeout = 60*1000;            // default to 1 min
+        int mMinimumSlideElementDuration = 7;        // default to 7 sec
+        boolean mNotifyWapMMSC = false;
+        boolean mAllowAttachAudio = true;
+
+        // If mEnableMultipartSMS is true, long sms messages are always sent as multi-part sms
+        // messages, with no checked limit on the number of segments.
+        // If mEnableMultipartSMS is false, then as soon as the user types a message longer
+        // than a single segment (i.e. 140 chars), then the message will turn into and be sent
+        // as an mms message. This feature exists for carriers that don't support multi-part sms's.
+        boolean mEnableMultipartSMS = true;
+
+        // If mEnableMultipartSMS is true and mSmsToMmsTextThreshold > 1, then multi-part SMS messages
+        // will be converted into a single mms message. For example, if the mms_config.xml file
+        // specifies <int name="smsToMmsTextThreshold">4</int>, then on the 5th sms segment, the
+        // message will be converted to an mms.
+        int mSmsToMmsTextThreshold = -1;
+
+        boolean mEnableSlideDuration = true;
+        boolean mEnableMMSReadReports = true;        // key: "enableMMSReadReports"
+        boolean mEnableSMSDeliveryReports = true;    // key: "enableSMSDeliveryReports"
+        boolean mEnableMMSDeliveryReports = true;    // key: "enableMMSDeliveryReports"
+        int mMaxTextLength = -1;
+
+        // This is the max amount of storage multiplied by mMaxMessageSize that we
+        // allow of unsent messages before blocking the user from sending any more
+        // MMS's.
+        int mMaxSizeScaleForPendingMmsAllowed = 4;       // default value
+
+        // Email gateway alias support, including the master switch and different rules
+        boolean mAliasEnabled = false;
+        int mAliasRuleMinChars = 2;
+        int mAliasRuleMaxChars = 48;
+
+        int mMaxSubjectLength = 40;  // maximum number of characters allowed for mms
+                                     // subject
+
+        // If mEnableGroupMms is true, a message with multiple recipients, regardless of contents,
+        // will be sent as a single MMS message with multiple "TO" fields set for each recipient.
+        // If mEnableGroupMms is false, the group MMS setting/preference will be hidden in the settings
+        // activity.
+        boolean mEnableGroupMms = true;
+
+        // The number of transactions that may talk to the same MMSC at the same time.
+        int mMaxConcurrentTransactions = 3;
+
+        // httpParams split into headers.
+        List<HttpParam> mHttpParamHeaders = Collections.emptyList();
+
+        // Splits httpParams by '|' to get a list of value pairs, and each pair by the
+        // first occurrence of ':' to obtain a name and value.
+        void tokenizeHttpParams() {
+            if (mHttpParams == null) {
+                mHttpParamHeaders = Collections.emptyList();
+                return;
+            }
+            ArrayList<HttpParam> headers = new ArrayList<HttpParam>();
+            for (String paramPair : mHttpParams.split("\\|")) {
+                String splitPair[] = paramPair.split(":", 2);
+
+                if (splitPair.length == 2) {
+                    String name = splitPair[0].trim();
+                    String value = splitPair[1].trim();
+                    if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
+                        headers.add(new HttpParam(name, value, mHttpParamsLine1Key));
+                    }
+                }
+            }
+            mHttpParamHeaders = Collections.unmodifiableList(headers);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeBoolean(mTransIdEnabled);
+            out.writeInt(mMmsEnabled);
+            out.writeInt(mMaxMessageSize);
+            writeString(out, mUserAgent);
+            writeString(out, mUaProfTagName);
+            writeString(out, mUaProfUrl);
+            writeString(out, mHttpParams);
+            writeString(out, mHttpParamsLine1Key);
+            writeString(out, mEmailGateway);
+            out.writeInt(mMaxImageHeight);
+            out.writeInt(mMaxImageWidth);
+            out.writeInt(mRecipientLimit);
+            out.writeInt(mDefaultSMSMessagesPerThread);
+            out.writeInt(mDefaultMMSMessagesPerThread);
+            out.writeInt(mMinMessageCountPerThread);
+            out.writeInt(mMaxMessageCountPerThread);
+            out.writeInt(mHttpSocketTimeout);
+            out.writeInt(mMinimumSlideElementDuration);
+            out.writeBoolean(mNotifyWapMMSC);
+            out.writeBoolean(mAllowAttachAudio);
+            out.writeBoolean(mEnableMultipartSMS);
+            out.writeInt(mSmsToMmsTextThreshold);
+            out.writeBoolean(mEnableSlideDuration);
+            out.writeBoolean(mEnableMMSReadReports);
+            out.writeBoolean(mEnableSMSDeliveryReports);
+            out.writeBoolean(mEnableMMSDeliveryReports);
+            out.writeInt(mMaxTextLength);
+            out.writeInt(mMaxSizeScaleForPendingMmsAllowed);
+            out.writeBoolean(mAliasEnabled);
+            out.writeInt(mAliasRuleMinChars);
+            out.writeInt(mAliasRuleMaxChars);
+            out.writeInt(mMaxSubjectLength);
+            out.writeBoolean(mEnableGroupMms);
+            out.writeInt(mMaxConcurrentTransactions);
+            out.writeInt(mHttpParamHeaders.size());
+            for (HttpParam header : mHttpParamHeaders) {
+                out.writeUTF(header.name);
+                out.writeUTF(header.value);
+            }
+        }
+
+        void readFrom(DataInputStream in) throws IOException {
+            mTransIdEnabled = in.readBoolean();
+            mMmsEnabled = in.readInt();
+            mMaxMessageSize = in.readInt();
+            mUserAgent = readString(in);
+            mUaProfTagName = readString(in);
+            mUaProfUrl = readString(in);
+            mHttpParams = readString(in);
+            mHttpParamsLine1Key = readString(in);
+            mEmailGateway = readString(in);
+            mMaxImageHeight = in.readInt();
+            mMaxImageWidth = in.readInt();
+            mRecipientLimit = in.readInt();
+            mDefaultSMSMessagesPerThread = in.readInt();
+            mDefaultMMSMessagesPerThread = in.readInt();
+            mMinMessageCountPerThread = in.readInt();
+            mMaxMessageCountPerThread = in.readInt();
+            mHttpSocketTimeout = in.readInt();
+            mMinimumSlideElementDuration = in.readInt();
+            mNotifyWapMMSC = in.readBoolean();
+            mAllowAttachAudio = in.readBoolean();
+            mEnableMultipartSMS = in.readBoolean();
+            mSmsToMmsTextThreshold = in.readInt();
+            mEnableSlideDuration = in.readBoolean();
+            mEnableMMSReadReports = in.readBoolean();
+            mEnableSMSDeliveryReports = in.readBoolean();
+            mEnableMMSDeliveryReports = in.readBoolean();
+            mMaxTextLength = in.readInt();
+            mMaxSizeScaleForPendingMmsAllowed = in.readInt();
+            mAliasEnabled = in.readBoolean();
+            mAliasRuleMinChars = in.readInt();
+            mAliasRuleMaxChars = in.readInt();
+            mMaxSubjectLength = in.readInt();
+            mEnableGroupMms = in.readBoolean();
+            mMaxConcurrentTransactions = in.readInt();
+            int headerCount = in.readInt();
+            ArrayList<HttpParam> headers = new ArrayList<HttpParam>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                String name = in.readUTF();
+                String value = in.readUTF();
+                headers.add(new HttpParam(name, value, mHttpParamsLine1Key));
+            }
+            mHttpParamHeaders = Collections.unmodifiableList(headers);
+        }
+    }
+
+    /**
+     * One of the extra HTTP headers of the httpParams setting, split into name and value
+     * when the config is loaded.
+     */
+    public static final class HttpParam {
+        public final String name;
+        public final String value;
+        // The part of the value to replace with the phone number, or null.
+        private final String mLine1Key;
+
+        HttpParam(String name, String value, String line1Key) {
+            this.name = name;
+            this.value = value;
+            mLine1Key = line1Key != null && value.contains(line1Key) ? line1Key : null;
+        }
+
+        /**
+         * Returns true if the value contains the httpParamsLine1Key, to be replaced with
+         * the user's telephone number.
+         */
+        public boolean needsLine1Number() {
+            return mLine1Key != null;
+        }
+
+        /**
+         * Returns the value with the user's telephone number filled in.
+         */
+        public String getValue(String line1Number) {
+            if (mLine1Key == null) {
+                return value;
+            }
+            return value.replace(mLine1Key, line1Number != null ? line1Number : "");
+        }
+    }
+
+    // The parsed mms_config.xml, in the cache dir. Bump the version when the format
+    // changes.
+    private static final String SNAPSHOT_FILE = "mms_config.snapshot";
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private static volatile Config sConfig = new Config();
 
     public static void init(Context context) {
         if (LOCAL_LOGV) {
@@ -120,7 +297,13 @@ public class MmsConfig {
         Log.v(TAG, "mnc/mcc: " +
                 android.os.SystemProperties.get(TelephonyProperties.PROPERTY_ICC_OPERATOR_NUMERIC));
 
-        loadMmsSettings(context);
+        String key = getSnapshotKey(context);
+        Config config = readSnapshot(context, key);
+        if (config == null) {
+            config = loadMmsSettings(context);
+            writeSnapshot(context, key, config);
+        }
+        sConfig = config;
     }
 
     public static boolean isSmsEnabled(Context context) {
@@ -151,18 +334,18 @@ public class MmsConfig {
     }
 
     public static int getSmsToMmsTextThreshold() {
-        return mSmsToMmsTextThreshold;
+        return sConfig.mSmsToMmsTextThreshold;
     }
 
     public static boolean getMmsEnabled() {
-        return mMmsEnabled == 1 ? true : false;
+        return sConfig.mMmsEnabled == 1 ? true : false;
     }
 
     public static int getMaxMessageSize() {
         if (LOCAL_LOGV) {
-            Log.v(TAG, "MmsConfig.getMaxMessageSize(): " + mMaxMessageSize);
+            Log.v(TAG, "MmsConfig.getMaxMessageSize(): " + sConfig.mMaxMessageSize);
         }
-       return mMaxMessageSize;
+       return sConfig.mMaxMessageSize;
     }
 
     /**
@@ -171,123 +354,137 @@ public class MmsConfig {
      * TransactionID should be appended to URI or not.
      */
     public static boolean getTransIdEnabled() {
-        return mTransIdEnabled;
+        return sConfig.mTransIdEnabled;
     }
 
     public static String getUserAgent() {
-        return mUserAgent;
+        return sConfig.mUserAgent;
     }
 
     public static String getUaProfTagName() {
-        return mUaProfTagName;
+        return sConfig.mUaProfTagName;
     }
 
     public static String getUaProfUrl() {
-        return mUaProfUrl;
+        return sConfig.mUaProfUrl;
     }
 
     public static String getHttpParams() {
-        return mHttpParams;
+        return sConfig.mHttpParams;
+    }
+
+    /**
+     * Returns the extra HTTP headers of the httpParams setting, already split.
+     */
+    public static List<HttpParam> getHttpParamHeaders() {
+        return sConfig.mHttpParamHeaders;
     }
 
     public static String getHttpParamsLine1Key() {
-        return mHttpParamsLine1Key;
+        return sConfig.mHttpParamsLine1Key;
     }
 
     public static String getEmailGateway() {
-        return mEmailGateway;
+        return sConfig.mEmailGateway;
     }
 
     public static int getMaxImageHeight() {
-        return mMaxImageHeight;
+        return sConfig.mMaxImageHeight;
     }
 
     public static int getMaxImageWidth() {
-        return mMaxImageWidth;
+        return sConfig.mMaxImageWidth;
     }
 
     public static int getRecipientLimit() {
-        return mRecipientLimit;
+        return sConfig.mRecipientLimit;
     }
 
     public static int getMaxTextLimit() {
-        return mMaxTextLength > -1 ? mMaxTextLength : MAX_TEXT_LENGTH;
+        return sConfig.mMaxTextLength > -1 ? sConfig.mMaxTextLength : MAX_TEXT_LENGTH;
     }
 
     public static int getDefaultSMSMessagesPerThread() {
-        return mDefaultSMSMessagesPerThread;
+        return sConfig.mDefaultSMSMessagesPerThread;
     }
 
     public static int getDefaultMMSMessagesPerThread() {
-        return mDefaultMMSMessagesPerThread;
+        return sConfig.mDefaultMMSMessagesPerThread;
     }
 
     public static int getMinMessageCountPerThread() {
-        return mMinMessageCountPerThread;
+        return sConfig.mMinMessageCountPerThread;
     }
 
     public static int getMaxMessageCountPerThread() {
-        return mMaxMessageCountPerThread;
+        return sConfig.mMaxMessageCountPerThread;
     }
 
     public static int getHttpSocketTimeout() {
-        return mHttpSocketTimeout;
+        return sConfig.mHttpSocketTimeout;
+    }
+
+    /**
+     * Returns how many transactions may talk to the same MMSC at the same time.
+     */
+    public static int getMaxConcurrentTransactions() {
+        return sConfig.mMaxConcurrentTransactions;
     }
 
     public static int getMinimumSlideElementDuration() {
-        return mMinimumSlideElementDuration;
+        return sConfig.mMinimumSlideElementDuration;
     }
 
     public static boolean getMultipartSmsEnabled() {
-        return mEnableMultipartSMS;
+        return sConfig.mEnableMultipartSMS;
     }
 
     public static boolean getSlideDurationEnabled() {
-        return mEnableSlideDuration;
+        return sConfig.mEnableSlideDuration;
     }
 
     public static boolean getMMSReadReportsEnabled() {
-        return mEnableMMSReadReports;
+        return sConfig.mEnableMMSReadReports;
     }
 
     public static boolean getSMSDeliveryReportsEnabled() {
-        return mEnableSMSDeliveryReports;
+        return sConfig.mEnableSMSDeliveryReports;
     }
 
     public static boolean getMMSDeliveryReportsEnabled() {
-        return mEnableMMSDeliveryReports;
+        return sConfig.mEnableMMSDeliveryReports;
     }
 
     public static boolean getNotifyWapMMSC() {
-        return mNotifyWapMMSC;
+        return sConfig.mNotifyWapMMSC;
     }
 
     public static int getMaxSizeScaleForPendingMmsAllowed() {
-        return mMaxSizeScaleForPendingMmsAllowed;
+        return sConfig.mMaxSizeScaleForPendingMmsAllowed;
     }
 
     public static boolean isAliasEnabled() {
-        return mAliasEnabled;
+        return sConfig.mAliasEnabled;
     }
 
     public static int getAliasMinChars() {
-        return mAliasRuleMinChars;
+        return sConfig.mAliasRuleMinChars;
     }
 
     public static int getAliasMaxChars() {
-        return mAliasRuleMaxChars;
+        return sConfig.mAliasRuleMaxChars;
     }
 
     public static boolean getAllowAttachAudio() {
-        return mAllowAttachAudio;
+        return sConfig.mAllowAttachAudio;
     }
 
     public static int getMaxSubjectLength() {
-        return mMaxSubjectLength;
+        return sConfig.mMaxSubjectLength;
     }
 
     public static boolean getGroupMmsEnabled() {
-        return mEnableGroupMms;
+        return sConfig.mEnableGroupMms;
     }
 
     public static final void beginDocument(XmlPullParser parser, String firstElementName) throws XmlPullParserException, IOException
@@ -317,7 +514,8 @@ public class MmsConfig {
         }
     }
 
-    private static void loadMmsSettings(Context context) {
+    private static Config loadMmsSettings(Context context) {
+        Config config = new Config();
         XmlResourceParser parser = context.getResources().getXml(R.xml.mms_config);
 
         try {
@@ -344,80 +542,83 @@ public class MmsConfig {
                     if ("bool".equals(tag)) {
                         // bool config tags go here
                         if ("enabledMMS".equalsIgnoreCase(value)) {
-                            mMmsEnabled = "true".equalsIgnoreCase(text) ? 1 : 0;
+                            config.mMmsEnabled = "true".equalsIgnoreCase(text) ? 1 : 0;
                         } else if ("enabledTransID".equalsIgnoreCase(value)) {
-                            mTransIdEnabled = "true".equalsIgnoreCase(text);
+                            config.mTransIdEnabled = "true".equalsIgnoreCase(text);
                         } else if ("enabledNotifyWapMMSC".equalsIgnoreCase(value)) {
-                            mNotifyWapMMSC = "true".equalsIgnoreCase(text);
+                            config.mNotifyWapMMSC = "true".equalsIgnoreCase(text);
                         } else if ("aliasEnabled".equalsIgnoreCase(value)) {
-                            mAliasEnabled = "true".equalsIgnoreCase(text);
+                            config.mAliasEnabled = "true".equalsIgnoreCase(text);
                         } else if ("allowAttachAudio".equalsIgnoreCase(value)) {
-                            mAllowAttachAudio = "true".equalsIgnoreCase(text);
+                            config.mAllowAttachAudio = "true".equalsIgnoreCase(text);
                         } else if ("enableMultipartSMS".equalsIgnoreCase(value)) {
-                            mEnableMultipartSMS = "true".equalsIgnoreCase(text);
+                            config.mEnableMultipartSMS = "true".equalsIgnoreCase(text);
                         } else if ("enableSlideDuration".equalsIgnoreCase(value)) {
-                            mEnableSlideDuration = "true".equalsIgnoreCase(text);
+                            config.mEnableSlideDuration = "true".equalsIgnoreCase(text);
                         } else if ("enableMMSReadReports".equalsIgnoreCase(value)) {
-                            mEnableMMSReadReports = "true".equalsIgnoreCase(text);
+                            config.mEnableMMSReadReports = "true".equalsIgnoreCase(text);
                         } else if ("enableSMSDeliveryReports".equalsIgnoreCase(value)) {
-                            mEnableSMSDeliveryReports = "true".equalsIgnoreCase(text);
+                            config.mEnableSMSDeliveryReports = "true".equalsIgnoreCase(text);
                         } else if ("enableMMSDeliveryReports".equalsIgnoreCase(value)) {
-                            mEnableMMSDeliveryReports = "true".equalsIgnoreCase(text);
+                            config.mEnableMMSDeliveryReports = "true".equalsIgnoreCase(text);
                         } else if ("enableGroupMms".equalsIgnoreCase(value)) {
-                            mEnableGroupMms = "true".equalsIgnoreCase(text);
+                            config.mEnableGroupMms = "true".equalsIgnoreCase(text);
                         }
                     } else if ("int".equals(tag)) {
                         // int config tags go here
                         if ("maxMessageSize".equalsIgnoreCase(value)) {
-                            mMaxMessageSize = Integer.parseInt(text);
+                            config.mMaxMessageSize = Integer.parseInt(text);
                         } else if ("maxImageHeight".equalsIgnoreCase(value)) {
-                            mMaxImageHeight = Integer.parseInt(text);
+                            config.mMaxImageHeight = Integer.parseInt(text);
                         } else if ("maxImageWidth".equalsIgnoreCase(value)) {
-                            mMaxImageWidth = Integer.parseInt(text);
+                            config.mMaxImageWidth = Integer.parseInt(text);
                         } else if ("defaultSMSMessagesPerThread".equalsIgnoreCase(value)) {
-                            mDefaultSMSMessagesPerThread = Integer.parseInt(text);
+                            config.mDefaultSMSMessagesPerThread = Integer.parseInt(text);
                         } else if ("defaultMMSMessagesPerThread".equalsIgnoreCase(value)) {
-                            mDefaultMMSMessagesPerThread = Integer.parseInt(text);
+                            config.mDefaultMMSMessagesPerThread = Integer.parseInt(text);
                         } else if ("minMessageCountPerThread".equalsIgnoreCase(value)) {
-                            mMinMessageCountPerThread = Integer.parseInt(text);
+                            config.mMinMessageCountPerThread = Integer.parseInt(text);
                         } else if ("maxMessageCountPerThread".equalsIgnoreCase(value)) {
-                            mMaxMessageCountPerThread = Integer.parseInt(text);
+                            config.mMaxMessageCountPerThread = Integer.parseInt(text);
                         } else if ("recipientLimit".equalsIgnoreCase(value)) {
-                            mRecipientLimit = Integer.parseInt(text);
-                            if (mRecipientLimit < 0) {
-                                mRecipientLimit = Integer.MAX_VALUE;
+                            config.mRecipientLimit = Integer.parseInt(text);
+                            if (config.mRecipientLimit < 0) {
+                                config.mRecipientLimit = Integer.MAX_VALUE;
                             }
                         } else if ("httpSocketTimeout".equalsIgnoreCase(value)) {
-                            mHttpSocketTimeout = Integer.parseInt(text);
+                            config.mHttpSocketTimeout = Integer.parseInt(text);
                         } else if ("minimumSlideElementDuration".equalsIgnoreCase(value)) {
-                            mMinimumSlideElementDuration = Integer.parseInt(text);
+                            config.mMinimumSlideElementDuration = Integer.parseInt(text);
                         } else if ("maxSizeScaleForPendingMmsAllowed".equalsIgnoreCase(value)) {
-                            mMaxSizeScaleForPendingMmsAllowed = Integer.parseInt(text);
+                            config.mMaxSizeScaleForPendingMmsAllowed = Integer.parseInt(text);
                         } else if ("aliasMinChars".equalsIgnoreCase(value)) {
-                            mAliasRuleMinChars = Integer.parseInt(text);
+                            config.mAliasRuleMinChars = Integer.parseInt(text);
                         } else if ("aliasMaxChars".equalsIgnoreCase(value)) {
-                            mAliasRuleMaxChars = Integer.parseInt(text);
+                            config.mAliasRuleMaxChars = Integer.parseInt(text);
                         } else if ("smsToMmsTextThreshold".equalsIgnoreCase(value)) {
-                            mSmsToMmsTextThreshold = Integer.parseInt(text);
+                            config.mSmsToMmsTextThreshold = Integer.parseInt(text);
                         } else if ("maxMessageTextSize".equalsIgnoreCase(value)) {
-                            mMaxTextLength = Integer.parseInt(text);
+                            config.mMaxTextLength = Integer.parseInt(text);
                         } else if ("maxSubjectLength".equalsIgnoreCase(value)) {
-                            mMaxSubjectLength = Integer.parseInt(text);
+                            config.mMaxSubjectLength = Integer.parseInt(text);
+                        } else if ("maxConcurrentTransactions".equalsIgnoreCase(value)) {
+                            config.mMaxConcurrentTransactions =
+                                    Math.max(1, Integer.parseInt(text));
                         }
                     } else if ("string".equals(tag)) {
                         // string config tags go here
                         if ("userAgent".equalsIgnoreCase(value)) {
-                            mUserAgent = text;
+                            config.mUserAgent = text;
                         } else if ("uaProfTagName".equalsIgnoreCase(value)) {
-                            mUaProfTagName = text;
+                            config.mUaProfTagName = text;
                         } else if ("uaProfUrl".equalsIgnoreCase(value)) {
-                            mUaProfUrl = text;
+                            config.mUaProfUrl = text;
                         } else if ("httpParams".equalsIgnoreCase(value)) {
-                            mHttpParams = text;
+                            config.mHttpParams = text;
                         } else if ("httpParamsLine1Key".equalsIgnoreCase(value)) {
-                            mHttpParamsLine1Key = text;
+                            config.mHttpParamsLine1Key = text;
                         } else if ("emailGatewayNumber".equalsIgnoreCase(value)) {
-                            mEmailGateway = text;
+                            config.mEmailGateway = text;
                         }
                     }
                 }
@@ -434,7 +635,7 @@ public class MmsConfig {
 
         String errorStr = null;
 
-        if (getMmsEnabled() && mUaProfUrl == null) {
+        if (config.mMmsEnabled == 1 && config.mUaProfUrl == null) {
             errorStr = "uaProfUrl";
         }
 
@@ -444,6 +645,85 @@ public class MmsConfig {
                         errorStr);
             Log.e(TAG, err);
         }
+
+        config.tokenizeHttpParams();
+        return config;
+    }
+
+    // The snapshot is only good for the same mms_config.xml: the same build of the app
+    // and of the system, and the same mcc/mnc qualified resources.
+    private static String getSnapshotKey(Context context) {
+        StringBuilder key = new StringBuilder(Build.FINGERPRINT);
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            key.append('/').append(info.versionCode).append('/').append(info.lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Can't happen, it's our own package.
+        }
+        Configuration configuration = context.getResources().getConfiguration();
+        key.append('/').append(configuration.mcc).append('/').append(configuration.mnc);
+        return key.toString();
+    }
+
+    private static Config readSnapshot(Context context, String key) {
+        File file = new File(context.getCacheDir(), SNAPSHOT_FILE);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != SNAPSHOT_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            Config config = new Config();
+            config.readFrom(in);
+            return config;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read the config snapshot", e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void writeSnapshot(Context context, String key, Config config) {
+        File file = new File(context.getCacheDir(), SNAPSHOT_FILE);
+        File tmp = new File(context.getCacheDir(), SNAPSHOT_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeUTF(key);
+                config.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Can't rename the config snapshot");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write the config snapshot", e);
+            tmp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 
 }
@@ -1,13 +1,25 @@
 package com.android.mms.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
 
 import android.content.ContentUris;
 import android.content.Context;
@@ -19,8 +31,13 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
@@ -36,6 +53,8 @@ import com.android.mms.LogTag;
 import com.android.mms.MmsApp;
 import com.android.mms.R;
 import com.android.mms.ui.MessageUtils;
+import com.android.mms.util.CacheStatsRecorder;
+import com.android.mms.util.WeightedLruCache;
 
 public class Contact {
     public static final int CONTACT_METHOD_TYPE_UNKNOWN = 0;
@@ -49,6 +68,17 @@ public class Contact {
     private static ContactsCache sContactCache;
     private static final String SELF_ITEM_KEY = "Self_Item_Key";
 
+    // The decoded avatars may use up to 1/32 of the heap, but always fit more badges than
+    // a screen shows, so the rows drawn don't evict each other.
+    private static final int AVATAR_CACHE_HEAP_DIVISOR = 32;
+    private static final int AVATAR_CACHE_MIN_ENTRIES = 32;
+    // A contact whose reloaded avatar was evicted again this soon isn't redrawn again.
+    private static final long AVATAR_RELOAD_QUIET_MS = 2000;
+    // The avatars decoded at badge size, by contact. A contact keeps the photo bytes only
+    // until they're decoded; an evicted avatar is loaded again in the background.
+    private static WeightedLruCache<Contact, Bitmap> sAvatarCache;
+    private static int sAvatarSize;
+
 //    private static final ContentObserver sContactsObserver = new ContentObserver(new Handler()) {
 //        @Override
 //        public void onChange(boolean selfUpdate) {
@@ -59,7 +89,8 @@ public class Contact {
 //        }
 //    };
 
-    private static final ContentObserver sPresenceObserver = new ContentObserver(new Handler()) {
+    private static final ContentObserver sPresenceObserver = new ContentObserver(
+            new Handler(Looper.getMainLooper())) {
         @Override
         public void onChange(boolean selfUpdate) {
             if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
@@ -86,10 +117,16 @@ public class Contact {
     private long mPersonId;
     private int mPresenceResId;      // TODO: make this a state instead of a res ID
     private String mPresenceText;
-    private BitmapDrawable mAvatar;
-    private byte [] mAvatarData;
+    private byte [] mAvatarData;     // the photo until getAvatar decodes it
+    private long mAvatarHash;        // identifies the photo, 0 if there is none
+    private boolean mAvatarUndecodable; // the photo with mAvatarHash isn't an image
+    private boolean mAvatarReloading; // the evicted avatar is being loaded again
+    private long mAvatarReloadTime;  // when the listeners were last told of a reloaded avatar
     private boolean mIsStale;
     private boolean mQueryPending;
+    private boolean mFromSnapshot;  // loaded from the snapshot and not refreshed yet
+    // The keys of ContactsCache.mContacts that map to this contact.
+    private final CopyOnWriteArrayList<String> mLookupKeys = new CopyOnWriteArrayList<String>();
     private boolean mIsMe;          // true if this contact is me!
     private boolean mSendToVoicemail;   // true if this contact should not put up notification
 
@@ -167,6 +204,7 @@ public class Contact {
 
     public void removeFromCache() {
         sContactCache.remove(this);
+        sAvatarCache.remove(this);
     }
 
     public static List<Contact> getByPhoneUris(Parcelable[] uris) {
@@ -345,20 +383,118 @@ public class Contact {
     }
 
     public synchronized Drawable getAvatar(Context context, Drawable defaultValue) {
-        if (mAvatar == null) {
+        Bitmap avatar = sAvatarCache.get(this);
+        if (avatar == null) {
             if (mAvatarData != null) {
-                Bitmap b = BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-                mAvatar = new BitmapDrawable(context.getResources(), b);
+                avatar = decodeAvatar(mAvatarData);
+                mAvatarData = null;
+                if (avatar != null) {
+                    sAvatarCache.put(this, avatar);
+                } else {
+                    // Not an image, don't load it again. The hash still identifies the
+                    // photo, so a refresh doesn't report the contact as changed.
+                    mAvatarUndecodable = true;
+                }
+            } else if (mAvatarHash != 0 && !mAvatarUndecodable && !mAvatarReloading) {
+                // Evicted from the avatar cache. Only the photo is loaded again, and the
+                // listeners are told once it's decoded.
+                mAvatarReloading = true;
+                sContactCache.reloadAvatar(this);
             }
         }
-        return mAvatar != null ? mAvatar : defaultValue;
+        return avatar != null ? new BitmapDrawable(context.getResources(), avatar)
+                : defaultValue;
+    }
+
+    // Decodes the photo to about the size of the badges it's shown in.
+    private static Bitmap decodeAvatar(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        if (longSide <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        while (longSide / (options.inSampleSize * 2) >= sAvatarSize) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+        int sampledSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (sampledSide <= sAvatarSize) {
+            return bitmap;
+        }
+        float scale = (float) sAvatarSize / sampledSide;
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    // Sets the photo bytes and their hash, called on fresh entries before they're copied
+    // into the cached contact.
+    private void setAvatarData(byte[] data) {
+        mAvatarData = data;
+        mAvatarHash = avatarHash(data);
+    }
+
+    private static long avatarHash(byte[] data) {
+        if (data == null || data.length == 0) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        // Never 0, that's no photo.
+        return ((long) data.length << 32) | crc.getValue();
+    }
+
+    private static void notifyListeners(Contact c) {
+        // clone the list of listeners in case the onUpdate call turns around and
+        // modifies the list of listeners
+        // access to mListeners is synchronized on ContactsCache
+        HashSet<UpdateListener> iterator;
+        synchronized (mListeners) {
+            iterator = (HashSet<UpdateListener>)Contact.mListeners.clone();
+        }
+        for (UpdateListener l : iterator) {
+            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                Log.d(TAG, "updating " + l);
+            }
+            l.onUpdate(c);
+        }
     }
 
     public static void init(final Context context) {
         if (sContactCache != null) { // Stop previous Runnable
-            sContactCache.mTaskQueue.mWorkerThread.interrupt();
+            sContactCache.mRefreshQueue.quit();
+            sContactCache.mAvatarHandler.getLooper().quit();
         }
         sContactCache = new ContactsCache(context);
+        sAvatarSize = context.getResources().getDimensionPixelSize(R.dimen.avatar_width_height);
+        sAvatarCache = new WeightedLruCache<Contact, Bitmap>("Contact.avatars",
+                Math.max(WeightedLruCache.getMemoryBudget(context, AVATAR_CACHE_HEAP_DIVISOR),
+                        AVATAR_CACHE_MIN_ENTRIES * sAvatarSize * sAvatarSize * 4),
+                new WeightedLruCache.Weigher<Contact, Bitmap>() {
+                    @Override
+                    public int weigh(Contact key, Bitmap value) {
+                        return value.getByteCount();
+                    }
+                });
+
+        // Names are shown from the last snapshot until the contacts are refreshed.
+        final ContactsCache cache = sContactCache;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.loadSnapshot();
+            }
+        }, "Contact.ContactsCache snapshot loader").start();
 
         RecipientIdCache.init(context);
 
@@ -376,8 +512,36 @@ public class Contact {
         sContactCache.dump();
     }
 
+    /**
+     * Writes the contacts found in the contacts provider to disk in the background, so the
+     * next process can show their names before it has queried them. Called when the UI is
+     * hidden.
+     */
+    public static void saveSnapshot() {
+        final ContactsCache cache = sContactCache;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.saveSnapshot();
+            }
+        }, "Contact.ContactsCache snapshot writer").start();
+    }
+
     private static class ContactsCache {
-        private final TaskStack mTaskQueue = new TaskStack();
+        // Contacts are refreshed by at most this many threads, each looking up this many
+        // contacts at a time.
+        private static final int MAX_REFRESH_WORKERS = 2;
+        private static final int REFRESH_BATCH_SIZE = 50;
+
+        // The snapshot of the contacts, in the cache dir. Bump the version when the format
+        // changes.
+        private static final String SNAPSHOT_FILE = "contacts.snapshot";
+        private static final int SNAPSHOT_VERSION = 1;
+        private static final int SNAPSHOT_MAX_CONTACTS = 1000;
+        private final Object mSnapshotLock = new Object();
+
+        private final RefreshQueue mRefreshQueue = new RefreshQueue(
+                Math.min(MAX_REFRESH_WORKERS, Runtime.getRuntime().availableProcessors()));
         private static final String SEPARATOR = ";";
 
         /**
@@ -460,7 +624,8 @@ public class Contact {
                 Email.CONTACT_PRESENCE,       // 2
                 Email.CONTACT_ID,             // 3
                 Phone.DISPLAY_NAME,           // 4
-                Contacts.SEND_TO_VOICEMAIL    // 5
+                Contacts.SEND_TO_VOICEMAIL,   // 5
+                Email.DATA                    // 6
         };
         private static final int EMAIL_ID_COLUMN = 0;
         private static final int EMAIL_NAME_COLUMN = 1;
@@ -468,71 +633,138 @@ public class Contact {
         private static final int EMAIL_CONTACT_ID_COLUMN = 3;
         private static final int EMAIL_CONTACT_NAME_COLUMN = 4;
         private static final int EMAIL_SEND_TO_VOICEMAIL_COLUMN = 5;
+        private static final int EMAIL_DATA_COLUMN = 6;
 
         private final Context mContext;
 
-        private final HashMap<String, ArrayList<Contact>> mContactsHash =
-            new HashMap<String, ArrayList<Contact>>();
+        // The contacts by the number they were looked up with, stripped of separators, or
+        // by email address or alias as is. Looking up a number seen before takes no lock.
+        private final ConcurrentHashMap<String, Contact> mContacts =
+            new ConcurrentHashMap<String, Contact>();
+
+        // All the contacts, by the last digits of their number, to find the ones looked up
+        // with another spelling of the number, like 650-123-4567 and +1 (650) 123-4567.
+        // The lists are copy-on-write so they're read without locking. Writers lock the
+        // list; an emptied list is dropped from the map, so they check it's still there.
+        private final ConcurrentHashMap<String, CopyOnWriteArrayList<Contact>> mContactsHash =
+            new ConcurrentHashMap<String, CopyOnWriteArrayList<Contact>>();
+
+        private final CacheStatsRecorder mStats = new CacheStatsRecorder("Contact.ContactsCache") {
+            @Override
+            public int getEntryCount() {
+                int count = 0;
+                for (CopyOnWriteArrayList<Contact> alc : mContactsHash.values()) {
+                    count += alc.size();
+                }
+                return count;
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                // Only the photos not decoded yet are counted, they dwarf the rest of a
+                // Contact. The decoded ones are in the Contact.avatars cache.
+                long size = 0;
+                for (CopyOnWriteArrayList<Contact> alc : mContactsHash.values()) {
+                    for (Contact c : alc) {
+                        byte[] data = c.mAvatarData;
+                        if (data != null) {
+                            size += data.length;
+                        }
+                    }
+                }
+                return size;
+            }
+        };
+
+        // Loads the photos of the contacts whose avatar was evicted.
+        private final Handler mAvatarHandler;
 
         private ContactsCache(Context context) {
             mContext = context;
+            HandlerThread thread = new HandlerThread("Contact.avatars",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mAvatarHandler = new Handler(thread.getLooper());
         }
 
         void dump() {
-            synchronized (ContactsCache.this) {
-                Log.d(TAG, "**** Contact cache dump ****");
-                for (String key : mContactsHash.keySet()) {
-                    ArrayList<Contact> alc = mContactsHash.get(key);
-                    for (Contact c : alc) {
-                        Log.d(TAG, key + " ==> " + c.toString());
-                    }
+            Log.d(TAG, "**** Contact cache dump ****");
+            for (Map.Entry<String, CopyOnWriteArrayList<Contact>> entry
+                    : mContactsHash.entrySet()) {
+                for (Contact c : entry.getValue()) {
+                    Log.d(TAG, entry.getKey() + " ==> " + c.toString());
                 }
             }
         }
 
-        private static class TaskStack {
-            Thread mWorkerThread;
-            private final ArrayList<Runnable> mThingsToLoad;
-
-            public TaskStack() {
-                mThingsToLoad = new ArrayList<Runnable>();
-                mWorkerThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        while (true) {
-                            Runnable r = null;
-                            synchronized (mThingsToLoad) {
-                                if (mThingsToLoad.size() == 0) {
-                                    try {
-                                        mThingsToLoad.wait();
-                                    } catch (InterruptedException ex) {
-                                        break;  // Exception sent by Contact.init() to stop Runnable
-                                    }
-                                }
-                                if (mThingsToLoad.size() > 0) {
-                                    r = mThingsToLoad.remove(0);
+        /**
+         * The contacts waiting to be refreshed from the contacts provider, and the
+         * threads refreshing them. A contact is queued at most once. Each worker takes
+         * up to REFRESH_BATCH_SIZE contacts at a time and looks them all up with a few
+         * queries, so refreshing the whole cache after invalidate() doesn't cost a
+         * query per contact.
+         */
+        private class RefreshQueue {
+            // Queued in order, a contact that's already queued isn't added again.
+            private final LinkedHashSet<Contact> mPending = new LinkedHashSet<Contact>();
+            private final Thread[] mWorkers;
+
+            public RefreshQueue(int workerCount) {
+                mWorkers = new Thread[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    mWorkers[i] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            while (true) {
+                                List<Contact> batch;
+                                try {
+                                    batch = take();
+                                } catch (InterruptedException ex) {
+                                    break;  // Exception sent by Contact.init() to stop Runnable
                                 }
-                            }
-                            if (r != null) {
-                                r.run();
+                                updateContacts(batch);
                             }
                         }
+                    }, "Contact.ContactsCache.RefreshQueue worker thread " + i);
+                    mWorkers[i].setPriority(Thread.MIN_PRIORITY);
+                    mWorkers[i].start();
+                }
+            }
+
+            public void push(Contact c) {
+                synchronized (mPending) {
+                    if (mPending.add(c)) {
+                        mPending.notify();
                     }
-                }, "Contact.ContactsCache.TaskStack worker thread");
-                mWorkerThread.setPriority(Thread.MIN_PRIORITY);
-                mWorkerThread.start();
+                }
             }
 
-            public void push(Runnable r) {
-                synchronized (mThingsToLoad) {
-                    mThingsToLoad.add(r);
-                    mThingsToLoad.notify();
+            // Waits for queued contacts and removes up to a batch of them from the queue.
+            private List<Contact> take() throws InterruptedException {
+                synchronized (mPending) {
+                    while (mPending.isEmpty()) {
+                        mPending.wait();
+                    }
+                    int count = Math.min(mPending.size(), REFRESH_BATCH_SIZE);
+                    List<Contact> batch = new ArrayList<Contact>(count);
+                    Iterator<Contact> it = mPending.iterator();
+                    while (batch.size() < count) {
+                        batch.add(it.next());
+                        it.remove();
+                    }
+                    if (!mPending.isEmpty()) {
+                        // Let another worker take the next batch.
+                        mPending.notify();
+                    }
+                    return batch;
                 }
             }
-        }
 
-        public void pushTask(Runnable r) {
-            mTaskQueue.push(r);
+            public void quit() {
+                for (Thread worker : mWorkers) {
+                    worker.interrupt();
+                }
+            }
         }
 
         public Contact getMe(boolean canBlock) {
@@ -558,9 +790,15 @@ public class Contact {
             // Always return a Contact object, if if we don't have an actual contact
             // in the contacts db.
             Contact contact = internalGet(number, isMe);
-            Runnable r = null;
+            boolean refresh = false;
 
             synchronized (contact) {
+                // Contacts from the snapshot are good enough to return at once, even to
+                // callers willing to block. They're refreshed in the background.
+                if (contact.mFromSnapshot) {
+                    canBlock = false;
+                }
+
                 // If there's a query pending and we're willing to block then
                 // wait here until the query completes.
                 while (canBlock && contact.mQueryPending) {
@@ -581,28 +819,22 @@ public class Contact {
                                 " isStale: " + contact.mIsStale);
                     }
 
-                    final Contact c = contact;
-                    r = new Runnable() {
-                        @Override
-                        public void run() {
-                            updateContact(c);
-                        }
-                    };
+                    refresh = true;
 
                     // set this to true while we have the lock on contact since we will
-                    // either run the query directly (canBlock case) or push the query
-                    // onto the queue.  In either case the mQueryPending will get set
+                    // either run the query directly (canBlock case) or push the contact
+                    // onto the refresh queue.  In either case the mQueryPending will get set
                     // to false via updateContact.
                     contact.mQueryPending = true;
                 }
             }
             // do this outside of the synchronized so we don't hold up any
             // subsequent calls to "get" on other threads
-            if (r != null) {
+            if (refresh) {
                 if (canBlock) {
-                    r.run();
+                    updateContact(contact);
                 } else {
-                    pushTask(r);
+                    mRefreshQueue.push(contact);
                 }
             }
             return contact;
@@ -650,10 +882,8 @@ public class Contact {
                     Contact entry = new Contact(cursor.getString(PHONE_NUMBER_COLUMN),
                             cursor.getString(CONTACT_NAME_COLUMN));
                     fillPhoneTypeContact(entry, cursor);
-                    ArrayList<Contact> value = new ArrayList<Contact>();
-                    value.add(entry);
                     // Put the result in the cache.
-                    mContactsHash.put(key(entry.mNumber, sStaticKeyBuffer), value);
+                    replace(entry);
                     entries.add(entry);
                 }
             } finally {
@@ -711,7 +941,7 @@ public class Contact {
                 return true;
             }
 
-            if (!Arrays.equals(orig.mAvatarData, newContactData.mAvatarData)) {
+            if (orig.mAvatarHash != newContactData.mAvatarHash) {
                 if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
                     Log.d(TAG, "avatar changed");
                 }
@@ -726,9 +956,36 @@ public class Contact {
                 return;
             }
 
+            long start = SystemClock.elapsedRealtime();
             Contact entry = getContactInfo(c);
+            mStats.recordLoadTime(start);
+            updateContact(c, entry);
+        }
+
+        /**
+         * Refreshes the contacts with batched queries: one for all the phone numbers, one
+         * for all the email addresses, plus the avatars.
+         */
+        private void updateContacts(List<Contact> contacts) {
+            long start = SystemClock.elapsedRealtime();
+            HashMap<Contact, Contact> entries = getContactInfo(contacts);
+            mStats.recordLoadTime(start);
+            for (Contact c : contacts) {
+                updateContact(c, entries.get(c));
+            }
+        }
+
+        // Copies the freshly loaded entry into the cached contact and tells the listeners
+        // if anything they show changed.
+        private void updateContact(final Contact c, Contact entry) {
             synchronized (c) {
-                if (contactChanged(c, entry)) {
+                boolean changed = contactChanged(c, entry);
+                if (c.mAvatarHash != entry.mAvatarHash) {
+                    sAvatarCache.remove(c);
+                    c.mAvatarData = entry.mAvatarData;
+                    c.mAvatarUndecodable = false;
+                }
+                if (changed) {
                     if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                         log("updateContact: contact changed for " + entry.mName);
                     }
@@ -738,8 +995,7 @@ public class Contact {
                     c.mPersonId = entry.mPersonId;
                     c.mPresenceResId = entry.mPresenceResId;
                     c.mPresenceText = entry.mPresenceText;
-                    c.mAvatarData = entry.mAvatarData;
-                    c.mAvatar = entry.mAvatar;
+                    c.mAvatarHash = entry.mAvatarHash;
                     c.mContactMethodId = entry.mContactMethodId;
                     c.mContactMethodType = entry.mContactMethodType;
                     c.mNumberE164 = entry.mNumberE164;
@@ -755,28 +1011,57 @@ public class Contact {
                     // again -- all in a vicious and unending loop. Break the cycle and don't
                     // notify if the number (the most important piece of information) is empty.
                     if (!TextUtils.isEmpty(c.mNumber)) {
-                        // clone the list of listeners in case the onUpdate call turns around and
-                        // modifies the list of listeners
-                        // access to mListeners is synchronized on ContactsCache
-                        HashSet<UpdateListener> iterator;
-                        synchronized (mListeners) {
-                            iterator = (HashSet<UpdateListener>)Contact.mListeners.clone();
-                        }
-                        for (UpdateListener l : iterator) {
-                            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
-                                Log.d(TAG, "updating " + l);
-                            }
-                            l.onUpdate(c);
-                        }
+                        notifyListeners(c);
                     }
                 }
                 synchronized (c) {
                     c.mQueryPending = false;
+                    c.mFromSnapshot = false;
                     c.notifyAll();
                 }
             }
         }
 
+        void reloadAvatar(final Contact c) {
+            mAvatarHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reloadAvatarNow(c);
+                }
+            });
+        }
+
+        // Loads and decodes only the photo of a contact whose avatar was evicted, then
+        // redraws that contact. If it's evicted again right away the rows shown don't fit
+        // in the cache, so it's kept for the next draw without redrawing, else every
+        // redraw would evict and reload another avatar.
+        private void reloadAvatarNow(Contact c) {
+            byte[] data = loadAvatarData(c);
+            Bitmap avatar = data != null ? decodeAvatar(data) : null;
+            boolean notify;
+            synchronized (c) {
+                c.mAvatarReloading = false;
+                if (avatarHash(data) != c.mAvatarHash) {
+                    // The photo changed since the last refresh, which picks it up.
+                    c.reload();
+                    return;
+                }
+                if (avatar == null) {
+                    c.mAvatarUndecodable = true;
+                    return;
+                }
+                sAvatarCache.put(c, avatar);
+                long now = SystemClock.elapsedRealtime();
+                notify = now - c.mAvatarReloadTime >= AVATAR_RELOAD_QUIET_MS;
+                if (notify) {
+                    c.mAvatarReloadTime = now;
+                }
+            }
+            if (notify && !TextUtils.isEmpty(c.mNumber)) {
+                notifyListeners(c);
+            }
+        }
+
         /**
          * Returns the caller info in Contact.
          */
@@ -800,6 +1085,37 @@ public class Contact {
             }
         }
 
+        /**
+         * Returns the caller info of each of the contacts. All the phone numbers are looked
+         * up with one query, and all the email addresses with another.
+         */
+        private HashMap<Contact, Contact> getContactInfo(List<Contact> contacts) {
+            HashMap<Contact, Contact> entries = new HashMap<Contact, Contact>();
+            ArrayList<Contact> emails = new ArrayList<Contact>();
+            ArrayList<Contact> phones = new ArrayList<Contact>();
+            for (Contact c : contacts) {
+                if (c.mIsMe) {
+                    entries.put(c, getContactInfoForSelf());
+                } else if (Mms.isEmailAddress(c.mNumber) || isAlphaNumber(c.mNumber)) {
+                    emails.add(c);
+                } else {
+                    phones.add(c);
+                }
+            }
+            HashMap<Contact, Contact> emailEntries = getContactInfoForEmailAddresses(emails);
+            for (Contact c : emails) {
+                Contact entry = emailEntries.get(c);
+                if (!entry.existsInDatabase() && !Mms.isEmailAddress(c.mNumber)) {
+                    // An alpha number that isn't an email address, try the phone field.
+                    phones.add(c);
+                } else {
+                    entries.put(c, entry);
+                }
+            }
+            entries.putAll(getContactInfoForPhoneNumbers(phones));
+            return entries;
+        }
+
         // Some received sms's have addresses such as "OakfieldCPS" or "T-Mobile". This
         // function will attempt to identify these and return true. If the number contains
         // 3 or more digits, such as "jello123", this function will return false.
@@ -883,6 +1199,102 @@ public class Contact {
             return entry;
         }
 
+        // A phone number looked up by getContactInfoForPhoneNumbers.
+        private static class PhoneLookup {
+            final Contact mEntry;
+            final String mNormalizedNumber;
+            final String mMinMatch;
+            final String mNumberE164;
+
+            PhoneLookup(Contact entry, String normalizedNumber, String minMatch,
+                    String numberE164) {
+                mEntry = entry;
+                mNormalizedNumber = normalizedNumber;
+                mMinMatch = minMatch;
+                mNumberE164 = numberE164;
+            }
+
+            // Whether the row of the caller id query is this number, by the same rules as
+            // CALLER_ID_SELECTION: the E164 numbers are equal, or the normalized number
+            // ends with the row's number and has the same min match.
+            boolean matches(Cursor cursor) {
+                String rowNumberE164 = cursor.getString(PHONE_NORMALIZED_NUMBER);
+                if (!TextUtils.isEmpty(mNumberE164) && mNumberE164.equals(rowNumberE164)) {
+                    return true;
+                }
+                String rowNumber = cursor.getString(PHONE_NUMBER_COLUMN);
+                return endsWith(rowNumberE164) || (rowNumber != null
+                        && endsWith(PhoneNumberUtils.normalizeNumber(rowNumber)));
+            }
+
+            private boolean endsWith(String rowNumber) {
+                return !TextUtils.isEmpty(rowNumber) && mNormalizedNumber.endsWith(rowNumber)
+                        && mMinMatch.equals(PhoneNumberUtils.toCallerIDMinMatch(rowNumber));
+            }
+        }
+
+        /**
+         * Queries the caller id info of the contacts' phone numbers, all at once.
+         */
+        private HashMap<Contact, Contact> getContactInfoForPhoneNumbers(List<Contact> contacts) {
+            HashMap<Contact, Contact> entries = new HashMap<Contact, Contact>();
+            ArrayList<PhoneLookup> lookups = new ArrayList<PhoneLookup>();
+            LinkedHashSet<String> minMatches = new LinkedHashSet<String>();
+            String countryIso = MmsApp.getApplication().getCurrentCountryIso();
+            for (Contact c : contacts) {
+                // Strip the non-digits out of real phone numbers, like getContactInfo().
+                String number = isAlphaNumber(c.mNumber) ?
+                        c.mNumber : PhoneNumberUtils.stripSeparators(c.mNumber);
+                Contact entry = new Contact(number);
+                entry.mContactMethodType = CONTACT_METHOD_TYPE_PHONE;
+                entries.put(c, entry);
+
+                String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+                String minMatch = PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber);
+                if (!TextUtils.isEmpty(normalizedNumber) && !TextUtils.isEmpty(minMatch)) {
+                    lookups.add(new PhoneLookup(entry, normalizedNumber, minMatch,
+                            PhoneNumberUtils.formatNumberToE164(number, countryIso)));
+                    minMatches.add(minMatch);
+                }
+            }
+            if (lookups.isEmpty()) {
+                return entries;
+            }
+
+            StringBuilder selection = new StringBuilder(Data._ID
+                    + " IN (SELECT DISTINCT data_id FROM phone_lookup WHERE min_match IN (");
+            for (int i = 0; i < minMatches.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append("))");
+            Cursor cursor = mContext.getContentResolver().query(PHONES_WITH_PRESENCE_URI,
+                    CALLER_ID_PROJECTION, selection.toString(),
+                    minMatches.toArray(new String[minMatches.size()]), null);
+            if (cursor == null) {
+                Log.w(TAG, "getContactInfoForPhoneNumbers returned NULL cursor!"
+                        + " contact uri used " + PHONES_WITH_PRESENCE_URI);
+                return entries;
+            }
+
+            try {
+                while (cursor.moveToNext() && !lookups.isEmpty()) {
+                    Iterator<PhoneLookup> it = lookups.iterator();
+                    while (it.hasNext()) {
+                        PhoneLookup lookup = it.next();
+                        if (lookup.matches(cursor)) {
+                            // The first matching row wins, like moveToFirst() in
+                            // getContactInfoForPhoneNumber().
+                            fillPhoneTypeContact(lookup.mEntry, cursor);
+                            it.remove();
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return entries;
+        }
+
         /**
          * @return a Contact containing the info for the profile.
          */
@@ -932,7 +1344,7 @@ public class Contact {
             byte[] data = loadAvatarData(contact);
 
             synchronized (contact) {
-                contact.mAvatarData = data;
+                contact.setAvatarData(data);
             }
         }
 
@@ -950,20 +1362,18 @@ public class Contact {
             byte[] data = loadAvatarData(contact);
 
             synchronized (contact) {
-                contact.mAvatarData = data;
+                contact.setAvatarData(data);
             }
         }
         /*
          * Load the avatar data from the cursor into memory.  Don't decode the data
-         * until someone calls for it (see getAvatar).  Hang onto the raw data so that
-         * we can compare it when the data is reloaded.
-         * TODO: consider comparing a checksum so that we don't have to hang onto
-         * the raw bytes after the image is decoded.
+         * until someone calls for it (see getAvatar), which then drops it. Its hash is
+         * kept to compare it when the data is reloaded.
          */
         private byte[] loadAvatarData(Contact entry) {
             byte [] data = null;
 
-            if ((!entry.mIsMe && entry.mPersonId == 0) || entry.mAvatar != null) {
+            if (!entry.mIsMe && entry.mPersonId == 0) {
                 return null;
             }
 
@@ -1025,111 +1435,359 @@ public class Contact {
             if (cursor != null) {
                 try {
                     while (cursor.moveToNext()) {
-                        boolean found = false;
-                        synchronized (entry) {
-                            entry.mContactMethodId = cursor.getLong(EMAIL_ID_COLUMN);
-                            entry.mPresenceResId = getPresenceIconResourceId(
-                                    cursor.getInt(EMAIL_STATUS_COLUMN));
-                            entry.mPersonId = cursor.getLong(EMAIL_CONTACT_ID_COLUMN);
-                            entry.mSendToVoicemail =
-                                    cursor.getInt(EMAIL_SEND_TO_VOICEMAIL_COLUMN) == 1;
-
-                            String name = cursor.getString(EMAIL_NAME_COLUMN);
-                            if (TextUtils.isEmpty(name)) {
-                                name = cursor.getString(EMAIL_CONTACT_NAME_COLUMN);
-                            }
-                            if (!TextUtils.isEmpty(name)) {
-                                entry.mName = name;
-                                if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
-                                    log("getContactInfoForEmailAddress: name=" + entry.mName +
-                                            ", email=" + email + ", presence=" +
-                                            entry.mPresenceResId);
-                                }
-                                found = true;
-                            }
+                        if (fillEmailTypeContact(entry, cursor)) {
+                            break;
                         }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return entry;
+        }
 
-                        if (found) {
-                            byte[] data = loadAvatarData(entry);
-                            synchronized (entry) {
-                                entry.mAvatarData = data;
-                            }
+        /**
+         * Queries the contact email table for the names of the contacts' email addresses,
+         * all at once.
+         */
+        private HashMap<Contact, Contact> getContactInfoForEmailAddresses(
+                List<Contact> contacts) {
+            HashMap<Contact, Contact> entries = new HashMap<Contact, Contact>();
+            if (contacts.isEmpty()) {
+                return entries;
+            }
+            StringBuilder selection = new StringBuilder("UPPER(" + Email.DATA + ") IN (");
+            String[] args = new String[contacts.size()];
+            for (int i = 0; i < args.length; i++) {
+                Contact c = contacts.get(i);
+                Contact entry = new Contact(c.mNumber);
+                entry.mContactMethodType = CONTACT_METHOD_TYPE_EMAIL;
+                entries.put(c, entry);
+                selection.append(i == 0 ? "UPPER(?)" : ",UPPER(?)");
+                args[i] = c.mNumber;
+            }
+            selection.append(") AND " + Data.MIMETYPE + "='" + Email.CONTENT_ITEM_TYPE + "'");
 
-                            break;
+            Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                    EMAIL_WITH_PRESENCE_URI,
+                    EMAIL_PROJECTION,
+                    selection.toString(),
+                    args,
+                    null);
+
+            if (cursor != null) {
+                HashSet<Contact> found = new HashSet<Contact>();
+                try {
+                    while (cursor.moveToNext()) {
+                        String email = cursor.getString(EMAIL_DATA_COLUMN);
+                        for (Contact c : contacts) {
+                            Contact entry = entries.get(c);
+                            if (!found.contains(entry) && c.mNumber.equalsIgnoreCase(email)
+                                    && fillEmailTypeContact(entry, cursor)) {
+                                found.add(entry);
+                            }
                         }
                     }
                 } finally {
                     cursor.close();
                 }
             }
-            return entry;
+            return entries;
+        }
+
+        // Fills in the contact from a row of the email query. Returns true, and loads the
+        // avatar, if the row has a name, otherwise the next row should be tried.
+        private boolean fillEmailTypeContact(final Contact entry, final Cursor cursor) {
+            synchronized (entry) {
+                entry.mContactMethodId = cursor.getLong(EMAIL_ID_COLUMN);
+                entry.mPresenceResId = getPresenceIconResourceId(
+                        cursor.getInt(EMAIL_STATUS_COLUMN));
+                entry.mPersonId = cursor.getLong(EMAIL_CONTACT_ID_COLUMN);
+                entry.mSendToVoicemail =
+                        cursor.getInt(EMAIL_SEND_TO_VOICEMAIL_COLUMN) == 1;
+
+                String name = cursor.getString(EMAIL_NAME_COLUMN);
+                if (TextUtils.isEmpty(name)) {
+                    name = cursor.getString(EMAIL_CONTACT_NAME_COLUMN);
+                }
+                if (TextUtils.isEmpty(name)) {
+                    return false;
+                }
+                entry.mName = name;
+                if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                    log("getContactInfoForEmailAddress: name=" + entry.mName +
+                            ", email=" + entry.mNumber + ", presence=" +
+                            entry.mPresenceResId);
+                }
+            }
+
+            byte[] data = loadAvatarData(entry);
+            synchronized (entry) {
+                entry.setAvatarData(data);
+            }
+            return true;
+        }
+
+        /**
+         * Loads the contacts of the last snapshot into the cache, unless their number was
+         * already looked up. They're stale, so each one is refreshed the first time it's
+         * asked for.
+         */
+        void loadSnapshot() {
+            File file = new File(mContext.getCacheDir(), SNAPSHOT_FILE);
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                return;     // Nothing saved yet.
+            }
+            long start = SystemClock.elapsedRealtime();
+            int count = 0;
+            try {
+                if (in.readInt() != SNAPSHOT_VERSION
+                        || !Build.FINGERPRINT.equals(in.readUTF())) {
+                    // The presence resource ids may have changed, start over.
+                    return;
+                }
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    putIfAbsent(readContact(in));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Can't read the contact snapshot", e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                log("loadSnapshot: " + count + " contacts in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        }
+
+        /**
+         * Writes the contacts that were found in the contacts provider to the snapshot.
+         */
+        void saveSnapshot() {
+            ArrayList<Contact> contacts = new ArrayList<Contact>();
+            for (CopyOnWriteArrayList<Contact> alc : mContactsHash.values()) {
+                for (Contact c : alc) {
+                    if (contacts.size() < SNAPSHOT_MAX_CONTACTS && !c.mIsMe
+                            && c.existsInDatabase()) {
+                        contacts.add(c);
+                    }
+                }
+            }
+
+            synchronized (mSnapshotLock) {
+                File file = new File(mContext.getCacheDir(), SNAPSHOT_FILE);
+                File tmp = new File(mContext.getCacheDir(), SNAPSHOT_FILE + ".tmp");
+                try {
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(tmp)));
+                    try {
+                        out.writeInt(SNAPSHOT_VERSION);
+                        out.writeUTF(Build.FINGERPRINT);
+                        out.writeInt(contacts.size());
+                        for (Contact c : contacts) {
+                            writeContact(out, c);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(file)) {
+                        Log.w(TAG, "Can't rename the contact snapshot");
+                        tmp.delete();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Can't write the contact snapshot", e);
+                    tmp.delete();
+                }
+            }
+        }
+
+        private static void writeContact(DataOutputStream out, Contact c) throws IOException {
+            synchronized (c) {
+                out.writeUTF(c.mNumber);
+                writeString(out, c.mNumberE164);
+                writeString(out, c.mName);
+                writeString(out, c.mLabel);
+                out.writeLong(c.mPersonId);
+                out.writeLong(c.mContactMethodId);
+                out.writeInt(c.mContactMethodType);
+                out.writeInt(c.mPresenceResId);
+                writeString(out, c.mPresenceText);
+                out.writeBoolean(c.mSendToVoicemail);
+            }
+        }
+
+        private static Contact readContact(DataInputStream in) throws IOException {
+            String number = in.readUTF();
+            Contact c = new Contact(number);
+            c.mNumber = number;     // As it was saved, it's formatted already.
+            c.mNumberE164 = readString(in);
+            c.mName = readString(in);
+            c.mLabel = readString(in);
+            c.mPersonId = in.readLong();
+            c.mContactMethodId = in.readLong();
+            c.mContactMethodType = in.readInt();
+            c.mPresenceResId = in.readInt();
+            c.mPresenceText = readString(in);
+            c.mSendToVoicemail = in.readBoolean();
+            c.notSynchronizedUpdateNameAndNumber();
+            c.mNumberIsModified = false;
+            c.mFromSnapshot = true;
+            return c;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        // Adds a contact from the snapshot, unless the number was looked up meanwhile.
+        private void putIfAbsent(Contact contact) {
+            final String number = contact.mNumber;
+            final boolean isNotRegularPhoneNumber = Mms.isEmailAddress(number) ||
+                    MessageUtils.isAlias(number);
+            final String key = isNotRegularPhoneNumber ? number : key(number);
+            while (true) {
+                CopyOnWriteArrayList<Contact> candidates = getCandidates(key);
+                synchronized (candidates) {
+                    if (mContactsHash.get(key) != candidates) {
+                        continue;
+                    }
+                    if (find(candidates, number, isNotRegularPhoneNumber) == null) {
+                        candidates.add(contact);
+                        putLookupKey(lookupKey(number, isNotRegularPhoneNumber), contact);
+                    }
+                    return;
+                }
+            }
         }
 
         // Invert and truncate to five characters the phoneNumber so that we
         // can use it as the key in a hashtable.  We keep a mapping of this
         // key to a list of all contacts which have the same key.
-        private String key(String phoneNumber, CharBuffer keyBuffer) {
-            keyBuffer.clear();
-            keyBuffer.mark();
+        private static String key(String phoneNumber) {
+            char[] key = new char[KEY_MAXIMUM_LENGTH];
 
             int position = phoneNumber.length();
             int resultCount = 0;
             while (--position >= 0) {
                 char c = phoneNumber.charAt(position);
                 if (Character.isDigit(c)) {
-                    keyBuffer.put(c);
-                    if (++resultCount == STATIC_KEY_BUFFER_MAXIMUM_LENGTH) {
+                    key[resultCount] = c;
+                    if (++resultCount == KEY_MAXIMUM_LENGTH) {
                         break;
                     }
                 }
             }
-            keyBuffer.reset();
             if (resultCount > 0) {
-                return keyBuffer.toString();
+                return new String(key, 0, resultCount);
             } else {
                 // there were no usable digits in the input phoneNumber
                 return phoneNumber;
             }
         }
 
-        // Reuse this so we don't have to allocate each time we go through this
-        // "get" function.
-        static final int STATIC_KEY_BUFFER_MAXIMUM_LENGTH = 5;
-        static CharBuffer sStaticKeyBuffer = CharBuffer.allocate(STATIC_KEY_BUFFER_MAXIMUM_LENGTH);
+        static final int KEY_MAXIMUM_LENGTH = 5;
+
+        // Returns the key of mContacts for the number or email address. Different
+        // spellings of a number map to the same key only if they compare equal anyway.
+        private static String lookupKey(String numberOrEmail, boolean isNotRegularPhoneNumber) {
+            if (isNotRegularPhoneNumber) {
+                return numberOrEmail;
+            }
+            String stripped = PhoneNumberUtils.stripSeparators(numberOrEmail);
+            return TextUtils.isEmpty(stripped) ? numberOrEmail : stripped;
+        }
+
+        private static boolean matches(Contact c, String numberOrEmail,
+                boolean isNotRegularPhoneNumber) {
+            return isNotRegularPhoneNumber ? numberOrEmail.equals(c.mNumber)
+                    : PhoneNumberUtils.compare(numberOrEmail, c.mNumber);
+        }
+
+        private static Contact find(List<Contact> candidates, String numberOrEmail,
+                boolean isNotRegularPhoneNumber) {
+            for (Contact c : candidates) {
+                if (matches(c, numberOrEmail, isNotRegularPhoneNumber)) {
+                    return c;
+                }
+            }
+            return null;
+        }
+
+        private CopyOnWriteArrayList<Contact> getCandidates(String key) {
+            CopyOnWriteArrayList<Contact> candidates = mContactsHash.get(key);
+            if (candidates == null) {
+                candidates = new CopyOnWriteArrayList<Contact>();
+                CopyOnWriteArrayList<Contact> existing =
+                        mContactsHash.putIfAbsent(key, candidates);
+                if (existing != null) {
+                    candidates = existing;
+                }
+            }
+            return candidates;
+        }
 
         private Contact internalGet(String numberOrEmail, boolean isMe) {
-            synchronized (ContactsCache.this) {
-                // See if we can find "number" in the hashtable.
-                // If so, just return the result.
-                final boolean isNotRegularPhoneNumber = isMe || Mms.isEmailAddress(numberOrEmail) ||
-                        MessageUtils.isAlias(numberOrEmail);
-                final String key = isNotRegularPhoneNumber ?
-                        numberOrEmail : key(numberOrEmail, sStaticKeyBuffer);
-
-                ArrayList<Contact> candidates = mContactsHash.get(key);
-                if (candidates != null) {
-                    int length = candidates.size();
-                    for (int i = 0; i < length; i++) {
-                        Contact c= candidates.get(i);
-                        if (isNotRegularPhoneNumber) {
-                            if (numberOrEmail.equals(c.mNumber)) {
-                                return c;
-                            }
-                        } else {
-                            if (PhoneNumberUtils.compare(numberOrEmail, c.mNumber)) {
-                                return c;
-                            }
+            final boolean isNotRegularPhoneNumber = isMe || Mms.isEmailAddress(numberOrEmail) ||
+                    MessageUtils.isAlias(numberOrEmail);
+            final String lookupKey = lookupKey(numberOrEmail, isNotRegularPhoneNumber);
+
+            // See if we can find "number" in the hashtable.
+            // If so, just return the result.
+            Contact c = mContacts.get(lookupKey);
+            if (c != null) {
+                mStats.recordHit();
+                return c;
+            }
+
+            final String key = isNotRegularPhoneNumber ?
+                    numberOrEmail : key(numberOrEmail);
+            while (true) {
+                CopyOnWriteArrayList<Contact> candidates = getCandidates(key);
+                c = find(candidates, numberOrEmail, isNotRegularPhoneNumber);
+                if (c == null) {
+                    synchronized (candidates) {
+                        if (mContactsHash.get(key) != candidates) {
+                            // Emptied and dropped meanwhile, start over.
+                            continue;
+                        }
+                        // Another thread may have added it since we looked.
+                        c = find(candidates, numberOrEmail, isNotRegularPhoneNumber);
+                        if (c == null) {
+                            mStats.recordMiss();
+                            c = isMe ?
+                                    new Contact(true) :
+                                    new Contact(numberOrEmail);
+                            candidates.add(c);
+                            putLookupKey(lookupKey, c);
+                            return c;
                         }
                     }
-                } else {
-                    candidates = new ArrayList<Contact>();
-                    // call toString() since it may be the static CharBuffer
-                    mContactsHash.put(key, candidates);
                 }
-                Contact c = isMe ?
-                        new Contact(true) :
-                        new Contact(numberOrEmail);
-                candidates.add(c);
+                // Another spelling of a number we know, remember this one too.
+                mStats.recordHit();
+                Contact previous = putLookupKey(lookupKey, c);
+                if (previous != null) {
+                    return previous;
+                }
+                if (!candidates.contains(c)) {
+                    // It was removed meanwhile, don't keep it around.
+                    mContacts.remove(lookupKey, c);
+                    c.mLookupKeys.remove(lookupKey);
+                }
                 return c;
             }
         }
@@ -1137,49 +1795,82 @@ public class Contact {
         void invalidate() {
             // Don't remove the contacts. Just mark them stale so we'll update their
             // info, particularly their presence.
-            synchronized (ContactsCache.this) {
-                for (ArrayList<Contact> alc : mContactsHash.values()) {
-                    for (Contact c : alc) {
-                        synchronized (c) {
-                            c.mIsStale = true;
-                        }
+            for (CopyOnWriteArrayList<Contact> alc : mContactsHash.values()) {
+                for (Contact c : alc) {
+                    synchronized (c) {
+                        c.mIsStale = true;
                     }
                 }
             }
         }
 
-        // Remove a contact from the ContactsCache based on the number or email address
-        private void remove(Contact contact) {
-            synchronized (ContactsCache.this) {
-                String number = contact.getNumber();
-                final boolean isNotRegularPhoneNumber = contact.isMe() ||
-                                    Mms.isEmailAddress(number) ||
-                                    MessageUtils.isAlias(number);
-                final String key = isNotRegularPhoneNumber ?
-                        number : key(number, sStaticKeyBuffer);
-                ArrayList<Contact> candidates = mContactsHash.get(key);
-                if (candidates != null) {
-                    int length = candidates.size();
-                    for (int i = 0; i < length; i++) {
-                        Contact c = candidates.get(i);
-                        if (isNotRegularPhoneNumber) {
-                            if (number.equals(c.mNumber)) {
-                                candidates.remove(i);
-                                break;
-                            }
-                        } else {
-                            if (PhoneNumberUtils.compare(number, c.mNumber)) {
-                                candidates.remove(i);
-                                break;
-                            }
-                        }
+        // Replaces the contacts for the last digits of the number of the contact with it.
+        private void replace(Contact contact) {
+            final String key = key(contact.mNumber);
+            while (true) {
+                CopyOnWriteArrayList<Contact> candidates = getCandidates(key);
+                synchronized (candidates) {
+                    if (mContactsHash.get(key) != candidates) {
+                        continue;
                     }
-                    if (candidates.size() == 0) {
-                        mContactsHash.remove(key);
+                    for (Contact c : candidates) {
+                        removeLookupKeys(c);
                     }
+                    candidates.clear();
+                    candidates.add(contact);
+                    String lookupKey = lookupKey(contact.mNumber, false);
+                    mContacts.put(lookupKey, contact);
+                    contact.mLookupKeys.addIfAbsent(lookupKey);
+                    return;
                 }
             }
         }
+
+        // Remove a contact from the ContactsCache based on the number or email address
+        private void remove(Contact contact) {
+            String number = contact.getNumber();
+            final boolean isNotRegularPhoneNumber = contact.isMe() ||
+                                Mms.isEmailAddress(number) ||
+                                MessageUtils.isAlias(number);
+            final String key = isNotRegularPhoneNumber ?
+                    number : key(number);
+            CopyOnWriteArrayList<Contact> candidates = mContactsHash.get(key);
+            if (candidates == null) {
+                return;
+            }
+            Contact removed;
+            synchronized (candidates) {
+                removed = find(candidates, number, isNotRegularPhoneNumber);
+                if (removed != null) {
+                    candidates.remove(removed);
+                    mStats.recordEvictions(1);
+                }
+                if (candidates.size() == 0) {
+                    mContactsHash.remove(key, candidates);
+                }
+            }
+            if (removed != null) {
+                removeLookupKeys(removed);
+            }
+        }
+
+        // Maps the key to the contact unless it maps to another one already, which is
+        // returned. The contact keeps the key, so it's removed with the contact.
+        private Contact putLookupKey(String lookupKey, Contact contact) {
+            Contact previous = mContacts.putIfAbsent(lookupKey, contact);
+            if (previous == null) {
+                contact.mLookupKeys.addIfAbsent(lookupKey);
+            }
+            return previous;
+        }
+
+        // Drops every spelling of the contact's number from mContacts.
+        private void removeLookupKeys(Contact contact) {
+            for (String lookupKey : contact.mLookupKeys) {
+                mContacts.remove(lookupKey, contact);
+            }
+            contact.mLookupKeys.clear();
+        }
     }
 
     private static void log(String msg) {
@@ -71,12 +71,28 @@ public class ContactList extends ArrayList<Contact>  {
      */
     public static ContactList getByIds(String spaceSepIds, boolean canBlock) {
         ContactList list = new ContactList();
-        for (RecipientIdCache.Entry entry : RecipientIdCache.getAddresses(spaceSepIds)) {
-            if (entry != null && !TextUtils.isEmpty(entry.number)) {
-                Contact contact = Contact.get(entry.number, canBlock);
-                contact.setRecipientId(entry.id);
-                list.add(contact);
+        // Walk the ids in place rather than splitting them, this runs for every thread
+        // when the conversation list is loaded.
+        final int length = spaceSepIds.length();
+        int start = 0;
+        while (start < length) {
+            int end = spaceSepIds.indexOf(' ', start);
+            if (end < 0) {
+                end = length;
+            }
+            long id = RecipientIdCache.parseId(spaceSepIds, start, end);
+            start = end + 1;
+            if (id < 0) {
+                // skip this id
+                continue;
+            }
+            String number = RecipientIdCache.getAddress(id);
+            if (TextUtils.isEmpty(number)) {
+                continue;
             }
+            Contact contact = Contact.get(number, canBlock);
+            contact.setRecipientId(id);
+            list.add(contact);
         }
         return list;
     }
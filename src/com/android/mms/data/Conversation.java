@@ -3,8 +3,9 @@ package com.android.mms.data;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.app.Activity;
 import android.content.AsyncQueryHandler;
@@ -12,10 +13,15 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.provider.BaseColumns;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -26,6 +32,8 @@ import android.provider.Telephony.ThreadsColumns;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
 
 import com.android.mms.LogTag;
 import com.android.mms.MmsApp;
@@ -35,6 +43,7 @@ import com.android.mms.transaction.MmsMessageSender;
 import com.android.mms.ui.ComposeMessageActivity;
 import com.android.mms.ui.MessageUtils;
 import com.android.mms.util.AddressUtils;
+import com.android.mms.util.CacheStatsRecorder;
 import com.android.mms.util.DraftCache;
 
 import com.google.android.mms.pdu.PduHeaders;
@@ -60,6 +69,8 @@ public class Conversation {
         Threads._ID,
         Threads.READ
     };
+    // The column of UNREAD_PROJECTION with the read state, the thread ID is at ID.
+    private static final int UNREAD_READ = 1;
 
     private static final String UNREAD_SELECTION = "(read=0 OR seen=0)";
 
@@ -99,9 +110,23 @@ public class Conversation {
     private static boolean sLoadingThreads;
     private static boolean sDeletingThreads;
     private static Object sDeletingThreadsLock = new Object();
+
+    private static final int MSG_SYNC_ALL = 1;
+    private static final int MSG_SYNC_CHANGES = 2;
+    // Change notifications come in bursts, like one per part of a multipart SMS.
+    private static final long SYNC_CHANGES_DELAY_MS = 300;
+    private static Handler sSyncHandler;
+    // The rest are only used on the thread of sSyncHandler.
+    private static boolean sCachedAllThreads;
+    private static long sMaxDate;
+    private static long sMaxThreadId;
+
     private boolean mMarkAsReadBlocked;
     private boolean mMarkAsReadWaiting;
 
+    // Where this conversation is in Cache, or null. Guarded by the Cache lock.
+    private Cache.Entry mCacheEntry;
+
     private Conversation(Context context) {
         mContext = context;
         mRecipients = new ContactList();
@@ -469,6 +494,7 @@ public class Conversation {
         }
         if (mThreadId <= 0) {
             mThreadId = getOrCreateThreadId(mContext, mRecipients);
+            Cache.reindex(this);
         }
         if (DEBUG || DELETEDEBUG) {
             LogTag.debug("ensureThreadId after: " + mThreadId);
@@ -501,6 +527,7 @@ public class Conversation {
 
         // Invalidate thread ID because the recipient set has changed.
         mThreadId = 0;
+        Cache.reindex(this);
 
         if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
             Log.d(TAG, "setRecipients after: " + this.toString());
@@ -927,6 +954,7 @@ public class Conversation {
         ContactList recipients = ContactList.getByIds(recipientIds, allowQuery);
         synchronized (conv) {
             conv.mRecipients = recipients;
+            Cache.reindex(conv);
         }
 
         if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
@@ -936,13 +964,83 @@ public class Conversation {
 
     /**
      * Private cache for the use of the various forms of Conversation.get.
+     * <p>
+     * Conversations are indexed by thread ID and by a key computed from their recipient
+     * set, so neither kind of lookup scans the whole cache. The keys are copied into an
+     * {@link Entry} when a conversation is added, and a conversation whose thread ID or
+     * recipients change calls {@link #reindex}, so the cache never needs to lock a
+     * conversation. Lookups only take the read lock.
      */
     private static class Cache {
         private static Cache sInstance = new Cache();
         static Cache getInstance() { return sInstance; }
-        private final HashSet<Conversation> mCache;
+
+        private static class Entry {
+            final Conversation mConv;
+            final long mThreadId;
+            final int mRecipientsKey;
+            ContactList mRecipients;
+
+            Entry(Conversation conv, long threadId, ContactList recipients, int recipientsKey) {
+                mConv = conv;
+                mThreadId = threadId;
+                mRecipients = recipients;
+                mRecipientsKey = recipientsKey;
+            }
+        }
+
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+        // If several conversations share a thread ID (new ones all have 0) the one
+        // added last is found.
+        private final LongSparseArray<Entry> mByThreadId = new LongSparseArray<Entry>();
+        // Every cached conversation is in exactly one of these buckets.
+        private final SparseArray<ArrayList<Entry>> mByRecipients =
+                new SparseArray<ArrayList<Entry>>();
+        private int mSize;
+        private final CacheStatsRecorder mStats = new CacheStatsRecorder("Conversation.Cache") {
+            @Override
+            public int getEntryCount() {
+                mLock.readLock().lock();
+                try {
+                    return mSize;
+                } finally {
+                    mLock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                // The recipients are shared with the contact cache, which counts them.
+                long size = 0;
+                mLock.readLock().lock();
+                try {
+                    for (int i = 0; i < mByRecipients.size(); i++) {
+                        for (Entry entry : mByRecipients.valueAt(i)) {
+                            String snippet = entry.mConv.mSnippet;
+                            size += CONVERSATION_BYTES
+                                    + (snippet == null ? 0 : 2 * snippet.length());
+                        }
+                    }
+                } finally {
+                    mLock.readLock().unlock();
+                }
+                return size;
+            }
+        };
+        // Rough size of a cached Conversation and its entry, apart from the snippet.
+        private static final int CONVERSATION_BYTES = 160;
+
         private Cache() {
-            mCache = new HashSet<Conversation>(10);
+        }
+
+        // Like ContactList.equals, doesn't depend on the order of the contacts, and
+        // compares them by identity.
+        private static int recipientsKey(ContactList list) {
+            int key = 0;
+            for (int i = 0; i < list.size(); i++) {
+                key += System.identityHashCode(list.get(i));
+            }
+            return key;
         }
 
         /**
@@ -950,21 +1048,22 @@ public class Conversation {
          * null if it's not in cache.
          */
         static Conversation get(long threadId) {
-            synchronized (sInstance) {
-                if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-                    LogTag.debug("Conversation get with threadId: " + threadId);
-                }
-                for (Conversation c : sInstance.mCache) {
-                    if (DEBUG) {
-                        LogTag.debug("Conversation get() threadId: " + threadId +
-                                " c.getThreadId(): " + c.getThreadId());
-                    }
-                    if (c.getThreadId() == threadId) {
-                        return c;
-                    }
-                }
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                LogTag.debug("Conversation get with threadId: " + threadId);
             }
-            return null;
+            Entry entry;
+            sInstance.mLock.readLock().lock();
+            try {
+                entry = sInstance.mByThreadId.get(threadId);
+            } finally {
+                sInstance.mLock.readLock().unlock();
+            }
+            if (entry == null) {
+                sInstance.mStats.recordMiss();
+                return null;
+            }
+            sInstance.mStats.recordHit();
+            return entry.mConv;
         }
 
         /**
@@ -972,17 +1071,23 @@ public class Conversation {
          * list, or null if it's not in cache.
          */
         static Conversation get(ContactList list) {
-            synchronized (sInstance) {
-                if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-                    LogTag.debug("Conversation get with ContactList: " + list);
-                }
-                for (Conversation c : sInstance.mCache) {
-                    if (c.getRecipients().equals(list)) {
-                        return c;
-                    }
-                }
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                LogTag.debug("Conversation get with ContactList: " + list);
             }
-            return null;
+            int key = recipientsKey(list);
+            Entry entry;
+            sInstance.mLock.readLock().lock();
+            try {
+                entry = sInstance.findLocked(list, key);
+            } finally {
+                sInstance.mLock.readLock().unlock();
+            }
+            if (entry == null) {
+                sInstance.mStats.recordMiss();
+                return null;
+            }
+            sInstance.mStats.recordHit();
+            return entry.mConv;
         }
 
         /**
@@ -991,21 +1096,32 @@ public class Conversation {
          * cache, but rather update it in place.
          */
         static void put(Conversation c) {
-            synchronized (sInstance) {
-                // We update cache entries in place so people with long-
-                // held references get updated.
-                if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-                    Log.d(TAG, "Conversation.Cache.put: conv= " + c + ", hash: " + c.hashCode());
-                }
+            // We update cache entries in place so people with long-
+            // held references get updated.
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                Log.d(TAG, "Conversation.Cache.put: conv= " + c + ", hash: " + c.hashCode());
+            }
 
-                if (sInstance.mCache.contains(c)) {
-                    if (DEBUG) {
-                        dumpCache();
+            boolean duplicate;
+            synchronized (c) {
+                int key = recipientsKey(c.mRecipients);
+                sInstance.mLock.writeLock().lock();
+                try {
+                    duplicate = c.mCacheEntry != null
+                            || sInstance.findLocked(c.mRecipients, key) != null;
+                    if (!duplicate) {
+                        sInstance.addLocked(c, key);
                     }
-                    throw new IllegalStateException("cache already contains " + c +
-                            " threadId: " + c.mThreadId);
+                } finally {
+                    sInstance.mLock.writeLock().unlock();
+                }
+            }
+            if (duplicate) {
+                if (DEBUG) {
+                    dumpCache();
                 }
-                sInstance.mCache.add(c);
+                throw new IllegalStateException("cache already contains " + c +
+                        " threadId: " + c.getThreadId());
             }
         }
 
@@ -1013,55 +1129,96 @@ public class Conversation {
          * Replace the specified conversation in the cache. This is used in cases where we
          * lookup a conversation in the cache by threadId, but don't find it. The caller
          * then builds a new conversation (from the cursor) and tries to add it, but gets
-         * an exception that the conversation is already in the cache, because the hash
-         * is based on the recipients and it's there under a stale threadId. In this function
+         * an exception that the conversation is already in the cache, because the
+         * recipients are there under a stale threadId. In this function
          * we remove the stale entry and add the new one. Returns true if the operation is
          * successful
          */
         static boolean replace(Conversation c) {
-            synchronized (sInstance) {
-                if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-                    LogTag.debug("Conversation.Cache.put: conv= " + c + ", hash: " + c.hashCode());
-                }
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                LogTag.debug("Conversation.Cache.put: conv= " + c + ", hash: " + c.hashCode());
+            }
 
-                if (!sInstance.mCache.contains(c)) {
-                    if (DEBUG) {
-                        dumpCache();
+            synchronized (c) {
+                int key = recipientsKey(c.mRecipients);
+                sInstance.mLock.writeLock().lock();
+                try {
+                    Entry stale = sInstance.findLocked(c.mRecipients, key);
+                    if (stale != null) {
+                        sInstance.removeLocked(stale);
+                        if (c.mCacheEntry != null) {
+                            sInstance.removeLocked(c.mCacheEntry);
+                        }
+                        sInstance.addLocked(c, key);
+                        return true;
                     }
-                    return false;
+                } finally {
+                    sInstance.mLock.writeLock().unlock();
                 }
-                // Here it looks like we're simply removing and then re-adding the same object
-                // to the hashset. Because the hashkey is the conversation's recipients, and not
-                // the thread id, we'll actually remove the object with the stale threadId and
-                // then add the the conversation with updated threadId, both having the same
-                // recipients.
-                sInstance.mCache.remove(c);
-                sInstance.mCache.add(c);
-                return true;
             }
+            if (DEBUG) {
+                dumpCache();
+            }
+            return false;
         }
 
-        static void remove(long threadId) {
-            synchronized (sInstance) {
-                if (DEBUG) {
-                    LogTag.debug("remove threadid: " + threadId);
-                    dumpCache();
+        /**
+         * Updates the keys of the conversation after its thread ID or recipients changed.
+         * Does nothing if it's not in the cache. The caller must hold the lock of the
+         * conversation.
+         */
+        static void reindex(Conversation c) {
+            int key = recipientsKey(c.mRecipients);
+            sInstance.mLock.writeLock().lock();
+            try {
+                Entry entry = c.mCacheEntry;
+                if (entry == null) {
+                    return;
                 }
-                for (Conversation c : sInstance.mCache) {
-                    if (c.getThreadId() == threadId) {
-                        sInstance.mCache.remove(c);
-                        return;
-                    }
+                if (entry.mThreadId == c.mThreadId && entry.mRecipientsKey == key) {
+                    entry.mRecipients = c.mRecipients;
+                    return;
+                }
+                sInstance.removeLocked(entry);
+                sInstance.addLocked(c, key);
+            } finally {
+                sInstance.mLock.writeLock().unlock();
+            }
+        }
+
+        static void remove(long threadId) {
+            if (DEBUG) {
+                LogTag.debug("remove threadid: " + threadId);
+                dumpCache();
+            }
+            sInstance.mLock.writeLock().lock();
+            try {
+                Entry entry = sInstance.mByThreadId.get(threadId);
+                if (entry != null) {
+                    sInstance.removeLocked(entry);
+                    sInstance.mStats.recordEvictions(1);
                 }
+            } finally {
+                sInstance.mLock.writeLock().unlock();
             }
         }
 
         static void dumpCache() {
-            synchronized (sInstance) {
-                LogTag.debug("Conversation dumpCache: ");
-                for (Conversation c : sInstance.mCache) {
-                    LogTag.debug("   conv: " + c.toString() + " hash: " + c.hashCode());
+            ArrayList<Conversation> convs = new ArrayList<Conversation>();
+            sInstance.mLock.readLock().lock();
+            try {
+                for (int i = 0; i < sInstance.mByRecipients.size(); i++) {
+                    for (Entry entry : sInstance.mByRecipients.valueAt(i)) {
+                        convs.add(entry.mConv);
+                    }
                 }
+            } finally {
+                sInstance.mLock.readLock().unlock();
+            }
+            // Log without the lock held, toString() locks the conversation.
+            LogTag.debug("Conversation dumpCache: ");
+            for (Conversation c : convs) {
+                LogTag.debug("   conv: " + c.toString() + " hash: " + c.hashCode());
             }
         }
 
@@ -1070,35 +1227,120 @@ public class Conversation {
          * the provided set of thread IDs.
          */
         static void keepOnly(Set<Long> threads) {
-            synchronized (sInstance) {
-                Iterator<Conversation> iter = sInstance.mCache.iterator();
-                while (iter.hasNext()) {
-                    Conversation c = iter.next();
-                    if (!threads.contains(c.getThreadId())) {
-                        iter.remove();
+            sInstance.mLock.writeLock().lock();
+            try {
+                ArrayList<Entry> gone = new ArrayList<Entry>();
+                for (int i = 0; i < sInstance.mByRecipients.size(); i++) {
+                    for (Entry entry : sInstance.mByRecipients.valueAt(i)) {
+                        if (!threads.contains(entry.mThreadId)) {
+                            gone.add(entry);
+                        }
                     }
                 }
+                for (Entry entry : gone) {
+                    sInstance.removeLocked(entry);
+                }
+                if (!gone.isEmpty()) {
+                    sInstance.mStats.recordEvictions(gone.size());
+                }
+            } finally {
+                sInstance.mLock.writeLock().unlock();
             }
             if (DEBUG) {
                 LogTag.debug("after keepOnly");
                 dumpCache();
             }
         }
+
+        private Entry findLocked(ContactList list, int key) {
+            ArrayList<Entry> bucket = mByRecipients.get(key);
+            if (bucket != null) {
+                for (Entry entry : bucket) {
+                    if (entry.mRecipients.equals(list)) {
+                        return entry;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void addLocked(Conversation c, int recipientsKey) {
+            Entry entry = new Entry(c, c.mThreadId, c.mRecipients, recipientsKey);
+            mByThreadId.put(entry.mThreadId, entry);
+            ArrayList<Entry> bucket = mByRecipients.get(recipientsKey);
+            if (bucket == null) {
+                bucket = new ArrayList<Entry>(1);
+                mByRecipients.put(recipientsKey, bucket);
+            }
+            bucket.add(entry);
+            c.mCacheEntry = entry;
+            mSize++;
+        }
+
+        private void removeLocked(Entry entry) {
+            if (mByThreadId.get(entry.mThreadId) == entry) {
+                mByThreadId.remove(entry.mThreadId);
+            }
+            ArrayList<Entry> bucket = mByRecipients.get(entry.mRecipientsKey);
+            bucket.remove(entry);
+            if (bucket.isEmpty()) {
+                mByRecipients.remove(entry.mRecipientsKey);
+            }
+            entry.mConv.mCacheEntry = null;
+            mSize--;
+        }
     }
 
     /**
      * Set up the conversation cache.  To be called once at application
-     * startup time.
+     * startup time, and after threads were deleted. Every thread is read and filled
+     * again, so the surviving threads pick up the contacts of recipients the delete
+     * dropped from the contact cache. Between these, change notifications only fill
+     * the threads that got messages, see {@link #cacheChangedThreads}.
      */
     public static void init(final Context context) {
-        Thread thread = new Thread(new Runnable() {
+        Handler handler = getSyncHandler(context);
+        handler.removeMessages(MSG_SYNC_CHANGES);
+        handler.removeMessages(MSG_SYNC_ALL);
+        handler.sendEmptyMessage(MSG_SYNC_ALL);
+    }
+
+    // Creates the thread the cache is filled and updated on, and starts listening for
+    // changes to the messages.
+    private static synchronized Handler getSyncHandler(Context context) {
+        if (sSyncHandler == null) {
+            final Context appContext = context.getApplicationContext();
+            HandlerThread thread = new HandlerThread("Conversation.sync",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sSyncHandler = new Handler(thread.getLooper()) {
                 @Override
-                public void run() {
-                    cacheAllThreads(context);
+                public void handleMessage(Message msg) {
+                    switch (msg.what) {
+                        case MSG_SYNC_ALL:
+                            cacheAllThreads(appContext);
+                            break;
+                        case MSG_SYNC_CHANGES:
+                            if (sCachedAllThreads) {
+                                cacheChangedThreads(appContext);
+                            }
+                            break;
+                    }
                 }
-            }, "Conversation.init");
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.start();
+            };
+            // Both the SMS and the MMS provider notify this URI on every change.
+            appContext.getContentResolver().registerContentObserver(MmsSms.CONTENT_URI, true,
+                    new ContentObserver(sSyncHandler) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            if (!sSyncHandler.hasMessages(MSG_SYNC_CHANGES)) {
+                                sSyncHandler.sendEmptyMessageDelayed(MSG_SYNC_CHANGES,
+                                        SYNC_CHANGES_DELAY_MS);
+                            }
+                        }
+                    });
+        }
+        return sSyncHandler;
     }
 
     public static void markAllConversationsAsSeen(final Context context) {
@@ -1225,36 +1467,10 @@ public class Conversation {
         try {
             if (c != null) {
                 while (c.moveToNext()) {
-                    long threadId = c.getLong(ID);
-                    threadsOnDisk.add(threadId);
-
-                    // Try to find this thread ID in the cache.
-                    Conversation conv;
-                    synchronized (Cache.getInstance()) {
-                        conv = Cache.get(threadId);
-                    }
-
-                    if (conv == null) {
-                        // Make a new Conversation and put it in
-                        // the cache if necessary.
-                        conv = new Conversation(context, c, true);
-                        try {
-                            synchronized (Cache.getInstance()) {
-                                Cache.put(conv);
-                            }
-                        } catch (IllegalStateException e) {
-                            LogTag.error("Tried to add duplicate Conversation to Cache" +
-                                    " for threadId: " + threadId + " new conv: " + conv);
-                            if (!Cache.replace(conv)) {
-                                LogTag.error("cacheAllThreads cache.replace failed on " + conv);
-                            }
-                        }
-                    } else {
-                        // Or update in place so people with references
-                        // to conversations get updated too.
-                        fillFromCursor(context, conv, c, true);
-                    }
+                    threadsOnDisk.add(c.getLong(ID));
+                    cacheThread(context, c);
                 }
+                sCachedAllThreads = true;
             }
         } finally {
             if (c != null) {
@@ -1274,6 +1490,105 @@ public class Conversation {
         }
     }
 
+    /**
+     * Reads the threads that got a message, or were created, since the threads were last
+     * read into the cache, then updates the read state of the others and drops the
+     * deleted ones. Threads whose newest message is deleted are not noticed until the
+     * next time they get one.
+     */
+    private static void cacheChangedThreads(Context context) {
+        // A message that arrives within the same millisecond as the newest one we've seen
+        // doesn't move the date forward, so read that one again too.
+        String selection = Threads.DATE + ">=" + sMaxDate + " OR " +
+                Threads._ID + ">" + sMaxThreadId;
+        Cursor c = context.getContentResolver().query(sAllThreadsUri,
+                ALL_THREADS_PROJECTION, selection, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                LogTag.debug("[Conversation] cacheChangedThreads: " + c.getCount() +
+                        " threads changed");
+            }
+            while (c.moveToNext()) {
+                cacheThread(context, c);
+            }
+        } finally {
+            c.close();
+        }
+        syncReadAndDeletedThreads(context);
+    }
+
+    /**
+     * Marking a thread read doesn't change its date, so the read state of every thread is
+     * read again, along with the thread IDs to drop the threads that are not on disk
+     * anymore from the cache. Only reads those two columns.
+     */
+    private static void syncReadAndDeletedThreads(Context context) {
+        Cursor c = context.getContentResolver().query(sAllThreadsUri,
+                UNREAD_PROJECTION, null, null, null);
+        if (c == null) {
+            return;
+        }
+        HashSet<Long> threadsOnDisk = new HashSet<Long>();
+        try {
+            while (c.moveToNext()) {
+                long threadId = c.getLong(ID);
+                threadsOnDisk.add(threadId);
+                Conversation conv = Cache.get(threadId);
+                if (conv != null) {
+                    conv.setHasUnreadMessages(c.getInt(UNREAD_READ) == 0);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Cache.keepOnly(threadsOnDisk);
+    }
+
+    // This is for testing only. Waits until the syncs queued so far are done.
+    static void waitForSync(Context context) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        getSyncHandler(context).post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    // Adds the thread at the current position of the cursor to the cache, or updates it
+    // in place if it's there already. Called on the sync thread.
+    private static void cacheThread(Context context, Cursor c) {
+        long threadId = c.getLong(ID);
+        sMaxThreadId = Math.max(sMaxThreadId, threadId);
+        sMaxDate = Math.max(sMaxDate, c.getLong(DATE));
+
+        // Try to find this thread ID in the cache.
+        Conversation conv = Cache.get(threadId);
+
+        if (conv == null) {
+            // Make a new Conversation and put it in
+            // the cache if necessary.
+            conv = new Conversation(context, c, true);
+            try {
+                Cache.put(conv);
+            } catch (IllegalStateException e) {
+                LogTag.error("Tried to add duplicate Conversation to Cache" +
+                        " for threadId: " + threadId + " new conv: " + conv);
+                if (!Cache.replace(conv)) {
+                    LogTag.error("cacheAllThreads cache.replace failed on " + conv);
+                }
+            }
+        } else {
+            // Or update in place so people with references
+            // to conversations get updated too.
+            fillFromCursor(context, conv, c, true);
+        }
+    }
+
     private boolean loadFromThreadId(long threadId, boolean allowQuery) {
         Cursor c = mContext.getContentResolver().query(sAllThreadsUri, ALL_THREADS_PROJECTION,
                 "_id=" + Long.toString(threadId), null, null);
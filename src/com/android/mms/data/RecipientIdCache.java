@@ -1,10 +1,5 @@
 package com.android.mms.data;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -36,19 +31,92 @@ public class RecipientIdCache {
     static RecipientIdCache getInstance() { return sInstance; }
 
     @GuardedBy("this")
-    private final Map<Long, String> mCache;
+    private final AddressMap mCache;
+
+    // The highest canonical address id read so far. Ids are never reused because the
+    // canonical_addresses table is never GC'ed, so fill() only has to read rows above it.
+    @GuardedBy("this")
+    private long mMaxId;
+
+    // Keeps two threads that miss at the same time from both reading the new rows.
+    private final Object mFillLock = new Object();
 
     private final Context mContext;
 
-    public static class Entry {
-        public long id;
-        public String number;
+    /**
+     * A map from canonical address id to address with primitive keys, so that neither
+     * filling nor looking up boxes a Long. Uses open addressing with linear probing.
+     * Entries are never removed. Not thread-safe.
+     */
+    private static final class AddressMap {
+        private static final int INITIAL_CAPACITY = 256;
+
+        private long[] mKeys = new long[INITIAL_CAPACITY];
+        // A null value marks an empty slot.
+        private String[] mValues = new String[INITIAL_CAPACITY];
+        private int mSize;
+
+        private static int hash(long key) {
+            int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        String get(long key) {
+            final int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+            return null;
+        }
+
+        // A null address is stored as the empty string, which callers skip anyway.
+        void put(long key, String value) {
+            if (value == null) {
+                value = "";
+            }
+            final int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            for (; mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    mValues[i] = value;
+                    return;
+                }
+            }
+            mKeys[i] = key;
+            mValues[i] = value;
+            if (++mSize * 4 > mKeys.length * 3) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            long[] keys = mKeys;
+            String[] values = mValues;
+            mKeys = new long[keys.length * 2];
+            mValues = new String[values.length * 2];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+
+        int capacity() {
+            return mKeys.length;
+        }
 
-        public Entry(long id, String number) {
-            this.id = id;
-            this.number = number;
+        long keyAt(int index) {
+            return mKeys[index];
         }
-    };
+
+        // Returns null if the slot is empty.
+        String valueAt(int index) {
+            return mValues[index];
+        }
+    }
 
     static void init(Context context) {
         sInstance = new RecipientIdCache(context);
@@ -60,79 +128,112 @@ public class RecipientIdCache {
     }
 
     RecipientIdCache(Context context) {
-        mCache = new HashMap<Long, String>();
+        mCache = new AddressMap();
         mContext = context;
     }
 
+    /**
+     * Reads the canonical addresses added since the last fill into the cache.
+     */
     public static void fill() {
         if (LogTag.VERBOSE || Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
             LogTag.debug("[RecipientIdCache] fill: begin");
         }
 
         Context context = sInstance.mContext;
-        Cursor c = SqliteWrapper.query(context, context.getContentResolver(),
-                sAllCanonical, null, null, null, null);
-        if (c == null) {
-            Log.w(TAG, "null Cursor in fill()");
-            return;
-        }
-
-        try {
+        synchronized (sInstance.mFillLock) {
+            long maxId;
             synchronized (sInstance) {
-                // Technically we don't have to clear this because the stupid
-                // canonical_addresses table is never GC'ed.
-                sInstance.mCache.clear();
-                while (c.moveToNext()) {
-                    // TODO: don't hardcode the column indices
-                    long id = c.getLong(0);
-                    String number = c.getString(1);
-                    sInstance.mCache.put(id, number);
+                maxId = sInstance.mMaxId;
+            }
+            Cursor c = SqliteWrapper.query(context, context.getContentResolver(),
+                    sAllCanonical, null, Telephony.CanonicalAddressesColumns._ID + ">" + maxId,
+                    null, null);
+            if (c == null) {
+                Log.w(TAG, "null Cursor in fill()");
+                return;
+            }
+
+            int count = 0;
+            try {
+                synchronized (sInstance) {
+                    while (c.moveToNext()) {
+                        // TODO: don't hardcode the column indices
+                        long id = c.getLong(0);
+                        String number = c.getString(1);
+                        sInstance.mCache.put(id, number);
+                        if (id > sInstance.mMaxId) {
+                            sInstance.mMaxId = id;
+                        }
+                        count++;
+                    }
                 }
+            } finally {
+                c.close();
             }
-        } finally {
-            c.close();
-        }
 
-        if (LogTag.VERBOSE || Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-            LogTag.debug("[RecipientIdCache] fill: finished");
-            dump();
+            if (LogTag.VERBOSE || Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                LogTag.debug("[RecipientIdCache] fill: finished, read " + count
+                        + " rows above id " + maxId);
+                dump();
+            }
         }
     }
 
-    public static List<Entry> getAddresses(String spaceSepIds) {
+    /**
+     * Returns the address of the given recipient id, reading the new canonical addresses
+     * if it's not cached yet. Returns null or the empty string if there is no address.
+     */
+    public static String getAddress(long id) {
+        String number;
         synchronized (sInstance) {
-            List<Entry> numbers = new ArrayList<Entry>();
-            String[] ids = spaceSepIds.split(" ");
-            for (String id : ids) {
-                long longId;
-
-                try {
-                    longId = Long.parseLong(id);
-                } catch (NumberFormatException ex) {
-                    // skip this id
-                    continue;
-                }
-
-                String number = sInstance.mCache.get(longId);
-
-                if (number == null) {
-                    Log.w(TAG, "RecipientId " + longId + " not in cache!");
-                    if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-                        dump();
-                    }
+            number = sInstance.mCache.get(id);
+        }
+        if (!TextUtils.isEmpty(number)) {
+            return number;
+        }
 
-                    fill();
-                    number = sInstance.mCache.get(longId);
-                }
+        boolean known;
+        synchronized (sInstance) {
+            // Ids up to mMaxId have all been read already, don't query again for one
+            // that's missing.
+            known = id <= sInstance.mMaxId;
+        }
+        if (!known) {
+            Log.w(TAG, "RecipientId " + id + " not in cache!");
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                dump();
+            }
+            fill();
+            synchronized (sInstance) {
+                number = sInstance.mCache.get(id);
+            }
+        }
+        if (TextUtils.isEmpty(number)) {
+            Log.w(TAG, "RecipientId " + id + " has empty number!");
+        }
+        return number;
+    }
 
-                if (TextUtils.isEmpty(number)) {
-                    Log.w(TAG, "RecipientId " + longId + " has empty number!");
-                } else {
-                    numbers.add(new Entry(longId, number));
-                }
+    /**
+     * Parses the recipient id in spaceSepIds between start and end, without making a
+     * substring of it.
+     *
+     * @return the id, or -1 if it's not a valid id.
+     */
+    public static long parseId(String spaceSepIds, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = start; i < end; i++) {
+            int digit = spaceSepIds.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || id > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
             }
-            return numbers;
+            id = id * 10 + digit;
         }
+        return id;
     }
 
     public static void updateNumbers(long threadId, ContactList contacts) {
@@ -205,8 +306,12 @@ public class RecipientIdCache {
         // Only dump user private data if we're in special debug mode
         synchronized (sInstance) {
             Log.d(TAG, "*** Recipient ID cache dump ***");
-            for (Long id : sInstance.mCache.keySet()) {
-                Log.d(TAG, id + ": " + sInstance.mCache.get(id));
+            AddressMap cache = sInstance.mCache;
+            for (int i = 0; i < cache.capacity(); i++) {
+                String number = cache.valueAt(i);
+                if (number != null) {
+                    Log.d(TAG, cache.keyAt(i) + ": " + number);
+                }
             }
         }
     }
@@ -21,6 +21,8 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.util.Log;
 
+import com.android.mms.MmsApp;
+
 /**
  * MMS presentation layout management.
  */
@@ -63,7 +65,7 @@ public class LayoutManager {
                 "Unsupported display type: " + displayType);
     }
 
-    public static void init(Context context) {
+    public static synchronized void init(Context context) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "DefaultLayoutManager.init()");
         }
@@ -74,9 +76,12 @@ public class LayoutManager {
         sInstance = new LayoutManager(context);
     }
 
-    public static LayoutManager getInstance() {
+    /**
+     * Returns the global instance, creating it on first use.
+     */
+    public static synchronized LayoutManager getInstance() {
         if (sInstance == null) {
-            throw new IllegalStateException("Uninitialized.");
+            init(MmsApp.getApplication());
         }
         return sInstance;
     }
@@ -161,6 +161,12 @@ public class ImageModel extends RegionMediaModel {
         return data == null ? null : BitmapFactory.decodeByteArray(data, 0, data.length);
     }
 
+    @Override
+    public int getMemorySize() {
+        Bitmap bm = mFullSizeBitmapCache.get();
+        return super.getMemorySize() + (bm != null ? bm.getByteCount() : 0);
+    }
+
     public Bitmap getBitmap(int width, int height)  {
         Bitmap bm = mFullSizeBitmapCache.get();
         if (bm == null) {
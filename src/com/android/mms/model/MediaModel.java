@@ -40,6 +40,9 @@ import com.google.android.mms.MmsException;
 public abstract class MediaModel extends Model implements EventListener {
     protected static final String TAG = "Mms/media";
 
+    // Rough size of a media model apart from its data.
+    private static final int MEDIA_MODEL_BYTES = 256;
+
     private final static String MUSIC_SERVICE_ACTION = "com.android.music.musicservicecommand";
 
     protected Context mContext;
@@ -190,6 +193,14 @@ public abstract class MediaModel extends Model implements EventListener {
         return mSize;
     }
 
+    /**
+     * @return the approximate number of bytes this model keeps in memory. Media read
+     *         from a uri only count the model itself, not the size of the media.
+     */
+    public int getMemorySize() {
+        return MEDIA_MODEL_BYTES + (mData != null ? mData.length : 0);
+    }
+
     public boolean isText() {
         return mTag.equals(SmilHelper.ELEMENT_TAG_TEXT);
     }
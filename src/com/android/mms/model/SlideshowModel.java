@@ -383,6 +383,19 @@ public class SlideshowModel extends Model
         return mTotalMessageSize;
     }
 
+    // getMemorySize returns the approximate number of bytes the models of this slideshow keep
+    // in memory. Unlike getTotalMessageSize it doesn't count media that are only referenced
+    // by uri, such as photos that haven't been decoded.
+    public int getMemorySize() {
+        int size = 0;
+        for (SlideModel slide : mSlides) {
+            for (MediaModel media : slide) {
+                size += media.getMemorySize();
+            }
+        }
+        return size;
+    }
+
     public void increaseMessageSize(int increaseSize) {
         if (increaseSize > 0) {
             mCurrentMessageSize += increaseSize;
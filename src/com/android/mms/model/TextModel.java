@@ -97,6 +97,12 @@ public class TextModel extends RegionMediaModel {
         return mCharset;
     }
 
+    @Override
+    public int getMemorySize() {
+        CharSequence text = mText;
+        return super.getMemorySize() + (text != null ? 2 * text.length() : 0);
+    }
+
     // EventListener Interface
     public void handleEvent(Event evt) {
         if (evt.getType().equals(SmilMediaElementImpl.SMIL_MEDIA_START_EVENT)) {
@@ -19,19 +19,27 @@ package com.android.mms.transaction;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
@@ -45,6 +53,7 @@ import android.util.Log;
 
 import com.android.mms.LogTag;
 import com.android.mms.MmsConfig;
+import com.android.mms.util.SendingProgressTokenManager;
 
 public class HttpUtils {
     private static final String TAG = LogTag.TRANSACTION;
@@ -57,6 +66,18 @@ public class HttpUtils {
 
     private static final int MMS_READ_BUFFER = 4096;
 
+    // How long a connection to the MMSC may stay open without being used.
+    private static final long MAX_IDLE_TIME = 30 * 1000;
+
+    // The client kept between transactions, with the key of the proxy settings it was
+    // created for and the number of transactions using it.
+    private static AndroidHttpClient sClient;
+    private static String sClientKey;
+    private static int sClientUsers;
+    // Clients replaced while in use, with the number of transactions still using them.
+    private static final HashMap<AndroidHttpClient, Integer> sRetiredClients =
+            new HashMap<AndroidHttpClient, Integer>();
+
     // This is the value to use for the "Accept-Language" header.
     // Once it becomes possible for the user to change the locale
     // setting, this should no longer be static.  We should call
@@ -94,6 +115,45 @@ public class HttpUtils {
     protected static byte[] httpConnection(Context context, long token,
             String url, byte[] pdu, int method, boolean isProxySet,
             String proxyHost, int proxyPort) throws IOException {
+        return httpConnection(context, token, url, pdu, null, null, method, isProxySet,
+                proxyHost, proxyPort);
+    }
+
+    /**
+     * GETs the body into the given download, asking only for the rest of it if an
+     * earlier attempt was cut off. If the MMSC answers the range with something else
+     * than the rest of the body, the whole body is requested again.
+     *
+     * @see #httpConnection(Context, long, String, byte[], int, boolean, String, int)
+     */
+    protected static byte[] httpGet(Context context, String url, PartialDownload download,
+            boolean isProxySet, String proxyHost, int proxyPort) throws IOException {
+        boolean resuming = download.getOffset() > 0;
+        byte[] body = httpConnection(context, SendingProgressTokenManager.NO_TOKEN, url,
+                null, null, download, HTTP_GET_METHOD, isProxySet, proxyHost, proxyPort);
+        if (body == null && resuming && download.getOffset() == 0) {
+            Log.w(TAG, "httpGet: range not honored, retrieving the whole body");
+            body = httpConnection(context, SendingProgressTokenManager.NO_TOKEN, url,
+                    null, null, download, HTTP_GET_METHOD, isProxySet, proxyHost, proxyPort);
+        }
+        return body;
+    }
+
+    /**
+     * POSTs the given entity, which writes the data itself, instead of a byte array.
+     *
+     * @see #httpConnection(Context, long, String, byte[], int, boolean, String, int)
+     */
+    protected static byte[] httpPost(Context context, long token, String url,
+            AbstractHttpEntity entity, boolean isProxySet, String proxyHost,
+            int proxyPort) throws IOException {
+        return httpConnection(context, token, url, null, entity, null, HTTP_POST_METHOD,
+                isProxySet, proxyHost, proxyPort);
+    }
+
+    private static byte[] httpConnection(Context context, long token, String url,
+            byte[] pdu, AbstractHttpEntity entity, PartialDownload download, int method,
+            boolean isProxySet, String proxyHost, int proxyPort) throws IOException {
         if (url == null) {
             throw new IllegalArgumentException("URL must not be null.");
         }
@@ -113,6 +173,8 @@ public class HttpUtils {
         }
 
         AndroidHttpClient client = null;
+        HttpUriRequest req = null;
+        boolean done = false;
 
         try {
             // Make sure to use a proxy which supports CONNECT.
@@ -121,12 +183,12 @@ public class HttpUtils {
                     hostUrl.getHost(), hostUrl.getPort(),
                     HttpHost.DEFAULT_SCHEME_NAME);
 
-            client = createHttpClient(context);
-            HttpRequest req = null;
+            client = acquireHttpClient(context, isProxySet, proxyHost, proxyPort);
             switch(method) {
                 case HTTP_POST_METHOD:
-                    ProgressCallbackEntity entity = new ProgressCallbackEntity(
-                                                        context, token, pdu);
+                    if (entity == null) {
+                        entity = new ProgressCallbackEntity(context, token, pdu);
+                    }
                     // Set request content type.
                     entity.setContentType("application/vnd.wap.mms-message");
 
@@ -136,6 +198,9 @@ public class HttpUtils {
                     break;
                 case HTTP_GET_METHOD:
                     req = new HttpGet(url);
+                    if (download != null) {
+                        download.addRangeHeaders(req);
+                    }
                     break;
                 default:
                     Log.e(TAG, "Unknown HTTP method: " + method
@@ -144,13 +209,8 @@ public class HttpUtils {
                     return null;
             }
 
-            // Set route parameters for the request.
-            HttpParams params = client.getParams();
-            if (isProxySet) {
-                ConnRouteParams.setDefaultProxy(
-                        params, new HttpHost(proxyHost, proxyPort));
-            }
-            req.setParams(params);
+            // The client was created with the route parameters of the APN.
+            req.setParams(client.getParams());
 
             // Set necessary HTTP headers for MMS transmission.
             req.addHeader(HDR_KEY_ACCEPT, HDR_VALUE_ACCEPT);
@@ -167,41 +227,53 @@ public class HttpUtils {
                 }
             }
 
-            // Extra http parameters. Split by '|' to get a list of value pairs.
-            // Separate each pair by the first occurrence of ':' to obtain a name and
-            // value. Replace the occurrence of the string returned by
+            // Extra http parameters, split into headers when the config was loaded.
+            // Replace the occurrence of the string returned by
             // MmsConfig.getHttpParamsLine1Key() with the users telephone number inside
             // the value.
-            String extraHttpParams = MmsConfig.getHttpParams();
-
-            if (extraHttpParams != null) {
-                String line1Number = ((TelephonyManager)context
-                        .getSystemService(Context.TELEPHONY_SERVICE))
-                        .getLine1Number();
-                String line1Key = MmsConfig.getHttpParamsLine1Key();
-                String paramList[] = extraHttpParams.split("\\|");
-
-                for (String paramPair : paramList) {
-                    String splitPair[] = paramPair.split(":", 2);
-
-                    if (splitPair.length == 2) {
-                        String name = splitPair[0].trim();
-                        String value = splitPair[1].trim();
-
-                        if (line1Key != null) {
-                            value = value.replace(line1Key, line1Number);
-                        }
-                        if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
-                            req.addHeader(name, value);
-                        }
+            List<MmsConfig.HttpParam> extraHttpParams = MmsConfig.getHttpParamHeaders();
+            String line1Number = null;
+            for (int i = 0; i < extraHttpParams.size(); i++) {
+                MmsConfig.HttpParam param = extraHttpParams.get(i);
+                String value = param.value;
+                if (param.needsLine1Number()) {
+                    if (line1Number == null) {
+                        line1Number = ((TelephonyManager)context
+                                .getSystemService(Context.TELEPHONY_SERVICE))
+                                .getLine1Number();
                     }
+                    value = param.getValue(line1Number);
+                }
+                if (!TextUtils.isEmpty(value)) {
+                    req.addHeader(param.name, value);
                 }
             }
             req.addHeader(HDR_KEY_ACCEPT_LANGUAGE, HDR_VALUE_ACCEPT_LANGUAGE);
 
             HttpResponse response = client.execute(target, req);
             StatusLine status = response.getStatusLine();
+            if (download != null && (status.getStatusCode() == 200
+                    || status.getStatusCode() == 206) && download.isResumable(response)) {
+                byte[] body = download.readResponse(response);
+                done = true;
+                return body;
+            }
+            if (download != null && status.getStatusCode() == 416
+                    && download.getOffset() > 0) {
+                // Range Not Satisfiable, the body received so far is no use.
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                download.discard();
+                done = true;
+                return null;
+            }
             if (status.getStatusCode() != 200) { // HTTP 200 is success.
+                // Read the rest of the error page so the connection can be reused.
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                done = true;
                 throw new IOException("HTTP error: " + status.getReasonPhrase());
             }
 
@@ -224,40 +296,27 @@ public class HttpUtils {
                     }
                     if (entity.isChunked()) {
                         Log.v(TAG, "httpConnection: transfer encoding is chunked");
-                        int bytesTobeRead = MmsConfig.getMaxMessageSize();
-                        byte[] tempBody = new byte[bytesTobeRead];
-                        DataInputStream dis = new DataInputStream(entity.getContent());
+                        // Collect the body as it arrives instead of allocating room for
+                        // the largest message first.
+                        ResponseBodyBuffer buffer = new ResponseBodyBuffer(context,
+                                MmsConfig.getMaxMessageSize());
+                        InputStream in = entity.getContent();
                         try {
-                            int bytesRead = 0;
-                            int offset = 0;
-                            boolean readError = false;
-                            do {
-                                try {
-                                    bytesRead = dis.read(tempBody, offset, bytesTobeRead);
-                                } catch (IOException e) {
-                                    readError = true;
-                                    Log.e(TAG, "httpConnection: error reading input stream"
-                                        + e.getMessage());
-                                    break;
-                                }
-                                if (bytesRead > 0) {
-                                    bytesTobeRead -= bytesRead;
-                                    offset += bytesRead;
-                                }
-                            } while (bytesRead >= 0 && bytesTobeRead > 0);
-                            if (bytesRead == -1 && offset > 0 && !readError) {
-                                // offset is same as total number of bytes read
-                                // bytesRead will be -1 if the data was read till the eof
-                                body = new byte[offset];
-                                System.arraycopy(tempBody, 0, body, 0, offset);
+                            buffer.readFrom(in);
+                            if (buffer.size() > 0) {
+                                body = buffer.toByteArray();
                                 Log.v(TAG, "httpConnection: Chunked response length ["
-                                    + Integer.toString(offset) + "]");
+                                    + Integer.toString(body.length) + "]");
                             } else {
-                                Log.e(TAG, "httpConnection: Response entity too large or empty");
+                                Log.e(TAG, "httpConnection: Response entity empty");
                             }
+                        } catch (IOException e) {
+                            Log.e(TAG, "httpConnection: error reading input stream "
+                                + e.getMessage());
                         } finally {
+                            buffer.release();
                             try {
-                                dis.close();
+                                in.close();
                             } catch (IOException e) {
                                 Log.e(TAG, "Error closing input stream: " + e.getMessage());
                             }
@@ -269,6 +328,7 @@ public class HttpUtils {
                     }
                 }
             }
+            done = true;
             return body;
         } catch (URISyntaxException e) {
             handleHttpConnectionException(e, url);
@@ -282,8 +342,12 @@ public class HttpUtils {
             handleHttpConnectionException(e, url);
         }
         finally {
+            if (req != null && !done) {
+                // Don't hand a connection in an unknown state to the next transaction.
+                req.abort();
+            }
             if (client != null) {
-                client.close();
+                releaseHttpClient(client);
             }
         }
         return null;
@@ -298,6 +362,83 @@ public class HttpUtils {
         throw e;
     }
 
+    /**
+     * Returns the client for the given proxy settings. The client is kept after the
+     * transaction, so the following ones reuse its open connections to the MMSC instead
+     * of connecting again. A client for other settings, from an APN used before, is
+     * closed as soon as nobody uses it.
+     * <p>
+     * Must be paired with {@link #releaseHttpClient}.
+     */
+    private static synchronized AndroidHttpClient acquireHttpClient(Context context,
+            boolean isProxySet, String proxyHost, int proxyPort) {
+        String key = isProxySet ? proxyHost + ":" + proxyPort : "";
+        if (sClient != null && !key.equals(sClientKey)) {
+            closeHttpClient();
+        }
+        if (sClient == null) {
+            sClient = createHttpClient(context);
+            sClientKey = key;
+            if (isProxySet) {
+                ConnRouteParams.setDefaultProxy(
+                        sClient.getParams(), new HttpHost(proxyHost, proxyPort));
+            }
+        }
+        sClientUsers++;
+        return sClient;
+    }
+
+    private static synchronized void releaseHttpClient(AndroidHttpClient client) {
+        if (client == sClient) {
+            sClientUsers--;
+        } else {
+            // It was closed while in use or replaced by the client of another APN.
+            closeLater(client);
+        }
+    }
+
+    // Closes the client once the transactions using it are done.
+    private static void closeLater(AndroidHttpClient client) {
+        Integer users = sRetiredClients.get(client);
+        if (users == null || users <= 1) {
+            sRetiredClients.remove(client);
+            client.close();
+        } else {
+            sRetiredClients.put(client, users - 1);
+        }
+    }
+
+    /**
+     * Closes the connections kept open that haven't been used for
+     * {@link #MAX_IDLE_TIME} milliseconds. Called periodically while MMS connectivity
+     * is up.
+     */
+    public static synchronized void closeIdleConnections() {
+        if (sClient != null) {
+            ClientConnectionManager manager = sClient.getConnectionManager();
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes the kept client and its connections, or lets the transactions using it
+     * close it when they are done. Called when MMS connectivity ends.
+     */
+    public static synchronized void closeHttpClient() {
+        if (sClient == null) {
+            return;
+        }
+        if (sClientUsers == 0) {
+            sClient.close();
+        } else {
+            sRetiredClients.put(sClient, sClientUsers);
+        }
+        sClient = null;
+        sClientKey = null;
+        sClientUsers = 0;
+    }
+
     private static AndroidHttpClient createHttpClient(Context context) {
         String userAgent = MmsConfig.getUserAgent();
         AndroidHttpClient client = AndroidHttpClient.newInstance(userAgent, context);
@@ -312,6 +453,14 @@ public class HttpUtils {
                     + ", UA=" + userAgent);
         }
         HttpConnectionParams.setSoTimeout(params, soTimeout);
+        // AndroidHttpClient turns stale checking off. The pooled connections may outlive
+        // the keep-alive timeout of the MMSC or proxy, and a request sent on a connection
+        // the server already closed isn't retried.
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        // One connection for each of the transactions TransactionService lets talk to
+        // the MMSC at the same time.
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MmsConfig.getMaxConcurrentTransactions()));
         return client;
     }
 
@@ -48,6 +48,7 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
@@ -61,10 +62,12 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.android.mms.LogTag;
+import com.android.mms.MmsApp;
 import com.android.mms.R;
 import com.android.mms.data.Contact;
 import com.android.mms.data.Conversation;
 import com.android.mms.data.WorkingMessage;
+import com.android.mms.model.ImageModel;
 import com.android.mms.model.SlideModel;
 import com.android.mms.model.SlideshowModel;
 import com.android.mms.ui.ComposeMessageActivity;
@@ -73,10 +76,11 @@ import com.android.mms.ui.MessageUtils;
 import com.android.mms.ui.MessagingPreferenceActivity;
 import com.android.mms.util.AddressUtils;
 import com.android.mms.util.DownloadManager;
+import com.android.mms.util.PduLoaderManager.PduLoaded;
+import com.android.mms.util.ThumbnailManager;
 import com.android.mms.widget.MmsWidgetProvider;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.EncodedStringValue;
-import com.google.android.mms.pdu.GenericPdu;
 import com.google.android.mms.pdu.MultimediaMessagePdu;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduPersister;
@@ -165,8 +169,7 @@ public class MessagingNotification {
 
     private static OnDeletedReceiver sNotificationDeletedReceiver = new OnDeletedReceiver();
     private static Intent sNotificationOnDeleteIntent;
-    private static Handler sHandler = new Handler();
-    private static PduPersister sPduPersister;
+    private static Handler sHandler = new Handler(Looper.getMainLooper());
     private static final int MAX_BITMAP_DIMEN_DP = 360;
     private static float sScreenDensity;
 
@@ -184,7 +187,6 @@ public class MessagingNotification {
 
         // TODO: should we unregister when the app gets killed?
         context.registerReceiver(sNotificationDeletedReceiver, intentFilter);
-        sPduPersister = PduPersister.getPduPersister(context);
 
         // initialize the notification deleted action
         sNotificationOnDeleteIntent = new Intent(NOTIFICATION_DELETED_ACTION);
@@ -605,16 +607,31 @@ public class MessagingNotification {
                 String messageBody = null;
                 int attachmentType = WorkingMessage.TEXT;
                 try {
-                    GenericPdu pdu = sPduPersister.load(msgUri);
-                    if (pdu != null && pdu instanceof MultimediaMessagePdu) {
-                        SlideshowModel slideshow = SlideshowModel.createFromPduBody(context,
-                                ((MultimediaMessagePdu)pdu).getBody());
+                    // Shares the load with the message list, if it's showing this message.
+                    PduLoaded loaded = MmsApp.getApplication().getPduLoaderManager()
+                            .loadPdu(msgUri);
+                    if (loaded.mPdu instanceof MultimediaMessagePdu && loaded.mSlideshow != null) {
+                        SlideshowModel slideshow = loaded.mSlideshow;
                         attachmentType = getAttachmentType(slideshow);
                         SlideModel firstSlide = slideshow.get(0);
                         if (firstSlide != null) {
                             if (firstSlide.hasImage()) {
-                                int maxDim = dp2Pixels(MAX_BITMAP_DIMEN_DP);
-                                attachedPicture = firstSlide.getImage().getBitmap(maxDim, maxDim);
+                                ImageModel image = firstSlide.getImage();
+                                // The notification keeps its own copy, the cached one
+                                // goes back to the thumbnail manager.
+                                ThumbnailManager thumbnailManager =
+                                        MmsApp.getApplication().getThumbnailManager();
+                                Bitmap thumbnail =
+                                        thumbnailManager.getCachedThumbnail(image.getUri());
+                                if (thumbnail != null) {
+                                    attachedPicture = thumbnail.copy(thumbnail.getConfig(),
+                                            false);
+                                    thumbnailManager.releaseBitmap(thumbnail);
+                                }
+                                if (attachedPicture == null) {
+                                    int maxDim = dp2Pixels(MAX_BITMAP_DIMEN_DP);
+                                    attachedPicture = image.getBitmap(maxDim, maxDim);
+                                }
                             }
                             if (firstSlide.hasText()) {
                                 messageBody = firstSlide.getText().getText();
@@ -128,7 +128,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this, "NotificationTransaction").start();
+        execute(this, "NotificationTransaction");
     }
 
     public static boolean allowAutoDownload() {
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+import com.android.mms.MmsConfig;
+
+/**
+ * The body of a retrieval from the MMSC, written to a file in the cache directory as it
+ * arrives, if it's big and the MMSC takes ranges (see {@link #isResumable}); the other
+ * bodies are read in memory by HttpUtils like before. When the connection drops or times
+ * out in the middle of the body, the bytes received so far stay in the file, and the next
+ * attempt for the same URL asks the MMSC for the rest only, with a Range request. If-Range
+ * makes the MMSC send the whole body again if the message changed in between; an MMSC
+ * that doesn't support ranges sends it all anyway.
+ * <p>
+ * The files are named after the SHA-1 of the URL. A metadata file next to the body
+ * records the URL, the validator (the ETag or the Last-Modified date) and the total
+ * length. Bodies that weren't resumed for {@link #MAX_AGE} are deleted.
+ */
+final class PartialDownload {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final String DIRECTORY = "mms_partial";
+    private static final int METADATA_VERSION = 1;
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Smaller bodies are read in memory and fetched again if the connection drops.
+    private static final long MIN_RESUMABLE_SIZE = ResponseBodyBuffer.MAX_MEMORY_SIZE;
+
+    private final String mUrl;
+    private final File mBodyFile;
+    private final File mMetadataFile;
+    // False if the files belong to another URL with the same name, which are left alone.
+    private boolean mOwnsFiles = true;
+    private String mValidator;
+    // The length of the whole body, or -1 if it isn't known.
+    private long mTotalLength = -1;
+
+    private PartialDownload(String url, File directory) {
+        mUrl = url;
+        String name = sha1(url);
+        mBodyFile = new File(directory, name + ".body");
+        mMetadataFile = new File(directory, name + ".meta");
+    }
+
+    /**
+     * Returns the download of the given URL, with the part of the body received by an
+     * earlier attempt, if any.
+     */
+    static PartialDownload open(Context context, String url) {
+        File directory = new File(context.getCacheDir(), DIRECTORY);
+        deleteStale(directory);
+        PartialDownload download = new PartialDownload(url, directory);
+        if (!download.readMetadata() && download.mOwnsFiles) {
+            download.discard();
+        }
+        return download;
+    }
+
+    /**
+     * Returns the number of bytes of the body already received.
+     */
+    long getOffset() {
+        if (!mOwnsFiles) {
+            return 0;
+        }
+        return mValidator != null || mTotalLength >= 0 ? mBodyFile.length() : 0;
+    }
+
+    /**
+     * Returns true if the body of the 200 or 206 response is to be read into the file by
+     * {@link #readResponse}: a 206 continues the body in the file, and a 200 goes to the
+     * file if its length is known, it's too big to fetch again lightly and the MMSC says
+     * it takes ranges. The other 200 bodies are read in memory, and the part of the body
+     * received so far, if any, is discarded.
+     */
+    boolean isResumable(HttpResponse response) {
+        if (!mOwnsFiles) {
+            return false;
+        }
+        if (response.getStatusLine().getStatusCode() == 206) {
+            return true;
+        }
+        HttpEntity entity = response.getEntity();
+        Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+        if (entity != null && entity.getContentLength() > MIN_RESUMABLE_SIZE
+                && acceptRanges != null && "bytes".equals(acceptRanges.getValue().trim())) {
+            return true;
+        }
+        discard();
+        return false;
+    }
+
+    /**
+     * Asks for the rest of the body only, if some of it was received already.
+     */
+    void addRangeHeaders(HttpRequest req) {
+        long offset = getOffset();
+        if (offset > 0) {
+            req.addHeader("Range", "bytes=" + offset + "-");
+            if (mValidator != null) {
+                req.addHeader("If-Range", mValidator);
+            }
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "PartialDownload: resuming " + mUrl + " at " + offset);
+            }
+        }
+    }
+
+    /**
+     * Reads the body of a 200 or 206 response into the file. Returns the whole body once
+     * it's complete, and deletes the files.
+     *
+     * @return the body, or null if it's empty or the 206 response doesn't continue the
+     *         body received so far. The received part is discarded then.
+     * @throws IOException if the body couldn't be read to its end. The part received
+     *         stays in the file for the next attempt.
+     */
+    byte[] readResponse(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        boolean append = response.getStatusLine().getStatusCode() == 206;
+        if (append) {
+            if (!continuesBody(response.getFirstHeader("Content-Range"))) {
+                Log.w(TAG, "PartialDownload: unexpected Content-Range for " + mUrl);
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                discard();
+                return null;
+            }
+        } else {
+            // A new body, either the first attempt or the MMSC sent it all again.
+            mValidator = getValidator(response);
+            mTotalLength = entity != null ? entity.getContentLength() : 0;
+            mBodyFile.delete();
+            writeMetadata();
+        }
+        if (entity != null) {
+            readEntity(entity);
+        }
+
+        long size = mBodyFile.length();
+        if (mTotalLength >= 0 && size != mTotalLength) {
+            throw new IOException("Connection closed after " + size + " of " + mTotalLength
+                    + " bytes");
+        }
+        if (size == 0) {
+            discard();
+            return null;
+        }
+        byte[] body = new byte[(int) size];
+        DataInputStream in = new DataInputStream(new FileInputStream(mBodyFile));
+        try {
+            in.readFully(body);
+        } finally {
+            in.close();
+        }
+        discard();
+        return body;
+    }
+
+    /**
+     * Deletes the received part of the body.
+     */
+    void discard() {
+        if (mOwnsFiles) {
+            mBodyFile.delete();
+            mMetadataFile.delete();
+        }
+        mValidator = null;
+        mTotalLength = -1;
+    }
+
+    private void readEntity(HttpEntity entity) throws IOException {
+        File directory = mBodyFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        // The chunked responses, whose length isn't known, are limited like before.
+        long maxSize = mTotalLength >= 0 ? mTotalLength : MmsConfig.getMaxMessageSize();
+        long size = mBodyFile.length();
+        InputStream in = entity.getContent();
+        FileOutputStream out = new FileOutputStream(mBodyFile, true);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                size += count;
+                if (size > maxSize) {
+                    discard();
+                    throw new IOException("Response entity larger than " + maxSize);
+                }
+                // Unbuffered, so whatever arrived before the connection drops is kept.
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing input stream: " + e.getMessage());
+            }
+        }
+    }
+
+    // Returns true if the Content-Range of a 206 response starts where the body received
+    // so far ends, and has the same total length.
+    private boolean continuesBody(Header contentRange) {
+        long offset = getOffset();
+        if (contentRange == null || offset == 0) {
+            return false;
+        }
+        // bytes <first>-<last>/<total or *>
+        String value = contentRange.getValue().trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (!value.startsWith("bytes ") || dash < 0 || slash < dash) {
+            return false;
+        }
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String total = value.substring(slash + 1).trim();
+            long totalLength = "*".equals(total) ? -1 : Long.parseLong(total);
+            if (first != offset || (mTotalLength >= 0 && totalLength != mTotalLength)) {
+                return false;
+            }
+            if (totalLength >= 0) {
+                if (last != totalLength - 1) {
+                    return false;
+                }
+                mTotalLength = totalLength;
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Returns the strong ETag of the response, or else its Last-Modified date. If-Range
+    // can't be used with a weak ETag.
+    private static String getValidator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    private boolean readMetadata() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mMetadataFile)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            if (in.readInt() != METADATA_VERSION) {
+                return false;
+            }
+            if (!mUrl.equals(in.readUTF())) {
+                Log.w(TAG, "PartialDownload: " + mMetadataFile + " is for another URL");
+                mOwnsFiles = false;
+                return false;
+            }
+            mValidator = in.readBoolean() ? in.readUTF() : null;
+            mTotalLength = in.readLong();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read the partial download metadata", e);
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void writeMetadata() throws IOException {
+        File directory = mMetadataFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File tmp = new File(directory, mMetadataFile.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(METADATA_VERSION);
+            out.writeUTF(mUrl);
+            out.writeBoolean(mValidator != null);
+            if (mValidator != null) {
+                out.writeUTF(mValidator);
+            }
+            out.writeLong(mTotalLength);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mMetadataFile)) {
+            tmp.delete();
+            throw new IOException("Can't rename the partial download metadata");
+        }
+    }
+
+    private static String sha1(String url) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] hash;
+        try {
+            hash = digest.digest(url.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder name = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+
+    private static void deleteStale(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - MAX_AGE;
+        for (File file : files) {
+            if (file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -53,7 +53,7 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
 
         boolean completed = false;
         try {
-            broadcastProgressIfNeeded(PROGRESS_START);
+            broadcastProgressIfNeeded(mContext, mToken, PROGRESS_START);
 
             int pos = 0, totalLen = mContent.length;
             while (pos < totalLen) {
@@ -66,24 +66,24 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
 
                 pos += len;
 
-                broadcastProgressIfNeeded(100 * pos / totalLen);
+                broadcastProgressIfNeeded(mContext, mToken, 100 * pos / totalLen);
             }
 
-            broadcastProgressIfNeeded(PROGRESS_COMPLETE);
+            broadcastProgressIfNeeded(mContext, mToken, PROGRESS_COMPLETE);
             completed = true;
         } finally {
             if (!completed) {
-                broadcastProgressIfNeeded(PROGRESS_ABORT);
+                broadcastProgressIfNeeded(mContext, mToken, PROGRESS_ABORT);
             }
         }
     }
 
-    private void broadcastProgressIfNeeded(int progress) {
-        if (mToken > 0) {
+    static void broadcastProgressIfNeeded(Context context, long token, int progress) {
+        if (token > 0) {
             Intent intent = new Intent(PROGRESS_STATUS_ACTION);
             intent.putExtra("progress", progress);
-            intent.putExtra("token", mToken);
-            mContext.sendBroadcast(intent);
+            intent.putExtra("token", token);
+            context.sendBroadcast(intent);
         }
     }
 }
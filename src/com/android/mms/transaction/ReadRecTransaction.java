@@ -47,7 +47,6 @@ public class ReadRecTransaction extends Transaction implements Runnable{
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
-    private Thread mThread;
     private final Uri mReadReportURI;
 
     public ReadRecTransaction(Context context,
@@ -68,8 +67,7 @@ public class ReadRecTransaction extends Transaction implements Runnable{
      */
     @Override
     public void process() {
-        mThread = new Thread(this, "ReadRecTransaction");
-        mThread.start();
+        execute(this, "ReadRecTransaction");
     }
 
     public void run() {
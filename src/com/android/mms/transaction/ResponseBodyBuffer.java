@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+
+/**
+ * Collects an HTTP response body of unknown length, such as a chunked M-Retrieve.conf,
+ * without allocating room for the largest message allowed up front.
+ * <p>
+ * The body is read into pooled segments, which the pool keeps while transactions are
+ * being run; {@link #clearPool} drops them. Once it outgrows {@link #MAX_MEMORY_SIZE} the
+ * segments are written to a temporary file in the cache directory and the rest of the
+ * body streams to that file. {@link #toByteArray} then makes the one array of the exact
+ * size the PDU parser needs, so a retrieval holds about the size of the message rather
+ * than twice the maximum message size.
+ */
+final class ResponseBodyBuffer {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    // Bodies bigger than this are spilled to a file.
+    static final int MAX_MEMORY_SIZE = 16 * SEGMENT_SIZE;
+    // Enough segments for two transactions buffering at the same time.
+    private static final int MAX_POOLED_SEGMENTS = 2 * MAX_MEMORY_SIZE / SEGMENT_SIZE;
+
+    private static final ArrayList<byte[]> sSegmentPool = new ArrayList<byte[]>();
+
+    private final Context mContext;
+    private final int mMaxSize;
+    private final ArrayList<byte[]> mSegments = new ArrayList<byte[]>();
+    private File mSpillFile;
+    private FileOutputStream mSpillStream;
+    private int mSize;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize the size above which the body is rejected.
+     */
+    ResponseBodyBuffer(Context context, int maxSize) {
+        mContext = context;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Reads the stream to its end.
+     *
+     * @throws IOException if the stream fails or the body is bigger than the maximum size.
+     */
+    void readFrom(InputStream in) throws IOException {
+        while (true) {
+            byte[] segment = currentSegment();
+            int offset = mSize % SEGMENT_SIZE;
+            int count = in.read(segment, offset, SEGMENT_SIZE - offset);
+            if (count < 0) {
+                break;
+            }
+            mSize += count;
+            if (mSize > mMaxSize) {
+                throw new IOException("Response entity larger than " + mMaxSize);
+            }
+            if (mSpillStream != null && mSize % SEGMENT_SIZE == 0) {
+                // The segment is full, move it to the file and fill it again.
+                mSpillStream.write(segment, 0, SEGMENT_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes read.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the body in an array of its size and releases the buffer.
+     */
+    byte[] toByteArray() throws IOException {
+        byte[] body = new byte[mSize];
+        if (mSpillStream == null) {
+            int offset = 0;
+            for (byte[] segment : mSegments) {
+                int count = Math.min(SEGMENT_SIZE, mSize - offset);
+                System.arraycopy(segment, 0, body, offset, count);
+                offset += count;
+            }
+        } else {
+            int tail = mSize % SEGMENT_SIZE;
+            int fileSize = mSize - tail;
+            if (tail > 0) {
+                System.arraycopy(mSegments.get(0), 0, body, fileSize, tail);
+            }
+            mSpillStream.close();
+            mSpillStream = null;
+            DataInputStream in = new DataInputStream(new FileInputStream(mSpillFile));
+            try {
+                in.readFully(body, 0, fileSize);
+            } finally {
+                in.close();
+            }
+        }
+        release();
+        return body;
+    }
+
+    /**
+     * Returns the segments to the pool and deletes the spill file, if any. The buffer
+     * must not be used anymore.
+     */
+    void release() {
+        synchronized (sSegmentPool) {
+            for (byte[] segment : mSegments) {
+                if (sSegmentPool.size() < MAX_POOLED_SEGMENTS) {
+                    sSegmentPool.add(segment);
+                }
+            }
+        }
+        mSegments.clear();
+        if (mSpillStream != null) {
+            try {
+                mSpillStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing spill file: " + e.getMessage());
+            }
+            mSpillStream = null;
+        }
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * Drops the pooled segments. To be called when no transaction is running or memory
+     * is low.
+     */
+    static void clearPool() {
+        synchronized (sSegmentPool) {
+            sSegmentPool.clear();
+        }
+    }
+
+    // Returns the segment the next bytes go to, adding one or spilling to the file if
+    // the last one is full.
+    private byte[] currentSegment() throws IOException {
+        if (mSize % SEGMENT_SIZE != 0 || (mSize == 0 && !mSegments.isEmpty())) {
+            return mSegments.get(mSegments.size() - 1);
+        }
+        if (mSpillStream != null) {
+            // The only segment was written to the file, reuse it.
+            return mSegments.get(0);
+        }
+        if (mSize >= MAX_MEMORY_SIZE) {
+            spill();
+            return mSegments.get(0);
+        }
+        byte[] segment = null;
+        synchronized (sSegmentPool) {
+            if (!sSegmentPool.isEmpty()) {
+                segment = sSegmentPool.remove(sSegmentPool.size() - 1);
+            }
+        }
+        if (segment == null) {
+            segment = new byte[SEGMENT_SIZE];
+        }
+        mSegments.add(segment);
+        return segment;
+    }
+
+    // Moves the full segments to a new file and keeps one of them to read into.
+    private void spill() throws IOException {
+        mSpillFile = File.createTempFile("mms_response", null, mContext.getCacheDir());
+        mSpillStream = new FileOutputStream(mSpillFile);
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "Response body over " + MAX_MEMORY_SIZE + " bytes, spilling to "
+                    + mSpillFile);
+        }
+        for (byte[] segment : mSegments) {
+            mSpillStream.write(segment, 0, SEGMENT_SIZE);
+        }
+        byte[] first = mSegments.get(0);
+        synchronized (sSegmentPool) {
+            for (int i = 1; i < mSegments.size(); i++) {
+                if (sSegmentPool.size() < MAX_POOLED_SEGMENTS) {
+                    sSegmentPool.add(mSegments.get(i));
+                }
+            }
+        }
+        mSegments.clear();
+        mSegments.add(first);
+    }
+}
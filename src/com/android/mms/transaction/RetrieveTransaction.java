@@ -123,7 +123,7 @@ public class RetrieveTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this, "RetrieveTransaction").start();
+        execute(this, "RetrieveTransaction");
     }
 
     public void run() {
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Vector;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+/**
+ * An M-Send.req request body that streams the data of the parts from their content URIs
+ * while it's written, instead of composing the whole PDU in memory first. Reports the
+ * progress like {@link ProgressCallbackEntity}.
+ * <p>
+ * The headers are still encoded by {@link PduComposer}: it composes a copy of the
+ * M-Send.req with empty parts, which gives the encoded message headers and the encoded
+ * headers of each part. The entity writes them with the real data lengths, and the data in between.
+ */
+final class SendReqEntity extends AbstractHttpEntity {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Context mContext;
+    private final long mToken;
+    // The encoded message headers, up to and including the number of parts.
+    private final byte[] mPrefix;
+    private final PduPart[] mParts;
+    private final byte[][] mPartHeaders;
+    private final long[] mDataLengths;
+    private final long mContentLength;
+
+    private SendReqEntity(Context context, long token, byte[] prefix, PduPart[] parts,
+            byte[][] partHeaders, long[] dataLengths) {
+        mContext = context;
+        mToken = token;
+        mPrefix = prefix;
+        mParts = parts;
+        mPartHeaders = partHeaders;
+        mDataLengths = dataLengths;
+        long length = prefix.length;
+        for (int i = 0; i < parts.length; i++) {
+            length += uintvarLength(partHeaders[i].length) + uintvarLength(dataLengths[i])
+                    + partHeaders[i].length + dataLengths[i];
+        }
+        mContentLength = length;
+        setContentType("application/vnd.wap.mms-message");
+    }
+
+    /**
+     * Returns the entity for the M-Send.req, or null if it can't be streamed: if it has no
+     * parts, if the size of a part isn't known or if it can't be composed. The SendReq
+     * isn't changed, so it can be the one in the PduCache.
+     */
+    static SendReqEntity create(Context context, long token, SendReq sendReq) {
+        PduBody body = sendReq.getBody();
+        int partCount = body != null ? body.getPartsNum() : 0;
+        if (partCount == 0) {
+            return null;
+        }
+        PduPart[] parts = new PduPart[partCount];
+        long[] dataLengths = new long[partCount];
+        for (int i = 0; i < partCount; i++) {
+            parts[i] = body.getPart(i);
+            dataLengths[i] = getDataLength(context, parts[i]);
+            if (dataLengths[i] < 0) {
+                return null;
+            }
+        }
+
+        SendReq headers = copyHeaders(sendReq);
+        if (headers == null) {
+            return null;
+        }
+        // The part data is the only difference between the two, so the first byte
+        // that differs is the data length of the first part.
+        byte[] empty = composeWithPartData(context, headers, body, new byte[0]);
+        byte[] oneByte = composeWithPartData(context, headers, body, new byte[1]);
+        if (empty == null || oneByte == null) {
+            return null;
+        }
+        int firstDataLength = 0;
+        while (firstDataLength < empty.length && firstDataLength < oneByte.length
+                && empty[firstDataLength] == oneByte[firstDataLength]) {
+            firstDataLength++;
+        }
+        if (firstDataLength == 0 || firstDataLength >= empty.length
+                || empty[firstDataLength] != 0) {
+            Log.w(TAG, "SendReqEntity: unexpected composed PDU, not streaming");
+            return null;
+        }
+        // Back to the start of the uintvar before it, the header length of the first
+        // part. Only the last byte of a uintvar has the high bit clear.
+        int start = firstDataLength - 1;
+        while (start > 0 && (empty[start - 1] & 0x80) != 0) {
+            start--;
+        }
+
+        byte[] prefix = new byte[start];
+        System.arraycopy(empty, 0, prefix, 0, start);
+        byte[][] partHeaders = new byte[partCount][];
+        int[] position = { start };
+        for (int i = 0; i < partCount; i++) {
+            int headerLength = (int) readUintvar(empty, position);
+            long dataLength = readUintvar(empty, position);
+            if (headerLength < 0 || dataLength != 0
+                    || position[0] + headerLength > empty.length) {
+                Log.w(TAG, "SendReqEntity: unexpected part " + i + ", not streaming");
+                return null;
+            }
+            partHeaders[i] = new byte[headerLength];
+            System.arraycopy(empty, position[0], partHeaders[i], 0, headerLength);
+            position[0] += headerLength;
+        }
+        if (position[0] != empty.length) {
+            Log.w(TAG, "SendReqEntity: unexpected end of PDU, not streaming");
+            return null;
+        }
+        return new SendReqEntity(context, token, prefix, parts, partHeaders, dataLengths);
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        // The data is read from the parts again.
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        Vector<InputStream> streams = new Vector<InputStream>(2 * mParts.length + 1);
+        streams.add(new ByteArrayInputStream(mPrefix));
+        try {
+            for (int i = 0; i < mParts.length; i++) {
+                ByteArrayOutputStream headers = new ByteArrayOutputStream();
+                writeUintvar(headers, mPartHeaders[i].length);
+                writeUintvar(headers, mDataLengths[i]);
+                headers.write(mPartHeaders[i]);
+                streams.add(new ByteArrayInputStream(headers.toByteArray()));
+
+                PduPart part = mParts[i];
+                byte[] data = part.getData();
+                streams.add(data != null ? new ByteArrayInputStream(data)
+                        : mContext.getContentResolver().openInputStream(part.getDataUri()));
+            }
+        } catch (IOException e) {
+            for (InputStream in : streams) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            throw e;
+        }
+        return new SequenceInputStream(streams.elements());
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+
+        boolean completed = false;
+        try {
+            ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                    ProgressCallbackEntity.PROGRESS_START);
+            Progress progress = new Progress();
+            outstream.write(mPrefix);
+            progress.add(mPrefix.length);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int i = 0; i < mParts.length; i++) {
+                writeUintvar(outstream, mPartHeaders[i].length);
+                writeUintvar(outstream, mDataLengths[i]);
+                outstream.write(mPartHeaders[i]);
+                progress.add(uintvarLength(mPartHeaders[i].length)
+                        + uintvarLength(mDataLengths[i]) + mPartHeaders[i].length);
+                writeData(outstream, i, buffer, progress);
+            }
+            outstream.flush();
+
+            ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                    ProgressCallbackEntity.PROGRESS_COMPLETE);
+            completed = true;
+        } finally {
+            if (!completed) {
+                ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                        ProgressCallbackEntity.PROGRESS_ABORT);
+            }
+        }
+    }
+
+    // Counts the bytes written and broadcasts each new percentage.
+    private class Progress {
+        private long mWritten;
+        private int mPercent = -1;
+
+        void add(long count) {
+            mWritten += count;
+            int percent = (int) (100 * mWritten / mContentLength);
+            if (percent != mPercent) {
+                mPercent = percent;
+                ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken, percent);
+            }
+        }
+    }
+
+    private void writeData(OutputStream outstream, int index, byte[] buffer,
+            Progress progress) throws IOException {
+        PduPart part = mParts[index];
+        byte[] data = part.getData();
+        if (data != null) {
+            for (int pos = 0; pos < data.length; pos += BUFFER_SIZE) {
+                int len = Math.min(BUFFER_SIZE, data.length - pos);
+                outstream.write(data, pos, len);
+                progress.add(len);
+            }
+            return;
+        }
+        InputStream in = mContext.getContentResolver().openInputStream(part.getDataUri());
+        try {
+            long remaining = mDataLengths[index];
+            while (remaining > 0) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len < 0) {
+                    break;
+                }
+                outstream.write(buffer, 0, len);
+                remaining -= len;
+                progress.add(len);
+            }
+            if (remaining != 0 || in.read() >= 0) {
+                // The declared lengths would no longer match the data.
+                throw new IOException("Part " + part.getDataUri() + " changed while sent");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns the length of the data of the part, or -1 if it isn't known.
+    private static long getDataLength(Context context, PduPart part) {
+        byte[] data = part.getData();
+        if (data != null) {
+            return data.length;
+        }
+        Uri uri = part.getDataUri();
+        if (uri == null) {
+            return -1;
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            return pfd.getStatSize();
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "SendReqEntity: can't open " + uri);
+            return -1;
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    // Returns a SendReq with the headers PduComposer writes for an M-Send.req, or null if
+    // one of them can't be copied.
+    private static SendReq copyHeaders(SendReq sendReq) {
+        SendReq copy = new SendReq();
+        try {
+            copy.setTransactionId(sendReq.getTransactionId());
+            copy.setMmsVersion(sendReq.getMmsVersion());
+            copy.setDate(sendReq.getDate());
+            EncodedStringValue from = sendReq.getFrom();
+            if (from != null) {
+                copy.setFrom(from);
+            }
+            EncodedStringValue[] to = sendReq.getTo();
+            if (to != null) {
+                copy.setTo(to);
+            }
+            EncodedStringValue[] cc = sendReq.getCc();
+            if (cc != null) {
+                copy.setCc(cc);
+            }
+            EncodedStringValue[] bcc = sendReq.getBcc();
+            if (bcc != null) {
+                copy.setBcc(bcc);
+            }
+            EncodedStringValue subject = sendReq.getSubject();
+            if (subject != null) {
+                copy.setSubject(subject);
+            }
+            byte[] messageClass = sendReq.getMessageClass();
+            if (messageClass != null) {
+                copy.setMessageClass(messageClass);
+            }
+            copy.setExpiry(sendReq.getExpiry());
+            // The rest are 0 when they're not set, which isn't a valid value.
+            if (sendReq.getPriority() != 0) {
+                copy.setPriority(sendReq.getPriority());
+            }
+            if (sendReq.getDeliveryReport() != 0) {
+                copy.setDeliveryReport(sendReq.getDeliveryReport());
+            }
+            if (sendReq.getReadReport() != 0) {
+                copy.setReadReport(sendReq.getReadReport());
+            }
+            byte[] contentType = sendReq.getContentType();
+            if (contentType != null) {
+                copy.setContentType(contentType);
+            }
+        } catch (MmsException e) {
+            Log.w(TAG, "SendReqEntity: can't copy the headers, not streaming", e);
+            return null;
+        }
+        return copy;
+    }
+
+    // Composes the PDU with parts that have the headers of the parts of the body and the
+    // given data. The body of sendReq is replaced, so it must be a copy.
+    private static byte[] composeWithPartData(Context context, SendReq sendReq, PduBody body,
+            byte[] data) {
+        PduBody skeleton = new PduBody();
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            PduPart part = body.getPart(i);
+            PduPart copy = new PduPart();
+            copy.setContentType(part.getContentType());
+            copy.setName(part.getName());
+            copy.setFilename(part.getFilename());
+            copy.setContentLocation(part.getContentLocation());
+            copy.setContentId(part.getContentId());
+            copy.setContentDisposition(part.getContentDisposition());
+            copy.setContentTransferEncoding(part.getContentTransferEncoding());
+            copy.setCharset(part.getCharset());
+            copy.setData(data);
+            skeleton.addPart(copy);
+        }
+        sendReq.setBody(skeleton);
+        return new PduComposer(context, sendReq).make();
+    }
+
+    // Reads a uintvar at position[0] and moves past it. Returns -1 if it's truncated.
+    private static long readUintvar(byte[] buffer, int[] position) {
+        long value = 0;
+        while (position[0] < buffer.length) {
+            int b = buffer[position[0]++] & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static int uintvarLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeUintvar(OutputStream out, long value) throws IOException {
+        for (int shift = (uintvarLength(value) - 1) * 7; shift > 0; shift -= 7) {
+            out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+        }
+        out.write((int) (value & 0x7f));
+    }
+}
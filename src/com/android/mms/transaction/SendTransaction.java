@@ -57,7 +57,6 @@ import com.google.android.mms.pdu.SendReq;
 public class SendTransaction extends Transaction implements Runnable {
     private static final String TAG = "SendTransaction";
 
-    private Thread mThread;
     public final Uri mSendReqURI;
 
     public SendTransaction(Context context,
@@ -76,8 +75,7 @@ public class SendTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        mThread = new Thread(this, "SendTransaction");
-        mThread.start();
+        execute(this, "SendTransaction");
     }
 
     public void run() {
@@ -108,10 +106,13 @@ public class SendTransaction extends Transaction implements Runnable {
                 sendReq.setFrom(new EncodedStringValue(lineNumber));
             }
 
-            // Pack M-Send.req, send it, retrieve confirmation data, and parse it
+            // Pack M-Send.req, send it, retrieve confirmation data, and parse it.
+            // Stream the parts from their files if possible.
             long tokenKey = ContentUris.parseId(mSendReqURI);
-            byte[] response = sendPdu(SendingProgressTokenManager.get(tokenKey),
-                                      new PduComposer(mContext, sendReq).make());
+            long token = SendingProgressTokenManager.get(tokenKey);
+            SendReqEntity entity = SendReqEntity.create(mContext, token, sendReq);
+            byte[] response = entity != null ? sendPdu(token, entity)
+                    : sendPdu(token, new PduComposer(mContext, sendReq).make());
             SendingProgressTokenManager.remove(tokenKey);
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
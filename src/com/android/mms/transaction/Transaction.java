@@ -20,6 +20,11 @@ package com.android.mms.transaction;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.AbstractHttpEntity;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
@@ -58,6 +63,19 @@ public abstract class Transaction extends Observable {
      */
     public static final int READREC_TRANSACTION      = 3;
 
+    // The most transactions running at the same time. TransactionService also limits
+    // the transactions talking to each MMSC, the others wait here for a thread.
+    private static final int MAX_THREADS = 8;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     public Transaction(Context context, int serviceId,
             TransactionSettings settings) {
         mContext = context;
@@ -82,6 +100,26 @@ public abstract class Transaction extends Observable {
      */
     public abstract void process();
 
+    /**
+     * Runs the task on a pooled background thread, named after the task while it runs.
+     * Used by {@link #process} implementations instead of starting a thread each.
+     */
+    protected static void execute(final Runnable task, final String name) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                String poolName = thread.getName();
+                thread.setName(name);
+                try {
+                    task.run();
+                } finally {
+                    thread.setName(poolName);
+                }
+            }
+        });
+    }
+
     /**
      * Used to determine whether a transaction is equivalent to this instance.
      *
@@ -181,7 +219,30 @@ public abstract class Transaction extends Observable {
     }
 
     /**
-     * A common method to retrieve a PDU from MMSC.
+     * Sends a PDU to MMSC that is written by the given entity while it's sent, instead
+     * of being composed in memory first.
+     *
+     * @param token The token to identify the sending progress.
+     * @param pdu The entity which writes the data of the PDU.
+     * @return A byte array which contains the response data.
+     *         If an HTTP error code is returned, an IOException will be thrown.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(>=400) returned from the server.
+     */
+    protected byte[] sendPdu(long token, AbstractHttpEntity pdu) throws IOException {
+        String mmscUrl = mTransactionSettings.getMmscUrl();
+        ensureRouteToHost(mmscUrl, mTransactionSettings);
+        return HttpUtils.httpPost(
+                mContext, token,
+                mmscUrl, pdu,
+                mTransactionSettings.isProxySet(),
+                mTransactionSettings.getProxyAddress(),
+                mTransactionSettings.getProxyPort());
+    }
+
+    /**
+     * A common method to retrieve a PDU from MMSC. If an earlier attempt was cut off in
+     * the middle of the PDU, only the rest of it is retrieved.
      *
      * @param url The URL of the message which we are going to retrieve.
      * @return A byte array which contains the data of the PDU.
@@ -191,9 +252,8 @@ public abstract class Transaction extends Observable {
      */
     protected byte[] getPdu(String url) throws IOException {
         ensureRouteToHost(url, mTransactionSettings);
-        return HttpUtils.httpConnection(
-                mContext, SendingProgressTokenManager.NO_TOKEN,
-                url, null, HttpUtils.HTTP_GET_METHOD,
+        return HttpUtils.httpGet(
+                mContext, url, PartialDownload.open(mContext, url),
                 mTransactionSettings.isProxySet(),
                 mTransactionSettings.getProxyAddress(),
                 mTransactionSettings.getProxyPort());
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The transactions of {@link TransactionService}: the ones being processed and the
+ * pending ones, waiting for MMS connectivity or for their turn. At most a given number
+ * of transactions are processed at the same time for each MMSC, the others wait in the
+ * order they came in.
+ * <p>
+ * All methods are thread-safe. Callers that need several calls to be atomic lock the
+ * queue itself.
+ */
+final class TransactionQueue {
+    private final ArrayList<Transaction> mProcessing = new ArrayList<Transaction>();
+    private final ArrayList<Transaction> mPending = new ArrayList<Transaction>();
+    private final int mMaxPerMmsc;
+
+    /**
+     * Constructor.
+     *
+     * @param maxPerMmsc the number of transactions that may be processed at the same
+     *         time for the same MMSC.
+     */
+    TransactionQueue(int maxPerMmsc) {
+        mMaxPerMmsc = maxPerMmsc;
+    }
+
+    /**
+     * Returns true if a transaction equivalent to the given one is pending.
+     */
+    synchronized boolean isPending(Transaction transaction) {
+        return findEquivalent(mPending, transaction);
+    }
+
+    /**
+     * Returns true if a transaction equivalent to the given one is being processed.
+     */
+    synchronized boolean isProcessing(Transaction transaction) {
+        return findEquivalent(mProcessing, transaction);
+    }
+
+    /**
+     * Adds the transaction to the ones being processed if there's room for one more with
+     * its MMSC, or to the end of the pending ones.
+     *
+     * @return true if the transaction should be processed now.
+     */
+    synchronized boolean startOrDefer(Transaction transaction) {
+        if (countProcessing(getMmsc(transaction)) < mMaxPerMmsc) {
+            mProcessing.add(transaction);
+            return true;
+        }
+        mPending.add(transaction);
+        return false;
+    }
+
+    /**
+     * Adds the transaction to the end of the pending ones.
+     */
+    synchronized void defer(Transaction transaction) {
+        mPending.add(transaction);
+    }
+
+    /**
+     * Removes a transaction that is done from the ones being processed.
+     *
+     * @return true if it was being processed.
+     */
+    synchronized boolean finish(Transaction transaction) {
+        return mProcessing.remove(transaction);
+    }
+
+    /**
+     * Removes from the pending transactions, in order, as many as there's room for with
+     * their MMSC.
+     *
+     * @param settings if not null, the connection settings to give the removed
+     *         transactions before counting them against their MMSC.
+     */
+    synchronized ArrayList<Transaction> takeStartable(TransactionSettings settings) {
+        ArrayList<Transaction> startable = new ArrayList<Transaction>();
+        HashMap<String, Integer> taken = new HashMap<String, Integer>();
+        Iterator<Transaction> it = mPending.iterator();
+        while (it.hasNext()) {
+            Transaction transaction = it.next();
+            String mmsc = settings != null ? settings.getMmscUrl() : getMmsc(transaction);
+            Integer count = taken.get(mmsc);
+            if (count == null) {
+                count = countProcessing(mmsc);
+            }
+            if (count < mMaxPerMmsc) {
+                it.remove();
+                if (settings != null) {
+                    transaction.setConnectionSettings(settings);
+                }
+                startable.add(transaction);
+                taken.put(mmsc, count + 1);
+            }
+        }
+        return startable;
+    }
+
+    /**
+     * Removes all the pending transactions.
+     */
+    synchronized ArrayList<Transaction> takePending() {
+        ArrayList<Transaction> pending = new ArrayList<Transaction>(mPending);
+        mPending.clear();
+        return pending;
+    }
+
+    synchronized boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    synchronized boolean hasProcessing() {
+        return !mProcessing.isEmpty();
+    }
+
+    private static boolean findEquivalent(ArrayList<Transaction> transactions,
+            Transaction transaction) {
+        for (Transaction t : transactions) {
+            if (t.isEquivalent(transaction)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int countProcessing(String mmsc) {
+        int count = 0;
+        for (Transaction t : mProcessing) {
+            if (equals(mmsc, getMmsc(t))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String getMmsc(Transaction transaction) {
+        TransactionSettings settings = transaction.getConnectionSettings();
+        return settings != null ? settings.getMmscUrl() : null;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -19,6 +19,7 @@ package com.android.mms.transaction;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -53,6 +54,7 @@ import com.android.mms.MmsConfig;
 import com.android.mms.R;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.util.RateController;
+import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.GenericPdu;
 import com.google.android.mms.pdu.NotificationInd;
 import com.google.android.mms.pdu.PduHeaders;
@@ -141,8 +143,10 @@ public class TransactionService extends Service implements Observer {
 
     private ServiceHandler mServiceHandler;
     private Looper mServiceLooper;
-    private final ArrayList<Transaction> mProcessing  = new ArrayList<Transaction>();
-    private final ArrayList<Transaction> mPending  = new ArrayList<Transaction>();
+    private final TransactionQueue mQueue;
+    // The EVENT_TRANSACTION_REQUEST messages not handled yet, by request key. Only used
+    // on the service thread.
+    private final HashMap<String, Message> mQueuedRequests = new HashMap<String, Message>();
     private ConnectivityManager mConnMgr;
     private ConnectivityBroadcastReceiver mReceiver;
 
@@ -168,6 +172,15 @@ public class TransactionService extends Service implements Observer {
         }
     };
 
+    public TransactionService() {
+        this(MmsConfig.getMaxConcurrentTransactions());
+    }
+
+    // This is for testing only.
+    TransactionService(int maxConcurrentTransactions) {
+        mQueue = new TransactionQueue(maxConcurrentTransactions);
+    }
+
     @Override
     public void onCreate() {
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -331,12 +344,13 @@ public class TransactionService extends Service implements Observer {
     }
 
     private void stopSelfIfIdle(int startId) {
-        synchronized (mProcessing) {
-            if (mProcessing.isEmpty() && mPending.isEmpty()) {
+        synchronized (mQueue) {
+            if (!mQueue.hasProcessing() && !mQueue.hasPending()) {
                 if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                     Log.v(TAG, "stopSelfIfIdle: STOP!");
                 }
 
+                ResponseBodyBuffer.clearPool();
                 stopSelf(startId);
             }
         }
@@ -366,9 +380,23 @@ public class TransactionService extends Service implements Observer {
             onNetworkUnavailable(serviceId, txnBundle.getTransactionType());
             return;
         }
+        String key = getRequestKey(txnBundle);
+        Message queued = key != null ? mQueuedRequests.get(key) : null;
+        if (queued != null) {
+            // The same request is already waiting to be handled. Give it the newer start
+            // id, so the service stops once it's done.
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "launchTransaction: already queued " + key);
+            }
+            queued.arg1 = serviceId;
+            return;
+        }
         Message msg = mServiceHandler.obtainMessage(EVENT_TRANSACTION_REQUEST);
         msg.arg1 = serviceId;
         msg.obj = txnBundle;
+        if (key != null) {
+            mQueuedRequests.put(key, msg);
+        }
 
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
             Log.v(TAG, "launchTransaction: sending message " + msg);
@@ -376,6 +404,70 @@ public class TransactionService extends Service implements Observer {
         mServiceHandler.sendMessage(msg);
     }
 
+    /**
+     * Creates the transaction a request stands for. Called on the service thread.
+     * @return the transaction, or {@code null} if the request is invalid.
+     * @throws MmsException if the PDU of the request can't be loaded.
+     */
+    Transaction createTransaction(int serviceId, TransactionSettings transactionSettings,
+            TransactionBundle args) throws MmsException {
+        switch (args.getTransactionType()) {
+            case Transaction.NOTIFICATION_TRANSACTION:
+                String uri = args.getUri();
+                if (uri != null) {
+                    return new NotificationTransaction(this, serviceId, transactionSettings, uri);
+                }
+                // Now it's only used for test purpose.
+                byte[] pushData = args.getPushData();
+                PduParser parser = new PduParser(pushData);
+                GenericPdu ind = parser.parse();
+
+                int type = PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND;
+                if ((ind != null) && (ind.getMessageType() == type)) {
+                    return new NotificationTransaction(this, serviceId, transactionSettings,
+                            (NotificationInd) ind);
+                }
+                Log.e(TAG, "Invalid PUSH data.");
+                return null;
+            case Transaction.RETRIEVE_TRANSACTION:
+                return new RetrieveTransaction(this, serviceId, transactionSettings,
+                        args.getUri());
+            case Transaction.SEND_TRANSACTION:
+                return new SendTransaction(this, serviceId, transactionSettings, args.getUri());
+            case Transaction.READREC_TRANSACTION:
+                return new ReadRecTransaction(this, serviceId, transactionSettings,
+                        args.getUri());
+            default:
+                Log.w(TAG, "Invalid transaction type: " + serviceId);
+                return null;
+        }
+    }
+
+    // This is for testing only. Requests the transactions on the service thread, the way
+    // onNewIntent does for the pending messages.
+    void requestTransactions(final int serviceId, final ArrayList<TransactionBundle> txnBundles) {
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (TransactionBundle txnBundle : txnBundles) {
+                    launchTransaction(serviceId, txnBundle, false);
+                }
+            }
+        });
+    }
+
+    // This is for testing only. Starts the deferred transactions, the way the
+    // connectivity receiver does once the MMS APN is connected.
+    void onMmsConnected(TransactionSettings settings) {
+        mServiceHandler.processPendingTransaction(null, settings);
+    }
+
+    // Returns the key identical requests share, or null for requests carrying their PDU.
+    private static String getRequestKey(TransactionBundle txnBundle) {
+        String uri = txnBundle.getUri();
+        return uri != null ? txnBundle.getTransactionType() + " " + uri : null;
+    }
+
     private void onNetworkUnavailable(int serviceId, int transactionType) {
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
             Log.v(TAG, "onNetworkUnavailable: sid=" + serviceId + ", type=" + transactionType);
@@ -398,7 +490,7 @@ public class TransactionService extends Service implements Observer {
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
             Log.v(TAG, "Destroying TransactionService");
         }
-        if (!mPending.isEmpty()) {
+        if (mQueue.hasPending()) {
             Log.w(TAG, "TransactionService exiting with transaction still pending");
         }
 
@@ -409,6 +501,12 @@ public class TransactionService extends Service implements Observer {
         mServiceHandler.sendEmptyMessage(EVENT_QUIT);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ResponseBodyBuffer.clearPool();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -426,9 +524,9 @@ public class TransactionService extends Service implements Observer {
         }
 
         try {
-            synchronized (mProcessing) {
-                mProcessing.remove(transaction);
-                if (mPending.size() > 0) {
+            synchronized (mQueue) {
+                mQueue.finish(transaction);
+                if (mQueue.hasPending()) {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "update: handle next pending transaction...");
                     }
@@ -437,14 +535,14 @@ public class TransactionService extends Service implements Observer {
                             transaction.getConnectionSettings());
                     mServiceHandler.sendMessage(msg);
                 }
-                else if (mProcessing.isEmpty()) {
+                else if (!mQueue.hasProcessing()) {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "update: endMmsConnectivity");
                     }
                     endMmsConnectivity();
                 } else {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "update: mProcessing is not empty");
+                        Log.v(TAG, "update: transactions still processing");
                     }
                 }
             }
@@ -565,6 +663,8 @@ public class TransactionService extends Service implements Observer {
                         ConnectivityManager.TYPE_MOBILE,
                         Phone.FEATURE_ENABLE_MMS);
             }
+            // The connections to the MMSC go away with the APN.
+            HttpUtils.closeHttpClient();
         } finally {
             releaseWakeLock();
         }
@@ -626,10 +726,8 @@ public class TransactionService extends Service implements Observer {
                     return;
 
                 case EVENT_CONTINUE_MMS_CONNECTIVITY:
-                    synchronized (mProcessing) {
-                        if (mProcessing.isEmpty()) {
-                            return;
-                        }
+                    if (!mQueue.hasProcessing()) {
+                        return;
                     }
 
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -652,12 +750,17 @@ public class TransactionService extends Service implements Observer {
 
                     // Restart timer
                     renewMmsConnectivity();
+                    HttpUtils.closeIdleConnections();
                     return;
 
                 case EVENT_TRANSACTION_REQUEST:
                     int serviceId = msg.arg1;
                     try {
                         TransactionBundle args = (TransactionBundle) msg.obj;
+                        String key = getRequestKey(args);
+                        if (key != null) {
+                            mQueuedRequests.remove(key);
+                        }
                         TransactionSettings transactionSettings;
 
                         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -684,50 +787,9 @@ public class TransactionService extends Service implements Observer {
                         }
 
                         // Create appropriate transaction
-                        switch (transactionType) {
-                            case Transaction.NOTIFICATION_TRANSACTION:
-                                String uri = args.getUri();
-                                if (uri != null) {
-                                    transaction = new NotificationTransaction(
-                                            TransactionService.this, serviceId,
-                                            transactionSettings, uri);
-                                } else {
-                                    // Now it's only used for test purpose.
-                                    byte[] pushData = args.getPushData();
-                                    PduParser parser = new PduParser(pushData);
-                                    GenericPdu ind = parser.parse();
-
-                                    int type = PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND;
-                                    if ((ind != null) && (ind.getMessageType() == type)) {
-                                        transaction = new NotificationTransaction(
-                                                TransactionService.this, serviceId,
-                                                transactionSettings, (NotificationInd) ind);
-                                    } else {
-                                        Log.e(TAG, "Invalid PUSH data.");
-                                        transaction = null;
-                                        return;
-                                    }
-                                }
-                                break;
-                            case Transaction.RETRIEVE_TRANSACTION:
-                                transaction = new RetrieveTransaction(
-                                        TransactionService.this, serviceId,
-                                        transactionSettings, args.getUri());
-                                break;
-                            case Transaction.SEND_TRANSACTION:
-                                transaction = new SendTransaction(
-                                        TransactionService.this, serviceId,
-                                        transactionSettings, args.getUri());
-                                break;
-                            case Transaction.READREC_TRANSACTION:
-                                transaction = new ReadRecTransaction(
-                                        TransactionService.this, serviceId,
-                                        transactionSettings, args.getUri());
-                                break;
-                            default:
-                                Log.w(TAG, "Invalid transaction type: " + serviceId);
-                                transaction = null;
-                                return;
+                        transaction = createTransaction(serviceId, transactionSettings, args);
+                        if (transaction == null) {
+                            return;
                         }
 
                         if (!processTransaction(transaction)) {
@@ -744,11 +806,7 @@ public class TransactionService extends Service implements Observer {
                         if (transaction != null) {
                             try {
                                 transaction.detach(TransactionService.this);
-                                if (mProcessing.contains(transaction)) {
-                                    synchronized (mProcessing) {
-                                        mProcessing.remove(transaction);
-                                    }
-                                }
+                                mQueue.finish(transaction);
                             } catch (Throwable t) {
                                 Log.e(TAG, "Unexpected Throwable.", t);
                             } finally {
@@ -777,9 +835,8 @@ public class TransactionService extends Service implements Observer {
         }
 
         public void markAllPendingTransactionsAsFailed() {
-            synchronized (mProcessing) {
-                while (mPending.size() != 0) {
-                    Transaction transaction = mPending.remove(0);
+            synchronized (mQueue) {
+                for (Transaction transaction : mQueue.takePending()) {
                     transaction.mTransactionState.setState(TransactionState.FAILED);
                     if (transaction instanceof SendTransaction) {
                         Uri uri = ((SendTransaction)transaction).mSendReqURI;
@@ -804,43 +861,44 @@ public class TransactionService extends Service implements Observer {
                 Log.v(TAG, "processPendingTxn: transaction=" + transaction);
             }
 
-            int numProcessTransaction = 0;
-            synchronized (mProcessing) {
-                if (mPending.size() != 0) {
-                    transaction = mPending.remove(0);
-                }
-                numProcessTransaction = mProcessing.size();
+            ArrayList<Transaction> transactions;
+            boolean processing;
+            synchronized (mQueue) {
+                // As many of the deferred transactions as their MMSC takes at once.
+                transactions = mQueue.takeStartable(settings);
+                processing = mQueue.hasProcessing();
             }
-
-            if (transaction != null) {
+            if (transactions.isEmpty() && transaction != null) {
                 if (settings != null) {
                     transaction.setConnectionSettings(settings);
                 }
+                transactions.add(transaction);
+            }
 
+            for (Transaction t : transactions) {
                 /*
                  * Process deferred transaction
                  */
                 try {
-                    int serviceId = transaction.getServiceId();
+                    int serviceId = t.getServiceId();
 
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "processPendingTxn: process " + serviceId);
                     }
 
-                    if (processTransaction(transaction)) {
+                    if (processTransaction(t)) {
                         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "Started deferred processing of transaction  "
-                                    + transaction);
+                            Log.v(TAG, "Started deferred processing of transaction  " + t);
                         }
                     } else {
-                        transaction = null;
                         stopSelf(serviceId);
                     }
                 } catch (IOException e) {
                     Log.w(TAG, e.getMessage(), e);
                 }
-            } else {
-                if (numProcessTransaction == 0) {
+            }
+            if (transactions.isEmpty()) {
+                if (!processing) {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "processPendingTxn: no more transaction, endMmsConnectivity");
                     }
@@ -859,23 +917,19 @@ public class TransactionService extends Service implements Observer {
          */
         private boolean processTransaction(Transaction transaction) throws IOException {
             // Check if transaction already processing
-            synchronized (mProcessing) {
-                for (Transaction t : mPending) {
-                    if (t.isEquivalent(transaction)) {
-                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "Transaction already pending: " +
-                                    transaction.getServiceId());
-                        }
-                        return true;
+            synchronized (mQueue) {
+                if (mQueue.isPending(transaction)) {
+                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                        Log.v(TAG, "Transaction already pending: " +
+                                transaction.getServiceId());
                     }
+                    return true;
                 }
-                for (Transaction t : mProcessing) {
-                    if (t.isEquivalent(transaction)) {
-                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "Duplicated transaction: " + transaction.getServiceId());
-                        }
-                        return true;
+                if (mQueue.isProcessing(transaction)) {
+                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                        Log.v(TAG, "Duplicated transaction: " + transaction.getServiceId());
                     }
+                    return true;
                 }
 
                 /*
@@ -889,35 +943,34 @@ public class TransactionService extends Service implements Observer {
                 }
                 int connectivityResult = beginMmsConnectivity();
                 if (connectivityResult == PhoneConstants.APN_REQUEST_STARTED) {
-                    mPending.add(transaction);
+                    mQueue.defer(transaction);
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "processTransaction: connResult=APN_REQUEST_STARTED, " +
                                 "defer transaction pending MMS connectivity");
                     }
                     return true;
                 }
-                // If there is already a transaction in processing list, because of the previous
-                // beginMmsConnectivity call and there is another transaction just at a time,
-                // when the pdp is connected, there will be a case of adding the new transaction
-                // to the Processing list. But Processing list is never traversed to
-                // resend, resulting in transaction not completed/sent.
-                if (mProcessing.size() > 0) {
+                // Up to MmsConfig.getMaxConcurrentTransactions() transactions talk to
+                // the same MMSC at once. The others wait in the pending list, which is
+                // traversed again each time one of them is done.
+                if (!mQueue.startOrDefer(transaction)) {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "Adding transaction to 'mPending' list: " + transaction);
+                        Log.v(TAG, "Adding transaction to pending list: " + transaction);
                     }
-                    mPending.add(transaction);
                     return true;
                 } else {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "Adding transaction to 'mProcessing' list: " + transaction);
+                        Log.v(TAG, "Adding transaction to processing list: " + transaction);
                     }
-                    mProcessing.add(transaction);
                }
             }
 
-            // Set a timer to keep renewing our "lease" on the MMS connection
-            sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
-                               APN_EXTENSION_WAIT);
+            // Set a timer to keep renewing our "lease" on the MMS connection. One timer
+            // is enough for all the transactions running at the same time.
+            if (!hasMessages(EVENT_CONTINUE_MMS_CONNECTIVITY)) {
+                sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
+                                   APN_EXTENSION_WAIT);
+            }
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "processTransaction: starting transaction " + transaction);
@@ -410,6 +410,9 @@ public class MessageItem {
             }
             mItemLoadedFuture.cancel(mMessageUri);
             mItemLoadedFuture = null;
+        } else if (mMessageUri != null && isMms()) {
+            // The pdu is loaded, but the thumbnail prefetched with it may still be queued.
+            MmsApp.getApplication().getPduLoaderManager().cancelThumbnailPrefetch(mMessageUri);
         }
     }
 
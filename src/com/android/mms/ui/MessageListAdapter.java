@@ -22,6 +22,7 @@ import java.util.regex.Pattern;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -39,6 +40,7 @@ import android.widget.CursorAdapter;
 import android.widget.ListView;
 
 import com.android.mms.R;
+import com.android.mms.util.CacheStatsRecorder;
 import com.google.android.mms.MmsException;
 
 /**
@@ -230,9 +232,17 @@ public class MessageListAdapter extends CursorAdapter {
 
     public MessageItem getCachedMessageItem(String type, long msgId, Cursor c) {
         MessageItem item = mMessageItemCache.get(getKey(type, msgId));
+        CacheStatsRecorder stats = mMessageItemCache.mStats;
+        if (item != null) {
+            stats.recordHit();
+        } else {
+            stats.recordMiss();
+        }
         if (item == null && c != null && isCursorValid(c)) {
             try {
+                long start = SystemClock.elapsedRealtime();
                 item = new MessageItem(mContext, type, c, mColumnsMap, mHighlight);
+                stats.recordLoadTime(start);
                 mMessageItemCache.put(getKey(item.mType, item.mMsgId), item);
             } catch (MmsException e) {
                 Log.e(TAG, "getCachedMessageItem: ", e);
@@ -491,6 +501,32 @@ public class MessageListAdapter extends CursorAdapter {
     }
 
     private static class MessageItemCache extends LruCache<Long, MessageItem> {
+        // Rough size of a MessageItem apart from its strings.
+        private static final int ITEM_OVERHEAD_BYTES = 256;
+
+        final CacheStatsRecorder mStats = new CacheStatsRecorder("MessageListAdapter.items") {
+            @Override
+            public int getEntryCount() {
+                return size();
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                // The slideshows are counted by PduLoaderManager, not here.
+                long size = 0;
+                for (MessageItem item : snapshot().values()) {
+                    size += ITEM_OVERHEAD_BYTES + 2 * (length(item.mBody)
+                            + length(item.mSubject) + length(item.mAddress)
+                            + length(item.mContact) + length(item.mTimestamp));
+                }
+                return size;
+            }
+        };
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+
         public MessageItemCache(int maxSize) {
             super(maxSize);
         }
@@ -498,6 +534,9 @@ public class MessageListAdapter extends CursorAdapter {
         @Override
         protected void entryRemoved(boolean evicted, Long key,
                 MessageItem oldValue, MessageItem newValue) {
+            if (evicted) {
+                mStats.recordEvictions(1);
+            }
             oldValue.cancelPduLoading();
         }
     }
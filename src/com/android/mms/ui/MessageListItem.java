@@ -106,6 +106,9 @@ public class MessageListItem extends LinearLayout implements
     private Presenter mPresenter;
     private int mPosition;      // for debugging
     private ImageLoadedCallback mImageLoadedCallback;
+    // The thumbnail shown by mImageView, handed back to the ThumbnailManager when it's
+    // replaced or the item is recycled.
+    private Bitmap mThumbnail;
     private boolean mMultiRecipients;
 
     public MessageListItem(Context context) {
@@ -177,6 +180,9 @@ public class MessageListItem extends LinearLayout implements
             // Because #setOnClickListener may have set the listener to an object that has the
             // message item in its closure.
             mImageView.setOnClickListener(null);
+            // So that the thumbnail can be reused for the items scrolling in.
+            mImageView.setImageDrawable(null);
+            setThumbnail(null);
         }
         if (mSlideShowButton != null) {
             // Because #drawPlaybackButton sets the tag to mMessageItem
@@ -378,6 +384,7 @@ public class MessageListItem extends LinearLayout implements
             if (mMessageItem.mAttachmentType != WorkingMessage.TEXT) {
                 if (!sameItem) {
                     setImage(null, null);
+                    setThumbnail(null);
                 }
                 setOnClickListener(mMessageItem);
                 drawPlaybackButton(mMessageItem);
@@ -450,10 +457,23 @@ public class MessageListItem extends LinearLayout implements
                 } else {
                     mListItem.setImage(null, imageLoaded.mBitmap);
                 }
+                mListItem.setThumbnail(imageLoaded.mBitmap);
+            } else {
+                MmsApp.getApplication().getThumbnailManager().releaseBitmap(imageLoaded.mBitmap);
             }
         }
     }
 
+    // Keeps the thumbnail now displayed and releases the previous one, which must no
+    // longer be displayed.
+    private void setThumbnail(Bitmap bitmap) {
+        Bitmap previous = mThumbnail;
+        mThumbnail = bitmap;
+        if (previous != null) {
+            MmsApp.getApplication().getThumbnailManager().releaseBitmap(previous);
+        }
+    }
+
     @Override
     public void startAudio() {
         // TODO Auto-generated method stub
@@ -20,16 +20,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -44,13 +47,22 @@ import android.util.Log;
  * request lots of images around the same time, and AsyncTask may reject tasks
  * in that case and has no way of bounding the number of threads used by those
  * tasks.
+ * <p>
+ * Queued tasks run most recent first, since the most recently bound views are the
+ * ones on screen, and requests without a callback run after all requests with one.
+ * When the last callback for a URI is canceled, its queued task is dropped.
  *
  * Based on BooksImageManager by Virgil King.
  */
 abstract class BackgroundLoaderManager {
     private static final String TAG = "BackgroundLoaderManager";
 
-    private static final int MAX_THREADS = 2;
+    private static final int MIN_THREADS = 2;
+
+    /** Priority of tasks that a view is waiting for. */
+    protected static final int PRIORITY_VISIBLE = 1;
+    /** Priority of tasks nobody is waiting for yet. */
+    protected static final int PRIORITY_PREFETCH = 0;
 
     /**
      * URIs for which tasks are currently enqueued. Don't enqueue new tasks for
@@ -60,25 +72,106 @@ abstract class BackgroundLoaderManager {
 
     protected final HashMap<Uri, Set<ItemLoadedCallback>> mCallbacks;
 
-    protected final Executor mExecutor;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Tasks that haven't started yet, by URI. Written on the UI thread, entries are
+     * removed by the worker that starts the task.
+     */
+    private final ConcurrentHashMap<Uri, QueuedTask> mQueuedTasks;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mCompletedTaskCount = new AtomicLong();
+    private final AtomicLong mTotalLatencyMillis = new AtomicLong();
 
     protected final Handler mCallbackHandler;
 
     BackgroundLoaderManager(Context context) {
         mPendingTaskUris = new HashSet<Uri>();
         mCallbacks = new HashMap<Uri, Set<ItemLoadedCallback>>();
-        final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-        final int poolSize = MAX_THREADS;
+        mQueuedTasks = new ConcurrentHashMap<Uri, QueuedTask>();
+        final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+        final int poolSize = Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors());
         mExecutor = new ThreadPoolExecutor(
                 poolSize, poolSize, 5, TimeUnit.SECONDS, queue,
                 new BackgroundLoaderThreadFactory(getTag()));
         mCallbackHandler = new Handler();
     }
 
+    /**
+     * Queues a task loading the given URI. A task queued again before it starts,
+     * through {@link #promoteTask}, moves to the front of its priority class.
+     *
+     * @param uri the URI the task loads, or null if the task can't be canceled.
+     * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}.
+     */
+    protected void executeTask(Uri uri, Runnable task, int priority) {
+        enqueue(new QueuedTask(uri, task, priority, SystemClock.elapsedRealtime()));
+    }
+
+    private void enqueue(QueuedTask queued) {
+        if (queued.mUri != null) {
+            mQueuedTasks.put(queued.mUri, queued);
+        }
+        mExecutor.execute(queued);
+    }
+
+    /**
+     * Moves the queued task for the URI, if it hasn't started yet, to the front of the
+     * queue with the given priority. Called when a view asks again for an item.
+     */
+    protected void promoteTask(Uri uri, int priority) {
+        QueuedTask queued = mQueuedTasks.get(uri);
+        if (queued != null && mExecutor.remove(queued)) {
+            enqueue(new QueuedTask(uri, queued.mTask, Math.max(priority, queued.mPriority),
+                    queued.mQueuedTime));
+        }
+    }
+
+    /**
+     * Called on the UI thread when a queued task was dropped because nobody waits for
+     * its result anymore.
+     */
+    protected void onTaskCanceled(Uri uri, Runnable task) {
+    }
+
+    /**
+     * Returns the number of tasks that ran to completion.
+     */
+    public long getCompletedTaskCount() {
+        return mCompletedTaskCount.get();
+    }
+
+    /**
+     * Returns the sum of the times from queuing to completion of the completed tasks.
+     */
+    public long getTotalLatencyMillis() {
+        return mTotalLatencyMillis.get();
+    }
+
     /**
      * Release memory if possible.
      */
     public void onLowMemory() {
+        trimMemory(0);
+    }
+
+    /**
+     * Release some memory depending on the level, see {@link ComponentCallbacks2}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimMemory(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimMemory(50);
+        }
+    }
+
+    /**
+     * Shrink the in-memory caches to the given percentage of their budget. The default
+     * implementation clears everything.
+     */
+    protected void trimMemory(int percent) {
         clear();
     }
 
@@ -127,9 +220,45 @@ abstract class BackgroundLoaderManager {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "Cancelling image callback " + callback);
         }
+        ArrayList<Uri> abandoned = null;
         for (final Uri uri : mCallbacks.keySet()) {
             final Set<ItemLoadedCallback> callbacks = mCallbacks.get(uri);
-            callbacks.remove(callback);
+            if (callbacks.remove(callback) && callbacks.isEmpty()) {
+                if (abandoned == null) {
+                    abandoned = new ArrayList<Uri>();
+                }
+                abandoned.add(uri);
+            }
+        }
+        if (abandoned != null) {
+            for (Uri uri : abandoned) {
+                cancelQueuedTask(uri);
+            }
+        }
+    }
+
+    /**
+     * Drops the queued task for the URI if it hasn't started yet and nobody has a
+     * callback registered for it. Used to cancel a prefetch that no view has asked for.
+     */
+    protected void cancelUnclaimedTask(Uri uri) {
+        Set<ItemLoadedCallback> callbacks = mCallbacks.get(uri);
+        if (callbacks == null || callbacks.isEmpty()) {
+            cancelQueuedTask(uri);
+        }
+    }
+
+    // Drops the task for the URI if it hasn't started yet.
+    private void cancelQueuedTask(Uri uri) {
+        QueuedTask queued = mQueuedTasks.get(uri);
+        if (queued != null && mExecutor.remove(queued)) {
+            mQueuedTasks.remove(uri, queued);
+            mCallbacks.remove(uri);
+            mPendingTaskUris.remove(uri);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Dropped queued task for " + uri);
+            }
+            onTaskCanceled(uri, queued.mTask);
         }
     }
 
@@ -141,6 +270,47 @@ abstract class BackgroundLoaderManager {
         return new ArrayList<T>(source);
     }
 
+    /**
+     * Wraps a task with its place in the queue. Higher priorities run first, and within
+     * a priority the most recently queued task runs first.
+     */
+    private class QueuedTask implements Runnable, Comparable<QueuedTask> {
+        final Uri mUri;
+        final Runnable mTask;
+        final int mPriority;
+        final long mSequence;
+        final long mQueuedTime;
+
+        QueuedTask(Uri uri, Runnable task, int priority, long queuedTime) {
+            mUri = uri;
+            mTask = task;
+            mPriority = priority;
+            mSequence = BackgroundLoaderManager.this.mSequence.incrementAndGet();
+            mQueuedTime = queuedTime;
+        }
+
+        @Override
+        public void run() {
+            if (mUri != null) {
+                mQueuedTasks.remove(mUri, this);
+            }
+            mTask.run();
+            mCompletedTaskCount.incrementAndGet();
+            mTotalLatencyMillis.addAndGet(SystemClock.elapsedRealtime() - mQueuedTime);
+        }
+
+        @Override
+        public int compareTo(QueuedTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            if (mSequence != another.mSequence) {
+                return mSequence > another.mSequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
     /**
      * {@link ThreadFactory} which sets a meaningful name for the thread.
      */
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Keeps bitmaps nobody displays anymore so that their memory can be decoded into
+ * again with {@link android.graphics.BitmapFactory.Options#inBitmap}, instead of
+ * allocating a new bitmap for every thumbnail and leaving the old ones to the
+ * garbage collector.
+ * <p>
+ * Bitmaps are bucketed by the size of their allocation. {@link #get} hands out the
+ * smallest bitmap that is big enough, as long as it doesn't waste more than half of
+ * its memory. When the pool is over budget the bitmaps pooled first are dropped.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class BitmapPool {
+
+    // A pooled bitmap may be up to this many times bigger than the one asked for.
+    private static final int MAX_WASTE_FACTOR = 2;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayList<Bitmap>>();
+    // All the pooled bitmaps, the ones pooled first come first.
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<Bitmap>();
+    private final int mMaxSize;
+    private int mSize;
+    private final CacheStatsRecorder mStats;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name the pool statistics are reported under.
+     * @param maxSize the budget for the sum of the allocation sizes of the pooled bitmaps.
+     */
+    public BitmapPool(String name, int maxSize) {
+        mMaxSize = maxSize;
+        mStats = new CacheStatsRecorder(name) {
+            @Override
+            public int getEntryCount() {
+                synchronized (BitmapPool.this) {
+                    return mBitmaps.size();
+                }
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                synchronized (BitmapPool.this) {
+                    return mSize;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a pooled bitmap of at least the given allocation size, or null if there is
+     * none. The bitmap is removed from the pool, its content is undefined.
+     */
+    public synchronized Bitmap get(int minSize) {
+        Integer size = mBuckets.ceilingKey(minSize);
+        if (size == null || size > (long) minSize * MAX_WASTE_FACTOR) {
+            mStats.recordMiss();
+            return null;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mBitmaps.remove(bitmap);
+        mSize -= size;
+        mStats.recordHit();
+        return bitmap;
+    }
+
+    /**
+     * Adds the bitmap to the pool. The caller must not use the bitmap anymore.
+     * Bitmaps that can't be decoded into, because they are immutable or recycled,
+     * are not pooled.
+     *
+     * @return true if the bitmap was pooled.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return false;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > mMaxSize || !mBitmaps.add(bitmap)) {
+            return false;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Drops bitmaps until the pool uses at most the given percentage of its budget.
+     */
+    public synchronized void trim(int percent) {
+        trimToSize((int) ((long) mMaxSize * percent / 100));
+    }
+
+    /**
+     * Drops all the pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(int maxSize) {
+        int evicted = 0;
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            int size = bitmap.getAllocationByteCount();
+            ArrayList<Bitmap> bucket = mBuckets.get(size);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+            mSize -= size;
+            evicted++;
+        }
+        if (evicted > 0) {
+            mStats.recordEvictions(evicted);
+        }
+    }
+
+    /**
+     * Returns the statistics of this pool. A hit is a {@link #get} that returned a bitmap.
+     */
+    public CacheStatsRecorder getStats() {
+        return mStats;
+    }
+}
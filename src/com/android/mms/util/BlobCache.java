@@ -51,13 +51,31 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. The instance of this class supports
+// concurrent use by multiple threads: lookups run in parallel with each other
+// (each call keeps its own scratch state and reads the data files with
+// positional FileChannel reads), while inserts are serialized on the active
+// region. Flipping the regions waits for in-flight lookups to finish. Callers
+// must not interrupt a thread blocked in this class, because an interrupted
+// FileChannel closes itself.
+//
+// Optionally the data files are memory-mapped read-only as well, and blobs can
+// be looked up as ByteBuffer slices of the mapping without copying them. In
+// that mode the active data file and its mapping grow in steps as blobs are
+// appended, and the data files never shrink while mapped, so a slice never
+// points past the end of its file. A slice is only guaranteed to hold the blob
+// until the regions are flipped; callers compare getGeneration() before and
+// after using it.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
+// public BlobCache(String path, int maxEntries, int maxBytes, boolean reset, int version,
+//         boolean mapDataFiles) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
+// public void insertBatch(long[] keys, byte[][] blobs) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public ByteBuffer lookupBuffer(long key) throws IOException;
+// public int getGeneration();
 // public void close();
 // public void syncIndex();
 // public void syncAll();
@@ -69,11 +87,19 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 public class BlobCache implements Closeable {
@@ -102,12 +128,42 @@ public class BlobCache implements Closeable {
     private static final int BH_LENGTH = 16;
     private static final int BLOB_HEADER_SIZE = 20;
 
+    // insertBatch() appends blobs in writes of about this many bytes.
+    private static final int WRITE_BEHIND_BYTES = 256 * 1024;
+
+    // A mapped data file is grown and remapped in steps of this many bytes.
+    private static final int MAP_GROW_BYTES = 1024 * 1024;
+
+    // Single inserts don't sync the index; it is synced this long after the
+    // first unsynced insert instead.
+    private static final long INDEX_SYNC_DELAY_MS = 2000;
+
+    // Runs the deferred index syncs of all caches.
+    private static ScheduledExecutorService sSyncExecutor;
+
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
+    private FileChannel mDataChannel0;
+    private FileChannel mDataChannel1;
     private FileChannel mIndexChannel;
     private MappedByteBuffer mIndexBuffer;
 
+    // Read-only mappings of the data files, only used if mMapDataFiles is set.
+    private final boolean mMapDataFiles;
+    private MappedByteBuffer mDataBuffer0;
+    private MappedByteBuffer mDataBuffer1;
+    private MappedByteBuffer mActiveDataBuffer;
+    private MappedByteBuffer mInactiveDataBuffer;
+
+    // Incremented on every region flip, with the write lock of mRegionLock
+    // held. See lookupBuffer().
+    private volatile int mGeneration;
+
+    // Guarded by mInsertLock.
+    private boolean mIndexSyncScheduled;
+    private volatile boolean mClosed;
+
     private int mMaxEntries;
     private int mMaxBytes;
     private int mActiveRegion;
@@ -115,13 +171,38 @@ public class BlobCache implements Closeable {
     private int mActiveBytes;
     private int mVersion;
 
-    private RandomAccessFile mActiveDataFile;
-    private RandomAccessFile mInactiveDataFile;
+    // Size of the inactive region, only kept for the statistics.
+    private int mInactiveEntries;
+    private int mInactiveBytes;
+    private final CacheStatsRecorder mStats;
+
+    private FileChannel mActiveDataChannel;
+    private FileChannel mInactiveDataChannel;
     private int mActiveHashStart;
     private int mInactiveHashStart;
     private byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
-    private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
-    private Adler32 mAdler32 = new Adler32();
+
+    // Scratch state of the inserting thread. Only touched while holding
+    // mInsertLock (or from the constructor).
+    private final Cursor mInsertCursor = new Cursor();
+
+    // Held by every insert, including the copy-over done by lookup. It guards
+    // the active region and mIndexHeader.
+    private final ReentrantLock mInsertLock = new ReentrantLock();
+
+    // Lookups hold the read lock. Flipping the regions (which truncates the
+    // new active file and clears its hash table) holds the write lock.
+    private final ReentrantReadWriteLock mRegionLock = new ReentrantReadWriteLock();
+
+    // Per-call scratch state, so lookups on different threads never share
+    // buffers. See lookupInternal() for the meaning of the offsets.
+    private static class Cursor {
+        final byte[] blobHeader = new byte[BLOB_HEADER_SIZE];
+        byte[] chunk;   // allocated on demand to checksum mapped blobs
+        final Adler32 adler32 = new Adler32();
+        int slotOffset;
+        int fileOffset;
+    }
 
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
@@ -136,9 +217,30 @@ public class BlobCache implements Closeable {
 
     public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
             int version) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, false);
+    }
+
+    // If "mapDataFiles" is true, the data files are also mapped into memory
+    // and lookupBuffer() can be used.
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean mapDataFiles) throws IOException {
+        mMapDataFiles = mapDataFiles;
+        mStats = new CacheStatsRecorder(TAG + ":" + new File(path).getName()) {
+            @Override
+            public int getEntryCount() {
+                return mActiveEntries + mInactiveEntries;
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                return (long) mActiveBytes + mInactiveBytes;
+            }
+        };
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
+        mDataChannel0 = mDataFile0.getChannel();
+        mDataChannel1 = mDataFile1.getChannel();
         mVersion = version;
 
         if (!reset && loadIndex()) {
@@ -173,8 +275,16 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mInsertLock.lock();
+        mRegionLock.writeLock().lock();
+        try {
+            mClosed = true;
+            syncAll();
+            closeAll();
+        } finally {
+            mRegionLock.writeLock().unlock();
+            mInsertLock.unlock();
+        }
     }
 
     private void closeAll() {
@@ -215,7 +325,7 @@ public class BlobCache implements Closeable {
             mActiveBytes = readInt(buf, IH_ACTIVE_BYTES);
 
             int sum = readInt(buf, IH_CHECKSUM);
-            if (checkSum(buf, 0, IH_CHECKSUM) != sum) {
+            if (checkSum(mInsertCursor, buf, 0, IH_CHECKSUM) != sum) {
                 Log.w(TAG, "header checksum does not match");
                 return false;
             }
@@ -273,6 +383,17 @@ public class BlobCache implements Closeable {
             mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
             setActiveVariables();
+            mInactiveEntries = countEntries(mInactiveHashStart);
+            mInactiveBytes = countBytes(mInactiveHashStart,
+                    mActiveRegion == 0 ? mDataFile1 : mDataFile0);
+
+            if (mMapDataFiles) {
+                mDataBuffer0 = mapDataFile(mDataFile0, mDataChannel0,
+                        (int) Math.min(mMaxBytes, mDataFile0.length()));
+                mDataBuffer1 = mapDataFile(mDataFile1, mDataChannel1,
+                        (int) Math.min(mMaxBytes, mDataFile1.length()));
+                setActiveBuffers();
+            }
             return true;
         } catch (IOException ex) {
             Log.e(TAG, "loadIndex failed.", ex);
@@ -281,10 +402,16 @@ public class BlobCache implements Closeable {
     }
 
     private void setActiveVariables() throws IOException {
-        mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
-        mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
-        mActiveDataFile.setLength(mActiveBytes);
-        mActiveDataFile.seek(mActiveBytes);
+        RandomAccessFile activeDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
+        mActiveDataChannel = (mActiveRegion == 0) ? mDataChannel0 : mDataChannel1;
+        mInactiveDataChannel = (mActiveRegion == 1) ? mDataChannel0 : mDataChannel1;
+        // A mapped data file must not shrink, or readers of the old mapping
+        // would fault. The stale bytes past mActiveBytes are overwritten as
+        // new blobs are appended. Before the files are mapped (when the index
+        // is loaded) it is still safe to truncate.
+        if (mActiveDataBuffer == null) {
+            activeDataFile.setLength(mActiveBytes);
+        }
 
         mActiveHashStart = INDEX_HEADER_SIZE;
         mInactiveHashStart = INDEX_HEADER_SIZE;
@@ -296,6 +423,48 @@ public class BlobCache implements Closeable {
         }
     }
 
+    private void setActiveBuffers() {
+        mActiveDataBuffer = (mActiveRegion == 0) ? mDataBuffer0 : mDataBuffer1;
+        mInactiveDataBuffer = (mActiveRegion == 1) ? mDataBuffer0 : mDataBuffer1;
+    }
+
+    // Grows the data file to at least "size" bytes and maps the first "size"
+    // bytes read-only. Blobs are later written through the channel; the mapping
+    // sees them since both go through the same page cache.
+    private static MappedByteBuffer mapDataFile(RandomAccessFile file, FileChannel channel,
+            int size) throws IOException {
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // Makes sure the mapping of the active data file covers its first "end"
+    // bytes, growing the file and remapping it in steps of MAP_GROW_BYTES.
+    // Must be called with mInsertLock held, before anything is written there.
+    // The new mapping is published under the write lock of mRegionLock, so a
+    // lookup that finds a blob past the old mapping also sees the new one.
+    private void ensureActiveMapped(int end) throws IOException {
+        if (!mMapDataFiles || end <= mActiveDataBuffer.capacity()) return;
+        long steps = ((long) end + MAP_GROW_BYTES - 1) / MAP_GROW_BYTES;
+        int size = (int) Math.min(mMaxBytes, steps * MAP_GROW_BYTES);
+        RandomAccessFile file = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
+        MappedByteBuffer buffer = mapDataFile(file, mActiveDataChannel, size);
+        mRegionLock.writeLock().lock();
+        try {
+            if (mActiveRegion == 0) {
+                mDataBuffer0 = buffer;
+            } else {
+                mDataBuffer1 = buffer;
+            }
+            mActiveDataBuffer = buffer;
+        } finally {
+            mRegionLock.writeLock().unlock();
+        }
+    }
+
     private void resetCache(int maxEntries, int maxBytes) throws IOException {
         mIndexFile.setLength(0);  // truncate to zero the index
         mIndexFile.setLength(INDEX_HEADER_SIZE + maxEntries * 12 * 2);
@@ -308,7 +477,7 @@ public class BlobCache implements Closeable {
         writeInt(buf, IH_ACTIVE_ENTRIES, 0);
         writeInt(buf, IH_ACTIVE_BYTES, DATA_HEADER_SIZE);
         writeInt(buf, IH_VERSION, mVersion);
-        writeInt(buf, IH_CHECKSUM, checkSum(buf, 0, IH_CHECKSUM));
+        writeInt(buf, IH_CHECKSUM, checkSum(mInsertCursor, buf, 0, IH_CHECKSUM));
         mIndexFile.write(buf);
         // This is only needed if setLength does not zero the extended part.
         // writeZero(mIndexFile, maxEntries * 12 * 2);
@@ -323,7 +492,13 @@ public class BlobCache implements Closeable {
     }
 
     // Flip the active region and the inactive region.
+    // Must be called with mInsertLock and the write lock of mRegionLock held.
     private void flipRegion() throws IOException {
+        // Everything in the old inactive region is dropped.
+        mStats.recordEvictions(mInactiveEntries);
+        mInactiveEntries = mActiveEntries;
+        mInactiveBytes = mActiveBytes;
+
         mActiveRegion = 1 - mActiveRegion;
         mActiveEntries = 0;
         mActiveBytes = DATA_HEADER_SIZE;
@@ -334,14 +509,18 @@ public class BlobCache implements Closeable {
         updateIndexHeader();
 
         setActiveVariables();
+        if (mMapDataFiles) {
+            setActiveBuffers();
+        }
         clearHash(mActiveHashStart);
+        mGeneration++;
         syncIndex();
     }
 
     // Sync mIndexHeader to the index file.
     private void updateIndexHeader() {
         writeInt(mIndexHeader, IH_CHECKSUM,
-                checkSum(mIndexHeader, 0, IH_CHECKSUM));
+                checkSum(mInsertCursor, mIndexHeader, 0, IH_CHECKSUM));
         mIndexBuffer.position(0);
         mIndexBuffer.put(mIndexHeader);
     }
@@ -363,38 +542,249 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
+        mInsertLock.lock();
+        try {
+            if (!hasRoomInActiveRegion(data.length)) {
+                flipRegionExclusive();
+            }
+
+            Cursor cursor = mInsertCursor;
+            boolean found = lookupInternal(key, mActiveHashStart, cursor);
+            insertInternal(key, ByteBuffer.wrap(data),
+                    checkSum(cursor, data, 0, data.length), cursor);
+            if (!found) {
+                // If we don't have an existing entry with the same key, increase
+                // the entry count.
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
+            updateIndexHeader();
+            scheduleSyncIndex();
+        } finally {
+            mInsertLock.unlock();
         }
+    }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+    // Inserts several (key, data) pairs into the cache. This is equivalent to
+    // calling insert() for each pair in order, but the blobs are collected in a
+    // write-behind buffer and appended to the data file with a few large
+    // writes, and the index is synced once at the end instead of per blob.
+    // The header counters only cover blobs whose writes succeeded.
+    public void insertBatch(long[] keys, byte[][] blobs) throws IOException {
+        if (keys.length != blobs.length) {
+            throw new IllegalArgumentException("keys and blobs differ in length");
+        }
+        for (byte[] data : blobs) {
+            if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data.length > mMaxBytes) {
+                throw new RuntimeException("blob is too large!");
+            }
         }
 
-        insertInternal(key, data, data.length);
+        mInsertLock.lock();
+        try {
+            Cursor cursor = mInsertCursor;
+            WriteBehindBuffer pending = new WriteBehindBuffer(keys.length, mActiveBytes);
+            for (int i = 0; i < keys.length; i++) {
+                long key = keys[i];
+                byte[] data = blobs[i];
+                if (!hasRoomInActiveRegion(pending.getEnd(),
+                        mActiveEntries + pending.mNewEntries, data.length)) {
+                    flushWriteBehind(pending);
+                    flipRegionExclusive();
+                    pending.reset(mActiveBytes);
+                }
+
+                boolean found = lookupInternal(key, mActiveHashStart, cursor);
+                if (pending.hasSlot(cursor.slotOffset)) {
+                    // The slot was picked for an unpublished blob of this batch
+                    // (same key, or a collision). Publish first, then probe again.
+                    flushWriteBehind(pending);
+                    pending.reset(mActiveBytes);
+                    found = lookupInternal(key, mActiveHashStart, cursor);
+                }
+
+                pending.append(key, data, checkSum(cursor, data, 0, data.length),
+                        cursor.slotOffset, pending.getEnd(), !found);
+
+                if (pending.mLength >= WRITE_BEHIND_BYTES) {
+                    flushWriteBehind(pending);
+                    pending.reset(mActiveBytes);
+                }
+            }
+            flushWriteBehind(pending);
+        } finally {
+            mInsertLock.unlock();
+        }
+        syncIndex();
+    }
+
+    // Blobs of an insertBatch() call that are not written to the active file
+    // yet, laid out exactly as they will be in the file, plus the hash entries
+    // to publish once they are written.
+    private static class WriteBehindBuffer {
+        byte[] mBuffer = new byte[1024];
+        int mLength;
+        int mFileOffset;    // where mBuffer[0] goes in the active file
+        final long[] mKeys;
+        final int[] mSlotOffsets;
+        final int[] mBlobOffsets;
+        int mCount;
+        int mNewEntries;    // blobs that don't replace an entry of the region
+
+        WriteBehindBuffer(int capacity, int fileOffset) {
+            mKeys = new long[capacity];
+            mSlotOffsets = new int[capacity];
+            mBlobOffsets = new int[capacity];
+            mFileOffset = fileOffset;
+        }
+
+        void reset(int fileOffset) {
+            mLength = 0;
+            mCount = 0;
+            mNewEntries = 0;
+            mFileOffset = fileOffset;
+        }
+
+        // Returns where the active region will end once the blobs are written.
+        int getEnd() {
+            return mFileOffset + mLength;
+        }
+
+        boolean hasSlot(int slotOffset) {
+            for (int i = 0; i < mCount; i++) {
+                if (mSlotOffsets[i] == slotOffset) return true;
+            }
+            return false;
+        }
+
+        void append(long key, byte[] data, int sum, int slotOffset, int blobOffset,
+                boolean newEntry) {
+            int needed = mLength + BLOB_HEADER_SIZE + data.length;
+            if (needed > mBuffer.length) {
+                byte[] grown = new byte[Math.max(needed, mBuffer.length * 2)];
+                System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                mBuffer = grown;
+            }
+            writeLong(mBuffer, mLength + BH_KEY, key);
+            writeInt(mBuffer, mLength + BH_CHECKSUM, sum);
+            writeInt(mBuffer, mLength + BH_OFFSET, blobOffset);
+            writeInt(mBuffer, mLength + BH_LENGTH, data.length);
+            System.arraycopy(data, 0, mBuffer, mLength + BLOB_HEADER_SIZE, data.length);
+            mLength = needed;
+
+            mKeys[mCount] = key;
+            mSlotOffsets[mCount] = slotOffset;
+            mBlobOffsets[mCount] = blobOffset;
+            mCount++;
+            if (newEntry) {
+                mNewEntries++;
+            }
+        }
+    }
+
+    // Writes the pending blobs to the active file with one sequential write,
+    // then publishes their hash entries and advances the header counters. If
+    // the write fails, neither the index nor the header changes. Must be
+    // called with mInsertLock held.
+    private void flushWriteBehind(WriteBehindBuffer pending) throws IOException {
+        if (pending.mCount == 0) return;
+        ensureActiveMapped(pending.getEnd());
+        writeFully(mActiveDataChannel, ByteBuffer.wrap(pending.mBuffer, 0, pending.mLength),
+                pending.mFileOffset);
+        for (int i = 0; i < pending.mCount; i++) {
+            mIndexBuffer.putLong(pending.mSlotOffsets[i], pending.mKeys[i]);
+            mIndexBuffer.putInt(pending.mSlotOffsets[i] + 8, pending.mBlobOffsets[i]);
+        }
+        mActiveEntries += pending.mNewEntries;
+        mActiveBytes = pending.getEnd();
+        writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+        writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
         updateIndexHeader();
     }
 
-    // Appends the data to the active file. It also updates the hash entry.
+    // Flips the regions once in-flight lookups are done. Must be called with
+    // mInsertLock held.
+    private void flipRegionExclusive() throws IOException {
+        mRegionLock.writeLock().lock();
+        try {
+            flipRegion();
+        } finally {
+            mRegionLock.writeLock().unlock();
+        }
+    }
+
+    // Arranges for syncIndex() to run INDEX_SYNC_DELAY_MS from now, unless a
+    // sync is already pending. Must be called with mInsertLock held.
+    private void scheduleSyncIndex() {
+        if (mIndexSyncScheduled) return;
+        mIndexSyncScheduled = true;
+        getSyncExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mInsertLock.lock();
+                try {
+                    mIndexSyncScheduled = false;
+                } finally {
+                    mInsertLock.unlock();
+                }
+                if (!mClosed) {
+                    syncIndex();
+                }
+            }
+        }, INDEX_SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getSyncExecutor() {
+        if (sSyncExecutor == null) {
+            sSyncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG + "-sync");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return sSyncExecutor;
+    }
+
+    // Returns true if a blob of the given length fits into the active region
+    // without flipping. Must be called with mInsertLock held.
+    private boolean hasRoomInActiveRegion(int length) {
+        return hasRoomInActiveRegion(mActiveBytes, mActiveEntries, length);
+    }
+
+    // Same as above, for an active region holding the given number of bytes
+    // and entries.
+    private boolean hasRoomInActiveRegion(int activeBytes, int activeEntries, int length) {
+        return activeBytes + BLOB_HEADER_SIZE + length <= mMaxBytes
+                && activeEntries * 2 < mMaxEntries;
+    }
+
+    // Appends the data (the remaining bytes of the buffer, whose checksum is
+    // "sum") to the active file. It also updates the hash entry.
     // The proper hash entry (suitable for insertion or replacement) must be
-    // pointed by mSlotOffset.
-    private void insertInternal(long key, byte[] data, int length)
+    // pointed by cursor.slotOffset. Must be called with mInsertLock held.
+    //
+    // The blob is written before the hash entry is published, and the offset
+    // is published after the key, so a concurrent lookup either misses the
+    // entry or finds a complete blob. getBlob() verifies key, offset and
+    // checksum, so a torn read of the index is reported as a miss.
+    private void insertInternal(long key, ByteBuffer data, int sum, Cursor cursor)
             throws IOException {
-        byte[] header = mBlobHeader;
-        int sum = checkSum(data);
+        byte[] header = cursor.blobHeader;
+        int length = data.remaining();
+        ensureActiveMapped(mActiveBytes + BLOB_HEADER_SIZE + length);
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
         writeInt(header, BH_LENGTH, length);
-        mActiveDataFile.write(header);
-        mActiveDataFile.write(data, 0, length);
+        writeFully(mActiveDataChannel, ByteBuffer.wrap(header), mActiveBytes);
+        writeFully(mActiveDataChannel, data, mActiveBytes + BLOB_HEADER_SIZE);
 
-        mIndexBuffer.putLong(mSlotOffset, key);
-        mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
+        mIndexBuffer.putLong(cursor.slotOffset, key);
+        mIndexBuffer.putInt(cursor.slotOffset + 8, mActiveBytes);
         mActiveBytes += BLOB_HEADER_SIZE + length;
         writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
     }
@@ -407,12 +797,11 @@ public class BlobCache implements Closeable {
 
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -428,45 +817,149 @@ public class BlobCache implements Closeable {
     //
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
+    //
+    // Lookups from different threads run in parallel. They only wait for a
+    // region flip, never for an ordinary insert.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
-                return true;
-            }
+        long start = SystemClock.elapsedRealtime();
+        boolean found = lookupBlob(req);
+        recordLookup(found, start);
+        return found;
+    }
+
+    private void recordLookup(boolean found, long start) {
+        if (found) {
+            mStats.recordHit();
+            mStats.recordLoadTime(start);
+        } else {
+            mStats.recordMiss();
         }
+    }
 
-        // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
-
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
+    private boolean lookupBlob(LookupRequest req) throws IOException {
+        Cursor cursor = new Cursor();
+        mRegionLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            if (lookupInternal(req.key, mActiveHashStart, cursor)) {
+                if (getBlob(mActiveDataChannel, cursor.fileOffset, req, cursor)) {
                     return true;
                 }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
+            }
+
+            // Look up in the inactive region.
+            if (!lookupInternal(req.key, mInactiveHashStart, cursor)
+                    || !getBlob(mInactiveDataChannel, cursor.fileOffset, req, cursor)) {
+                return false;
+            }
+        } finally {
+            mRegionLock.readLock().unlock();
+        }
+
+        // We want to copy the data from the inactive file to the active file
+        // if it's available.
+        copyToActiveRegion(req.key, ByteBuffer.wrap(req.buffer, 0, req.length),
+                readInt(cursor.blobHeader, BH_CHECKSUM), cursor);
+        return true;
+    }
+
+    // Returns the current generation. It changes whenever the regions are
+    // flipped, which is the only time blob data returned by lookupBuffer()
+    // can be overwritten.
+    //
+    // The value is read under the read lock of mRegionLock, the lock a flip
+    // holds while it bumps the generation. A flip that completed before the
+    // caller finished using a slice is therefore always seen.
+    public int getGeneration() {
+        mRegionLock.readLock().lock();
+        try {
+            return mGeneration;
+        } finally {
+            mRegionLock.readLock().unlock();
+        }
+    }
+
+    // Looks up the blob for the given key without copying it. Only available
+    // if the data files are mapped. Returns a read-only slice of the mapping
+    // positioned at the blob, or null if the key is not found.
+    //
+    // The slice stays readable after the regions are flipped, but may then
+    // contain other data. Read getGeneration() before this call and compare
+    // it after using the slice to find out whether it was still valid.
+    public ByteBuffer lookupBuffer(long key) throws IOException {
+        if (!mMapDataFiles) {
+            throw new IllegalStateException("data files are not mapped");
+        }
+        long start = SystemClock.elapsedRealtime();
+        ByteBuffer blob = lookupMappedBlob(key);
+        recordLookup(blob != null, start);
+        return blob;
+    }
+
+    // Returns the statistics of this cache.
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    private ByteBuffer lookupMappedBlob(long key) throws IOException {
+        Cursor cursor = new Cursor();
+        ByteBuffer blob;
+        mRegionLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            if (lookupInternal(key, mActiveHashStart, cursor)) {
+                blob = getMappedBlob(mActiveDataBuffer, cursor.fileOffset, key, cursor);
+                if (blob != null) {
+                    return blob;
                 }
-                return true;
             }
+
+            // Look up in the inactive region.
+            if (!lookupInternal(key, mInactiveHashStart, cursor)) {
+                return null;
+            }
+            blob = getMappedBlob(mInactiveDataBuffer, cursor.fileOffset, key, cursor);
+            if (blob == null) {
+                return null;
+            }
+        } finally {
+            mRegionLock.readLock().unlock();
         }
 
-        return false;
+        // The blob stays in the inactive mapping until the next flip, so it
+        // can still be copied from there.
+        copyToActiveRegion(key, blob.duplicate(),
+                readInt(cursor.blobHeader, BH_CHECKSUM), cursor);
+        return blob;
     }
 
+    // Copies a blob found in the inactive region over to the active region.
+    // This is only an optimization, so it is skipped if another thread is
+    // inserting right now, or if we don't have enough space to insert this
+    // blob into the active file.
+    private void copyToActiveRegion(long key, ByteBuffer data, int sum, Cursor cursor) {
+        if (!mInsertLock.tryLock()) {
+            return;
+        }
+        try {
+            if (!hasRoomInActiveRegion(data.remaining())) {
+                return;
+            }
+            // The hash entry may have changed since we released the read lock,
+            // so look up the slot again.
+            boolean found = lookupInternal(key, mActiveHashStart, cursor);
+            insertInternal(key, data, sum, cursor);
+            if (!found) {
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
+            updateIndexHeader();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mInsertLock.unlock();
+        }
+    }
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
@@ -474,13 +967,15 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
-    private boolean getBlob(RandomAccessFile file, int offset,
-            LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
-        long oldPosition = file.getFilePointer();
+    //
+    // Uses positional reads, so it never moves the file pointer the inserting
+    // thread appends at.
+    private boolean getBlob(FileChannel channel, int offset,
+            LookupRequest req, Cursor cursor) throws IOException {
+        byte[] header = cursor.blobHeader;
         try {
-            file.seek(offset);
-            if (file.read(header) != BLOB_HEADER_SIZE) {
+            if (readFully(channel, ByteBuffer.wrap(header), offset)
+                    != BLOB_HEADER_SIZE) {
                 Log.w(TAG, "cannot read blob header");
                 return false;
             }
@@ -507,11 +1002,12 @@ public class BlobCache implements Closeable {
             byte[] blob = req.buffer;
             req.length = length;
 
-            if (file.read(blob, 0, length) != length) {
+            if (readFully(channel, ByteBuffer.wrap(blob, 0, length),
+                    offset + BLOB_HEADER_SIZE) != length) {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            if (checkSum(cursor, blob, 0, length) != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -519,34 +1015,103 @@ public class BlobCache implements Closeable {
         } catch (Throwable t)  {
             Log.e(TAG, "getBlob failed.", t);
             return false;
-        } finally {
-            file.seek(oldPosition);
         }
     }
 
+    // Returns a read-only slice of the mapped data file holding the blob at the
+    // specified offset, or null if the blob is not available. The blob header
+    // is left in cursor.blobHeader. Mirrors the checks done by getBlob().
+    private ByteBuffer getMappedBlob(MappedByteBuffer mapping, int offset,
+            long key, Cursor cursor) {
+        try {
+            int mapped = mapping.capacity();
+            if (offset < DATA_HEADER_SIZE || offset > mapped - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob offset: " + offset);
+                return null;
+            }
+            byte[] header = cursor.blobHeader;
+            for (int i = 0; i < BLOB_HEADER_SIZE; i++) {
+                header[i] = mapping.get(offset + i);
+            }
+            long blobKey = readLong(header, BH_KEY);
+            if (blobKey != key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return null;
+            }
+            int sum = readInt(header, BH_CHECKSUM);
+            int blobOffset = readInt(header, BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return null;
+            }
+            int length = readInt(header, BH_LENGTH);
+            if (length < 0 || length > mapped - offset - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return null;
+            }
+
+            ByteBuffer blob = mapping.duplicate();
+            blob.limit(offset + BLOB_HEADER_SIZE + length);
+            blob.position(offset + BLOB_HEADER_SIZE);
+            blob = blob.slice().asReadOnlyBuffer();
+            if (checkSum(cursor, blob.duplicate()) != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return null;
+            }
+            return blob;
+        } catch (Throwable t)  {
+            Log.e(TAG, "getMappedBlob failed.", t);
+            return null;
+        }
+    }
+
+    // Writes the remaining bytes of the buffer to the channel at the given
+    // position.
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += channel.write(buffer, position + total);
+        }
+    }
+
+    // Reads from the channel at the given position until the buffer is full or
+    // the end of file is reached. Returns the number of bytes read.
+    private static int readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
     // Tries to look up a key in the specified hash region.
     // Returns true if the lookup is successful.
-    // The slot offset in the index file is saved in mSlotOffset. If the lookup
-    // is successful, it's the slot found. Otherwise it's the slot suitable for
-    // insertion.
+    // The slot offset in the index file is saved in cursor.slotOffset. If the
+    // lookup is successful, it's the slot found. Otherwise it's the slot
+    // suitable for insertion.
     // If the lookup is successful, the file offset is also saved in
-    // mFileOffset.
-    private int mSlotOffset;
-    private int mFileOffset;
-    private boolean lookupInternal(long key, int hashStart) {
+    // cursor.fileOffset.
+    //
+    // Only absolute reads are used on mIndexBuffer, so this is safe to call
+    // from several threads at once.
+    private boolean lookupInternal(long key, int hashStart, Cursor cursor) {
         int slot = (int) (key % mMaxEntries);
         if (slot < 0) slot += mMaxEntries;
         int slotBegin = slot;
         while (true) {
             int offset = hashStart + slot * 12;
-            long candidateKey = mIndexBuffer.getLong(offset);
             int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            long candidateKey = mIndexBuffer.getLong(offset);
             if (candidateOffset == 0) {
-                mSlotOffset = offset;
+                cursor.slotOffset = offset;
                 return false;
             } else if (candidateKey == key) {
-                mSlotOffset = offset;
-                mFileOffset = candidateOffset;
+                cursor.slotOffset = offset;
+                cursor.fileOffset = candidateOffset;
                 return true;
             } else {
                 if (++slot >= mMaxEntries) {
@@ -587,13 +1152,16 @@ public class BlobCache implements Closeable {
     // Returns the active count (mActiveEntries). This also verifies that
     // the active count matches matches what's inside the hash region.
     int getActiveCount() {
-        int count = 0;
-        for (int i = 0; i < mMaxEntries; i++) {
-            int offset = mActiveHashStart + i * 12;
-            long candidateKey = mIndexBuffer.getLong(offset);
-            int candidateOffset = mIndexBuffer.getInt(offset + 8);
-            if (candidateOffset != 0) ++count;
+        mInsertLock.lock();
+        try {
+            return getActiveCountLocked();
+        } finally {
+            mInsertLock.unlock();
         }
+    }
+
+    private int getActiveCountLocked() {
+        int count = countEntries(mActiveHashStart);
         if (count == mActiveEntries) {
             return count;
         } else {
@@ -602,16 +1170,65 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Returns the number of used slots in the hash region starting at hashStart.
+    private int countEntries(int hashStart) {
+        int count = 0;
+        for (int i = 0; i < mMaxEntries; i++) {
+            int offset = hashStart + i * 12;
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset != 0) ++count;
+        }
+        return count;
+    }
+
+    // Returns the bytes used in the data file of a region: up to the end of the last blob
+    // its index points to. The file itself may be longer, since a mapped one
+    // never shrinks.
+    private int countBytes(int hashStart, RandomAccessFile dataFile) throws IOException {
+        int lastOffset = 0;
+        for (int i = 0; i < mMaxEntries; i++) {
+            lastOffset = Math.max(lastOffset, mIndexBuffer.getInt(hashStart + i * 12 + 8));
+        }
+        if (lastOffset == 0 || lastOffset + BLOB_HEADER_SIZE > dataFile.length()) {
+            return DATA_HEADER_SIZE;
+        }
+        byte[] header = new byte[BLOB_HEADER_SIZE];
+        dataFile.seek(lastOffset);
+        dataFile.readFully(header);
+        long end = (long) lastOffset + BLOB_HEADER_SIZE + readInt(header, BH_LENGTH);
+        return (int) Math.min(mMaxBytes, end);
+    }
+
     int checkSum(byte[] data) {
-        mAdler32.reset();
-        mAdler32.update(data);
-        return (int) mAdler32.getValue();
+        return checkSum(new Cursor(), data, 0, data.length);
     }
 
     int checkSum(byte[] data, int offset, int nbytes) {
-        mAdler32.reset();
-        mAdler32.update(data, offset, nbytes);
-        return (int) mAdler32.getValue();
+        return checkSum(new Cursor(), data, offset, nbytes);
+    }
+
+    private static int checkSum(Cursor cursor, byte[] data, int offset, int nbytes) {
+        Adler32 adler32 = cursor.adler32;
+        adler32.reset();
+        adler32.update(data, offset, nbytes);
+        return (int) adler32.getValue();
+    }
+
+    // Computes the checksum of the remaining bytes of a buffer that has no
+    // backing array, going through a small chunk instead of a full copy.
+    private static int checkSum(Cursor cursor, ByteBuffer data) {
+        if (cursor.chunk == null) {
+            cursor.chunk = new byte[4096];
+        }
+        byte[] chunk = cursor.chunk;
+        Adler32 adler32 = cursor.adler32;
+        adler32.reset();
+        while (data.hasRemaining()) {
+            int n = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, n);
+            adler32.update(chunk, 0, n);
+        }
+        return (int) adler32.getValue();
     }
 
     static void closeSilently(Closeable c) {
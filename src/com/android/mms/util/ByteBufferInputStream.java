@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads the remaining bytes of a {@link ByteBuffer}, so
+ * buffers without a backing array (such as memory-mapped files) can be handed to
+ * stream based decoders without copying them first. Supports mark and reset.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer.duplicate();
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public int read() {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(length, mBuffer.remaining());
+        mBuffer.get(buffer, offset, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long count) {
+        if (count <= 0) {
+            return 0;
+        }
+        int n = (int) Math.min(count, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public void reset() {
+        mBuffer.position(mMark);
+    }
+}
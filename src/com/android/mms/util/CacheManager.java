@@ -39,6 +39,13 @@ public class CacheManager {
     // This can only be called from data thread.
     public static BlobCache getCache(Context context, String filename,
             int maxEntries, int maxBytes, int version) {
+        return getCache(context, filename, maxEntries, maxBytes, version, false);
+    }
+
+    // Same as above, but if "mapDataFiles" is true the data files of a newly
+    // instantiated cache are memory-mapped (see BlobCache.lookupBuffer).
+    public static BlobCache getCache(Context context, String filename,
+            int maxEntries, int maxBytes, int version, boolean mapDataFiles) {
         synchronized (sCacheMap) {
             if (!sOldCheckDone) {
                 removeOldFilesIfNecessary(context);
@@ -52,7 +59,7 @@ public class CacheManager {
                 Log.d(TAG, "Cache dir: " + path);
                 try {
                     cache = new BlobCache(path, maxEntries, maxBytes, false,
-                            version);
+                            version, mapDataFiles);
                     sCacheMap.put(filename, cache);
                 } catch (IOException e) {
                     Log.e(TAG, "Cannot instantiate cache!", e);
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+/**
+ * Interface for reading how well one of the app's caches works. Every cache layer
+ * (in-memory maps, the on-disk image cache, the contact and conversation caches)
+ * exposes one of these so cache sizes can be tuned from real data.
+ * <p>
+ * Counters are cumulative since the cache was created.
+ */
+public interface CacheStats {
+    /**
+     * Returns a short, human readable name for the cache.
+     */
+    String getCacheName();
+
+    /**
+     * Returns the number of lookups that found their entry.
+     */
+    long getHitCount();
+
+    /**
+     * Returns the number of lookups that did not find their entry.
+     */
+    long getMissCount();
+
+    /**
+     * Returns the number of entries dropped to make room for others or
+     * reclaimed by the garbage collector.
+     */
+    long getEvictionCount();
+
+    /**
+     * Returns the total time in milliseconds spent loading entries.
+     */
+    long getLoadTimeMillis();
+
+    /**
+     * Returns the number of entries currently in the cache.
+     */
+    int getEntryCount();
+
+    /**
+     * Returns the approximate number of bytes the cached entries take, or -1 if the
+     * cache can't tell.
+     */
+    long getSizeInBytes();
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Thread-safe {@link CacheStats} implementation whose counters the owning cache
+ * updates as it works.
+ * Caches that know their entry count or byte size override
+ * {@link #getEntryCount()} and {@link #getSizeInBytes()}.
+ * <p>
+ * Every recorder is registered on creation, so {@link #dumpAll()} can log the
+ * statistics of all live caches. The registry only holds weak references and is
+ * keyed by cache name: a cache created per screen replaces the registration of
+ * its predecessor instead of piling up next to it.
+ */
+public class CacheStatsRecorder implements CacheStats {
+    private static final String TAG = "Mms/CacheStats";
+
+    private static final LinkedHashMap<String, WeakReference<CacheStats>> sRegistry =
+            new LinkedHashMap<String, WeakReference<CacheStats>>();
+
+    private final String mName;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mLoadTimeMillis = new AtomicLong();
+
+    public CacheStatsRecorder(String name) {
+        mName = name;
+        register(this);
+    }
+
+    public void recordHit() {
+        mHitCount.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    public void recordEvictions(int count) {
+        mEvictionCount.addAndGet(count);
+    }
+
+    /**
+     * Adds the time elapsed since startMillis, a value returned by
+     * {@link SystemClock#elapsedRealtime()}, to the load time.
+     */
+    public void recordLoadTime(long startMillis) {
+        mLoadTimeMillis.addAndGet(SystemClock.elapsedRealtime() - startMillis);
+    }
+
+    @Override
+    public String getCacheName() {
+        return mName;
+    }
+
+    @Override
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    @Override
+    public long getLoadTimeMillis() {
+        return mLoadTimeMillis.get();
+    }
+
+    @Override
+    public int getEntryCount() {
+        return -1;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return format(this);
+    }
+
+    /**
+     * Formats the statistics of a cache as a single log line.
+     */
+    public static String format(CacheStats stats) {
+        long hits = stats.getHitCount();
+        long lookups = hits + stats.getMissCount();
+        return stats.getCacheName()
+                + ": hits=" + hits
+                + " misses=" + stats.getMissCount()
+                + " hitRate=" + (lookups == 0 ? "n/a" : (100 * hits / lookups) + "%")
+                + " evictions=" + stats.getEvictionCount()
+                + " loadMs=" + stats.getLoadTimeMillis()
+                + " entries=" + stats.getEntryCount()
+                + " bytes=" + stats.getSizeInBytes();
+    }
+
+    /**
+     * Makes the statistics of a cache show up in {@link #dumpAll()}, in place of
+     * any cache registered under the same name.
+     */
+    public static void register(CacheStats stats) {
+        synchronized (sRegistry) {
+            sRegistry.put(stats.getCacheName(), new WeakReference<CacheStats>(stats));
+        }
+    }
+
+    /**
+     * Logs the statistics of every registered cache that is still alive.
+     */
+    public static void dumpAll() {
+        ArrayList<CacheStats> live = new ArrayList<CacheStats>();
+        synchronized (sRegistry) {
+            Iterator<WeakReference<CacheStats>> iter = sRegistry.values().iterator();
+            while (iter.hasNext()) {
+                CacheStats stats = iter.next().get();
+                if (stats == null) {
+                    iter.remove();
+                } else {
+                    live.add(stats);
+                }
+            }
+        }
+        Log.i(TAG, "**** Cache statistics ****");
+        for (CacheStats stats : live) {
+            Log.i(TAG, format(stats));
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.database.Cursor;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Mms;
@@ -37,6 +38,7 @@ import android.widget.Toast;
 
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.TelephonyProperties;
+import com.android.mms.MmsApp;
 import com.android.mms.R;
 import com.android.mms.data.Contact;
 import com.android.mms.ui.MessagingPreferenceActivity;
@@ -111,7 +113,7 @@ public class DownloadManager {
 
     private DownloadManager(Context context) {
         mContext = context;
-        mHandler = new Handler();
+        mHandler = new Handler(Looper.getMainLooper());
         mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         mPreferences.registerOnSharedPreferenceChangeListener(mPreferencesChangeListener);
 
@@ -129,7 +131,7 @@ public class DownloadManager {
         return mAutoDownload;
     }
 
-    public static void init(Context context) {
+    public static synchronized void init(Context context) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "DownloadManager.init()");
         }
@@ -140,9 +142,12 @@ public class DownloadManager {
         sInstance = new DownloadManager(context);
     }
 
-    public static DownloadManager getInstance() {
+    /**
+     * Returns the global instance, creating it on first use.
+     */
+    public static synchronized DownloadManager getInstance() {
         if (sInstance == null) {
-            throw new IllegalStateException("Uninitialized.");
+            init(MmsApp.getApplication());
         }
         return sInstance;
     }
@@ -16,12 +16,28 @@
 
 package com.android.mms.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SqliteWrapper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms.Conversations;
 import android.util.Log;
@@ -30,6 +46,12 @@ import com.android.mms.LogTag;
 
 /**
  * Cache for information about draft messages on conversations.
+ * <p>
+ * Drafts that are saved or discarded are applied to the cache at once with
+ * {@link #setDraftState}. The set of threads with a draft is also kept on disk as a
+ * bitmap of thread IDs, so that a new process knows it before it has queried the
+ * drafts. Querying all the drafts only happens on a background thread, to reconcile
+ * the cache with the database.
  */
 public class DraftCache {
     private static final String TAG = "Mms/draft";
@@ -43,22 +65,88 @@ public class DraftCache {
     private final Object mSavingDraftLock = new Object();
 
     private HashSet<Long> mDraftSet = new HashSet<Long>(4);
+    // The draft states set while the drafts are queried, applied on top of the result.
+    // Null when not querying.
+    private HashMap<Long, Boolean> mPendingDraftStates;
+    // The threads whose draft state was set before the snapshot was read, which the
+    // snapshot must not undo. Null once it's read.
+    private HashSet<Long> mThreadsSetBeforeSnapshot = new HashSet<Long>();
     private final Object mDraftSetLock = new Object();
     private final HashSet<OnDraftChangedListener> mChangeListeners
             = new HashSet<OnDraftChangedListener>(1);
     private final Object mChangeListenersLock = new Object();
 
+    // The draft set holds every thread with a draft, so lookups can't miss and aren't
+    // counted. Only the size and the query time are recorded.
+    private final CacheStatsRecorder mStats = new CacheStatsRecorder("DraftCache") {
+        @Override
+        public int getEntryCount() {
+            synchronized (mDraftSetLock) {
+                return mDraftSet.size();
+            }
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return (long) getEntryCount() * DRAFT_ENTRY_BYTES;
+        }
+    };
+    // Rough size of one HashSet<Long> entry: the map node and the boxed Long.
+    private static final int DRAFT_ENTRY_BYTES = 48;
+
     public interface OnDraftChangedListener {
         void onDraftChanged(long threadId, boolean hasDraft);
     }
 
+    // The bitmap of the thread IDs with a draft, in the cache dir.
+    private static final String SNAPSHOT_FILE = "drafts.bitmap";
+    private static final int SNAPSHOT_VERSION = 1;
+    // Thread IDs count up from 1. Don't write a bitmap of more than 128KB for an odd one.
+    private static final long SNAPSHOT_MAX_THREAD_ID = 1 << 20;
+
+    private static final int MSG_LOAD_SNAPSHOT = 1;
+    private static final int MSG_RECONCILE = 2;
+    private static final int MSG_SAVE_SNAPSHOT = 3;
+    // With a snapshot, reconcile once the app is done starting up.
+    private static final long RECONCILE_DELAY_MS = 5000;
+    private static final long SAVE_SNAPSHOT_DELAY_MS = 1000;
+
+    private final Handler mHandler;
+
     private DraftCache(Context context) {
         if (Log.isLoggable(LogTag.APP, Log.DEBUG)) {
             log("DraftCache.constructor");
         }
 
         mContext = context;
-        refresh();
+        HandlerThread thread = new HandlerThread("DraftCache",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_LOAD_SNAPSHOT:
+                        boolean loaded = loadSnapshot();
+                        synchronized (mDraftSetLock) {
+                            mThreadsSetBeforeSnapshot = null;
+                        }
+                        if (loaded) {
+                            sendEmptyMessageDelayed(MSG_RECONCILE, RECONCILE_DELAY_MS);
+                        } else {
+                            sendEmptyMessage(MSG_RECONCILE);
+                        }
+                        break;
+                    case MSG_RECONCILE:
+                        rebuildCache();
+                        break;
+                    case MSG_SAVE_SNAPSHOT:
+                        saveSnapshot();
+                        break;
+                }
+            }
+        };
+        mHandler.sendEmptyMessage(MSG_LOAD_SNAPSHOT);
     }
 
     static final String[] DRAFT_PROJECTION = new String[] {
@@ -68,21 +156,15 @@ public class DraftCache {
     static final int COLUMN_DRAFT_THREAD_ID = 0;
 
     /** To be called whenever the draft state might have changed.
-     *  Dispatches work to a thread and returns immediately.
+     *  Queries all the drafts on a background thread and returns immediately.
      */
     public void refresh() {
         if (Log.isLoggable(LogTag.APP, Log.DEBUG)) {
             log("refresh");
         }
 
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                rebuildCache();
-            }
-        }, "DraftCache.refresh");
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.start();
+        mHandler.removeMessages(MSG_RECONCILE);
+        mHandler.sendEmptyMessage(MSG_RECONCILE);
     }
 
     /** Does the actual work of rebuilding the draft cache.
@@ -92,6 +174,11 @@ public class DraftCache {
             log("rebuildCache");
         }
 
+        synchronized (mDraftSetLock) {
+            mPendingDraftStates = new HashMap<Long, Boolean>();
+        }
+
+        long start = SystemClock.elapsedRealtime();
         HashSet<Long> newDraftSet = new HashSet<Long>();
 
         Cursor cursor = SqliteWrapper.query(
@@ -100,25 +187,46 @@ public class DraftCache {
                 MmsSms.CONTENT_DRAFT_URI,
                 DRAFT_PROJECTION, null, null, null);
 
-        if (cursor != null) {
-            try {
-                if (cursor.moveToFirst()) {
-                    for (; !cursor.isAfterLast(); cursor.moveToNext()) {
-                        long threadId = cursor.getLong(COLUMN_DRAFT_THREAD_ID);
-                        newDraftSet.add(threadId);
-                        if (Log.isLoggable(LogTag.APP, Log.DEBUG)) {
-                            log("rebuildCache: add tid=" + threadId);
-                        }
+        if (cursor == null) {
+            synchronized (mDraftSetLock) {
+                mPendingDraftStates = null;
+            }
+            return;
+        }
+        try {
+            if (cursor.moveToFirst()) {
+                for (; !cursor.isAfterLast(); cursor.moveToNext()) {
+                    long threadId = cursor.getLong(COLUMN_DRAFT_THREAD_ID);
+                    newDraftSet.add(threadId);
+                    if (Log.isLoggable(LogTag.APP, Log.DEBUG)) {
+                        log("rebuildCache: add tid=" + threadId);
                     }
                 }
-            } finally {
-                cursor.close();
             }
+        } finally {
+            cursor.close();
         }
+        mStats.recordLoadTime(start);
 
+        replaceDraftSet(newDraftSet);
+    }
+
+    // Makes newDraftSet the draft set, keeping the draft states set since the last
+    // call to rebuildCache(), and tells the listeners what changed.
+    private void replaceDraftSet(HashSet<Long> newDraftSet) {
         Set<Long> added;
         Set<Long> removed;
         synchronized (mDraftSetLock) {
+            if (mPendingDraftStates != null) {
+                for (Map.Entry<Long, Boolean> state : mPendingDraftStates.entrySet()) {
+                    if (state.getValue()) {
+                        newDraftSet.add(state.getKey());
+                    } else {
+                        newDraftSet.remove(state.getKey());
+                    }
+                }
+                mPendingDraftStates = null;
+            }
             HashSet<Long> oldDraftSet = mDraftSet;
             mDraftSet = newDraftSet;
 
@@ -126,22 +234,18 @@ public class DraftCache {
                 dump();
             }
 
-            // If nobody's interested in finding out about changes,
-            // just bail out early.
-            synchronized (mChangeListenersLock) {
-                if (mChangeListeners.size() < 1) {
-                    return;
-                }
-            }
-
-            // Find out which drafts were removed and added and notify
-            // listeners.
+            // Find out which drafts were removed and added.
             added = new HashSet<Long>(newDraftSet);
             added.removeAll(oldDraftSet);
             removed = new HashSet<Long>(oldDraftSet);
             removed.removeAll(newDraftSet);
         }
 
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        scheduleSaveSnapshot();
+
         synchronized (mChangeListenersLock) {
             for (OnDraftChangedListener l : mChangeListeners) {
                 for (long threadId : added) {
@@ -154,6 +258,114 @@ public class DraftCache {
         }
     }
 
+    // Reads the snapshot into the cache, returns false if there is none.
+    private boolean loadSnapshot() {
+        File file = new File(mContext.getCacheDir(), SNAPSHOT_FILE);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        HashSet<Long> draftSet = new HashSet<Long>();
+        try {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            int wordCount = in.readInt();
+            for (int i = 0; i < wordCount; i++) {
+                long word = in.readLong();
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    draftSet.add((long) i * 64 + bit);
+                    word &= word - 1;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read the draft snapshot", e);
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+        if (Log.isLoggable(LogTag.APP, Log.DEBUG)) {
+            log("loadSnapshot: " + draftSet.size() + " drafts");
+        }
+        Set<Long> added = new HashSet<Long>();
+        synchronized (mDraftSetLock) {
+            // Drafts saved or discarded since the process started are newer than the
+            // snapshot.
+            draftSet.removeAll(mThreadsSetBeforeSnapshot);
+            for (long threadId : draftSet) {
+                if (mDraftSet.add(threadId)) {
+                    added.add(threadId);
+                }
+            }
+        }
+        synchronized (mChangeListenersLock) {
+            for (OnDraftChangedListener l : mChangeListeners) {
+                for (long threadId : added) {
+                    l.onDraftChanged(threadId, true);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void scheduleSaveSnapshot() {
+        if (!mHandler.hasMessages(MSG_SAVE_SNAPSHOT)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SAVE_SNAPSHOT, SAVE_SNAPSHOT_DELAY_MS);
+        }
+    }
+
+    private void saveSnapshot() {
+        long[] words;
+        synchronized (mDraftSetLock) {
+            long maxThreadId = 0;
+            for (long threadId : mDraftSet) {
+                maxThreadId = Math.max(maxThreadId, threadId);
+            }
+            if (maxThreadId > SNAPSHOT_MAX_THREAD_ID) {
+                words = null;
+            } else {
+                words = new long[(int) (maxThreadId / 64) + 1];
+                for (long threadId : mDraftSet) {
+                    words[(int) (threadId / 64)] |= 1L << (threadId % 64);
+                }
+            }
+        }
+
+        File file = new File(mContext.getCacheDir(), SNAPSHOT_FILE);
+        if (words == null) {
+            // A stale snapshot would be worse than none.
+            file.delete();
+            return;
+        }
+        File tmp = new File(mContext.getCacheDir(), SNAPSHOT_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Can't rename the draft snapshot");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write the draft snapshot", e);
+            tmp.delete();
+        }
+    }
+
     /** Updates the has-draft status of a particular thread on
      *  a piecemeal basis, to be called when a draft has appeared
      *  or disappeared.
@@ -170,6 +382,13 @@ public class DraftCache {
             } else {
                 changed = mDraftSet.remove(threadId);
             }
+            if (mPendingDraftStates != null) {
+                // The drafts are being queried, make sure the result doesn't undo this.
+                mPendingDraftStates.put(threadId, hasDraft);
+            }
+            if (mThreadsSetBeforeSnapshot != null) {
+                mThreadsSetBeforeSnapshot.add(threadId);
+            }
         }
 
         if (Log.isLoggable(LogTag.APP, Log.DEBUG)) {
@@ -182,6 +401,7 @@ public class DraftCache {
 
         // Notify listeners if there was a change.
         if (changed) {
+            scheduleSaveSnapshot();
             synchronized (mChangeListenersLock) {
                 for (OnDraftChangedListener l : mChangeListeners) {
                     l.onDraftChanged(threadId, hasDraft);
@@ -16,10 +16,17 @@
 
 package com.android.mms.util;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 public class ImageCacheService {
     @SuppressWarnings("unused")
@@ -29,9 +36,42 @@ public class ImageCacheService {
     private static final int IMAGE_CACHE_MAX_ENTRIES = 500;
     private static final int IMAGE_CACHE_MAX_BYTES = 20 * 1024 * 1024;
     private static final int IMAGE_CACHE_VERSION = 3;
+    // Map the cache data files and hand out blobs without copying them.
+    private static final boolean IMAGE_CACHE_MAPPED = true;
+    // Number of images collected by putImageData() before they are written out.
+    private static final int MAX_PENDING_IMAGES = 16;
+    // Store images under a hash of the data they were made from (see getContentHash)
+    // instead of under their path, so the same attachment in several messages shares
+    // one entry. The path to hash aliases are only kept in memory, so they don't take
+    // cache slots; after a restart the hash is computed again on the first lookup.
+    private static final boolean CONTENT_ADDRESSED = true;
+    // Number of bytes hashed from each end of the data.
+    private static final int CONTENT_HASH_SAMPLE_BYTES = 4096;
+    private static final int MAX_ALIASES = IMAGE_CACHE_MAX_ENTRIES;
 
     private BlobCache mCache;
 
+    // Images written by putImageData() but not inserted into mCache yet. They
+    // are inserted with one BlobCache.insertBatch() call by flush(). Guarded by
+    // mPendingLock, which is never held across disk IO.
+    private final Object mPendingLock = new Object();
+    private ArrayList<PendingImage> mPendingImages = new ArrayList<PendingImage>();
+    // The batch flush() is writing right now, or null. Lookups still find its
+    // images until insertBatch() returns. Guarded by mPendingLock.
+    private ArrayList<PendingImage> mFlushingImages;
+    // Serializes flush() calls, so only one batch is in flight.
+    private final Object mFlushLock = new Object();
+
+    // Recently used aliases, from path and type to content hash.
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, Long> mAliases =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ALIASES;
+        }
+    };
+
     private static long[] sCrcTable = new long[256];
     private static final long POLY64REV = 0x95AC9329AC4BC9B5L;
     private static final long INITIALCRC = 0xFFFFFFFFFFFFFFFFL;
@@ -41,27 +81,87 @@ public class ImageCacheService {
     public ImageCacheService(Context context) {
         mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
                 IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+                IMAGE_CACHE_VERSION, IMAGE_CACHE_MAPPED);
         mContext = context;
     }
 
+    /**
+     * Image bytes found in the cache. Either mData (starting at mOffset) holds a copy
+     * of the image, or mBuffer is a read-only view of the mapped cache file. A view is
+     * only valid as long as {@link #isValid} says so.
+     */
     public static class ImageData {
         public ImageData(byte[] data, int offset) {
             mData = data;
             mOffset = offset;
         }
+        public ImageData(ByteBuffer buffer, int generation) {
+            mBuffer = buffer;
+            mGeneration = generation;
+        }
         public byte[] mData;
         public int mOffset;
+        public ByteBuffer mBuffer;
+        public int mGeneration;
+    }
+
+    private static class PendingImage {
+        final long mCacheKey;
+        final byte[] mValue;
+
+        PendingImage(long cacheKey, byte[] value) {
+            mCacheKey = cacheKey;
+            mValue = value;
+        }
     }
 
     public ImageData getImageData(String path, int type) {
-        byte[] key = makeKey(path, type);
+        if (CONTENT_ADDRESSED) {
+            long contentHash = getAlias(path, type);
+            if (contentHash != 0) {
+                ImageData data = getImageData(makeContentKey(contentHash, type));
+                if (data != null) {
+                    return data;
+                }
+            }
+        }
+        return getImageData(makeKey(path, type));
+    }
+
+    /**
+     * Looks an image up by the hash of its data, for when the lookup by path failed.
+     * On a hit the path is aliased to the hash, so the next lookup by path finds it.
+     *
+     * @param contentHash the value of {@link #getContentHash} for the image's uri.
+     */
+    public ImageData getImageData(String path, int type, long contentHash) {
+        ImageData data = getImageData(makeContentKey(contentHash, type));
+        if (data != null) {
+            putAlias(path, type, contentHash);
+        }
+        return data;
+    }
+
+    private ImageData getImageData(byte[] key) {
         long cacheKey = crc64Long(key);
+        byte[] pending = getPendingImage(cacheKey);
+        if (pending != null && isSameKey(key, pending)) {
+            return new ImageData(pending, key.length);
+        }
         try {
-            byte[] value = null;
-            synchronized (mCache) {
-                value = mCache.lookup(cacheKey);
+            if (IMAGE_CACHE_MAPPED) {
+                int generation = mCache.getGeneration();
+                ByteBuffer value = mCache.lookupBuffer(cacheKey);
+                if (value == null) return null;
+                if (isSameKey(key, value)) {
+                    value.position(key.length);
+                    return new ImageData(value.slice(), generation);
+                }
+                return null;
             }
+
+            // BlobCache supports concurrent lookups, so don't serialize them here.
+            byte[] value = mCache.lookup(cacheKey);
             if (value == null) return null;
             if (isSameKey(key, value)) {
                 int offset = key.length;
@@ -74,28 +174,200 @@ public class ImageCacheService {
     }
 
     public void putImageData(String path, int type, byte[] value) {
-        byte[] key = makeKey(path, type);
+        putImageData(path, type, value, 0);
+    }
+
+    /**
+     * Stores an image. If contentHash isn't 0 the image is stored under it, see
+     * {@link #getContentHash}, and the path is aliased to it.
+     */
+    public void putImageData(String path, int type, byte[] value, long contentHash) {
+        if (CONTENT_ADDRESSED && contentHash != 0) {
+            putImageData(makeContentKey(contentHash, type), value);
+            putAlias(path, type, contentHash);
+        } else {
+            putImageData(makeKey(path, type), value);
+        }
+    }
+
+    private void putImageData(byte[] key, byte[] value) {
         long cacheKey = crc64Long(key);
         ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
         buffer.put(key);
         buffer.put(value);
-        synchronized (mCache) {
+        boolean flush;
+        synchronized (mPendingLock) {
+            mPendingImages.add(new PendingImage(cacheKey, buffer.array()));
+            flush = mPendingImages.size() >= MAX_PENDING_IMAGES;
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the images collected by {@link #putImageData} to the cache. Callers
+     * invoke this when a burst of thumbnail loads is done.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            ArrayList<PendingImage> batch;
+            synchronized (mPendingLock) {
+                if (mPendingImages.isEmpty()) {
+                    return;
+                }
+                batch = mPendingImages;
+                mPendingImages = new ArrayList<PendingImage>();
+                mFlushingImages = batch;
+            }
+            int count = batch.size();
+            long[] keys = new long[count];
+            byte[][] values = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                PendingImage image = batch.get(i);
+                keys[i] = image.mCacheKey;
+                values[i] = image.mValue;
+            }
             try {
-                mCache.insert(cacheKey, buffer.array());
+                mCache.insertBatch(keys, values);
             } catch (IOException ex) {
                 // ignore.
+            } finally {
+                synchronized (mPendingLock) {
+                    if (mFlushingImages == batch) {
+                        mFlushingImages = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private byte[] getPendingImage(long cacheKey) {
+        synchronized (mPendingLock) {
+            byte[] value = findImage(mPendingImages, cacheKey);
+            if (value == null && mFlushingImages != null) {
+                value = findImage(mFlushingImages, cacheKey);
+            }
+            return value;
+        }
+    }
+
+    private static byte[] findImage(ArrayList<PendingImage> images, long cacheKey) {
+        // Newest first, in case an image was put twice.
+        for (int i = images.size() - 1; i >= 0; i--) {
+            PendingImage image = images.get(i);
+            if (image.mCacheKey == cacheKey) {
+                return image.mValue;
             }
         }
+        return null;
+    }
+
+    /**
+     * Returns false if the cache file backing data.mBuffer may have been overwritten
+     * since the data was looked up. Anything decoded from it must then be discarded.
+     */
+    public boolean isValid(ImageData data) {
+        return data.mBuffer == null || mCache.getGeneration() == data.mGeneration;
     }
 
     public void clear() {
+        synchronized (mPendingLock) {
+            mPendingImages.clear();
+            mFlushingImages = null;
+        }
+        synchronized (mAliases) {
+            mAliases.clear();
+        }
         CacheManager.clear(mContext);
     }
 
+    /**
+     * Returns a hash of the length and of the first and last few KB of the data behind
+     * the uri, or 0 if content addressing is off or the data can't be read. Copies of
+     * the same attachment get the same hash.
+     */
+    public long getContentHash(Uri uri) {
+        if (!CONTENT_ADDRESSED) {
+            return 0;
+        }
+        ParcelFileDescriptor pfd = null;
+        FileInputStream stream = null;
+        try {
+            pfd = mContext.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return 0;
+            }
+            stream = new FileInputStream(pfd.getFileDescriptor());
+            FileChannel channel = stream.getChannel();
+            long length = channel.size();
+            if (length <= 0) {
+                return 0;
+            }
+            int head = (int) Math.min(length, CONTENT_HASH_SAMPLE_BYTES);
+            int tail = (int) Math.min(length - head, CONTENT_HASH_SAMPLE_BYTES);
+            ByteBuffer sample = ByteBuffer.allocate(head + tail + 8);
+            readFully(channel, sample, 0, head);
+            readFully(channel, sample, length - tail, tail);
+            sample.putLong(length);
+            long hash = crc64Long(sample.array());
+            return hash != 0 ? hash : 1;
+        } catch (IOException e) {
+            return 0;
+        } catch (SecurityException e) {
+            return 0;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // ignore.
+                }
+            }
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    // ignore.
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position,
+            int length) throws IOException {
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    // Returns the content hash the path is aliased to, or 0.
+    private long getAlias(String path, int type) {
+        synchronized (mAliases) {
+            Long hash = mAliases.get(path + "+" + type);
+            return hash != null ? hash : 0;
+        }
+    }
+
+    private void putAlias(String path, int type, long contentHash) {
+        synchronized (mAliases) {
+            mAliases.put(path + "+" + type, contentHash);
+        }
+    }
+
     private static byte[] makeKey(String path, int type) {
         return getBytes(path + "+" + type);
     }
 
+    private static byte[] makeContentKey(long contentHash, int type) {
+        return getBytes("content:" + Long.toHexString(contentHash) + "+" + type);
+    }
+
     private static boolean isSameKey(byte[] key, byte[] buffer) {
         int n = key.length;
         if (buffer.length < n) {
@@ -109,6 +381,20 @@ public class ImageCacheService {
         return true;
     }
 
+    private static boolean isSameKey(byte[] key, ByteBuffer buffer) {
+        int n = key.length;
+        if (buffer.remaining() < n) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < n; ++i) {
+            if (key[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * A function thats returns a 64-bit crc for string
      *
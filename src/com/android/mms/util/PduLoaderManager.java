@@ -16,13 +16,19 @@
 
 package com.android.mms.util;
 
+import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.mms.LogTag;
+import com.android.mms.MmsApp;
+import com.android.mms.model.SlideModel;
 import com.android.mms.model.SlideshowModel;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.GenericPdu;
@@ -46,7 +52,12 @@ import com.google.android.mms.util.PduCacheEntry;
  * PduLoaderManager is used to asynchronously load mms pdu's and then build a slideshow model
  * from that loaded pdu. Then it will call the passed in callback with the result. This class
  * uses the PduCache built into the mms framework. It also manages a local cache of slideshow
- * models. The slideshow cache uses SoftReferences to hang onto the slideshow.
+ * models, bounded by the size of the messages.
+ * <p>
+ * Loads of the same message from the list, from {@link #loadPdu} and from the notifications
+ * share one read of the provider. When a slideshow is loaded for a message the list is
+ * still waiting for, the thumbnail of its first slide is prefetched. The prefetch is
+ * dropped along with the message's request, see {@link #cancelThumbnailPrefetch}.
  *
  * Based on BooksImageManager by Virgil King.
  */
@@ -59,13 +70,32 @@ public class PduLoaderManager extends BackgroundLoaderManager {
 
     private static PduCache mPduCache;
     private final PduPersister mPduPersister;
-    private final SimpleCache<Uri, SlideshowModel> mSlideshowCache;
+    // The slideshows may use up to 1/16 of the heap.
+    private static final int SLIDESHOW_CACHE_HEAP_DIVISOR = 16;
+    private static final int SLIDESHOW_MIN_WEIGHT = 4 * 1024;
+
+    private final WeightedLruCache<Uri, SlideshowModel> mSlideshowCache;
     private final Context mContext;
+    // Statistics of the lookups in mPduCache, which can't record its own.
+    private final CacheStatsRecorder mPduStats = new CacheStatsRecorder("PduLoaderManager.pdus");
+    // Loads running on any thread, so a message is read once however many ask for it.
+    private final RequestCoalescer<Uri, PduLoaded> mLoads = new RequestCoalescer<Uri, PduLoaded>();
+    // The thumbnails prefetched for loaded messages, by message uri. UI thread only.
+    private final HashMap<Uri, Uri> mThumbnailPrefetches = new HashMap<Uri, Uri>();
 
     public PduLoaderManager(final Context context) {
         super(context);
 
-        mSlideshowCache = new SimpleCache<Uri, SlideshowModel>(8, 16, 0.75f, false);
+        mSlideshowCache = new WeightedLruCache<Uri, SlideshowModel>("PduLoaderManager.slideshows",
+                WeightedLruCache.getMemoryBudget(context, SLIDESHOW_CACHE_HEAP_DIVISOR),
+                new WeightedLruCache.Weigher<Uri, SlideshowModel>() {
+                    @Override
+                    public int weigh(Uri key, SlideshowModel value) {
+                        // What the models keep in memory, with a floor for the
+                        // slideshow objects themselves.
+                        return Math.max(value.getMemorySize(), SLIDESHOW_MIN_WEIGHT);
+                    }
+                });
         mPduCache = PduCache.getInstance();
         mPduPersister = PduPersister.getPduPersister(context);
         mContext = context;
@@ -88,6 +118,11 @@ public class PduLoaderManager extends BackgroundLoaderManager {
 
         final boolean slideshowExists = (!requestSlideshow || slideshow != null);
         final boolean pduExists = (cacheEntry != null && cacheEntry.getPdu() != null);
+        if (pduExists) {
+            mPduStats.recordHit();
+        } else {
+            mPduStats.recordMiss();
+        }
         final boolean taskExists = mPendingTaskUris.contains(uri);
         final boolean newTaskRequired = (!pduExists || !slideshowExists) && !taskExists;
         final boolean callbackRequired = (callback != null);
@@ -104,10 +139,13 @@ public class PduLoaderManager extends BackgroundLoaderManager {
             addCallback(uri, callback);
         }
 
+        final int priority = callbackRequired ? PRIORITY_VISIBLE : PRIORITY_PREFETCH;
         if (newTaskRequired) {
             mPendingTaskUris.add(uri);
             Runnable task = new PduTask(uri, requestSlideshow);
-            mExecutor.execute(task);
+            executeTask(uri, task, priority);
+        } else if (taskExists) {
+            promoteTask(uri, priority);
         }
         return new ItemLoadedFuture() {
             private boolean mIsDone;
@@ -136,6 +174,17 @@ public class PduLoaderManager extends BackgroundLoaderManager {
             mPduCache.purgeAll();
         }
         mSlideshowCache.clear();
+        mThumbnailPrefetches.clear();
+    }
+
+    @Override
+    protected void trimMemory(int percent) {
+        if (percent == 0) {
+            synchronized(mPduCache) {
+                mPduCache.purgeAll();
+            }
+        }
+        mSlideshowCache.trim(percent);
     }
 
     public void removePdu(Uri uri) {
@@ -144,9 +193,24 @@ public class PduLoaderManager extends BackgroundLoaderManager {
         }
         if (uri != null) {
             synchronized(mPduCache) {
-                mPduCache.purge(uri);
+                if (mPduCache.purge(uri) != null) {
+                    mPduStats.recordEvictions(1);
+                }
             }
             mSlideshowCache.remove(uri);
+            cancelThumbnailPrefetch(uri);
+        }
+    }
+
+    /**
+     * Drops the thumbnail prefetch started when the message was loaded, if it hasn't
+     * started and no view has asked for that thumbnail. Called when the message's item
+     * goes away. Must be called on the UI thread.
+     */
+    public void cancelThumbnailPrefetch(Uri uri) {
+        Uri thumbnailUri = mThumbnailPrefetches.remove(uri);
+        if (thumbnailUri != null) {
+            MmsApp.getApplication().getThumbnailManager().cancelPrefetch(thumbnailUri);
         }
     }
 
@@ -154,6 +218,83 @@ public class PduLoaderManager extends BackgroundLoaderManager {
         return TAG;
     }
 
+    /**
+     * Loads the pdu and slideshow of a message on the calling thread, which must not be
+     * the UI thread. The caches are used if possible, and a load of the same message
+     * running on another thread is joined rather than repeated.
+     */
+    public PduLoaded loadPdu(Uri uri) throws MmsException {
+        PduCacheEntry cacheEntry = null;
+        synchronized(mPduCache) {
+            if (!mPduCache.isUpdating(uri)) {
+                cacheEntry = mPduCache.get(uri);
+            }
+        }
+        SlideshowModel slideshow = mSlideshowCache.get(uri);
+        if (cacheEntry != null && cacheEntry.getPdu() != null && slideshow != null) {
+            mPduStats.recordHit();
+            return new PduLoaded(cacheEntry.getPdu(), slideshow);
+        }
+        mPduStats.recordMiss();
+        return load(uri, true);
+    }
+
+    private PduLoaded load(final Uri uri, final boolean requestSlideshow) throws MmsException {
+        PduLoaded loaded;
+        try {
+            loaded = mLoads.load(uri, new Callable<PduLoaded>() {
+                @Override
+                public PduLoaded call() throws MmsException {
+                    long start = SystemClock.elapsedRealtime();
+                    GenericPdu pdu = mPduPersister.load(uri);
+                    SlideshowModel slideshow = null;
+                    if (requestSlideshow && pdu instanceof MultimediaMessagePdu) {
+                        slideshow = SlideshowModel.createFromPduBody(mContext,
+                                ((MultimediaMessagePdu)pdu).getBody());
+                        mSlideshowCache.put(uri, slideshow);
+                    }
+                    mPduStats.recordLoadTime(start);
+                    return new PduLoaded(pdu, slideshow);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MmsException) {
+                throw (MmsException) e.getCause();
+            }
+            throw new MmsException(e.getCause());
+        }
+        if (requestSlideshow && loaded.mSlideshow == null
+                && loaded.mPdu instanceof MultimediaMessagePdu) {
+            // Joined a load that didn't want the slideshow.
+            SlideshowModel slideshow = SlideshowModel.createFromPduBody(mContext,
+                    ((MultimediaMessagePdu)loaded.mPdu).getBody());
+            mSlideshowCache.put(uri, slideshow);
+            loaded = new PduLoaded(loaded.mPdu, slideshow);
+        }
+        return loaded;
+    }
+
+    // Starts loading the thumbnail of the first slide, which the list is about to ask for,
+    // and remembers it so cancelThumbnailPrefetch() can drop it.
+    private void prefetchThumbnail(Uri uri, SlideshowModel slideshow) {
+        if (slideshow.size() == 0) {
+            return;
+        }
+        SlideModel slide = slideshow.get(0);
+        ThumbnailManager thumbnailManager = MmsApp.getApplication().getThumbnailManager();
+        Uri thumbnailUri;
+        if (slide.hasImage()) {
+            thumbnailUri = slide.getImage().getUri();
+            thumbnailManager.getThumbnail(thumbnailUri, null);
+        } else if (slide.hasVideo()) {
+            thumbnailUri = slide.getVideo().getUri();
+            thumbnailManager.getVideoThumbnail(thumbnailUri, null);
+        } else {
+            return;
+        }
+        mThumbnailPrefetches.put(uri, thumbnailUri);
+    }
+
     public class PduTask implements Runnable {
         private final Uri mUri;
         private final boolean mRequestSlideshow;
@@ -181,11 +322,9 @@ public class PduLoaderManager extends BackgroundLoaderManager {
             SlideshowModel slideshow = null;
             Throwable exception = null;
             try {
-                pdu = mPduPersister.load(mUri);
-                if (pdu != null && mRequestSlideshow) {
-                    slideshow = SlideshowModel.createFromPduBody(mContext,
-                            ((MultimediaMessagePdu)pdu).getBody());
-                }
+                PduLoaded loaded = load(mUri, mRequestSlideshow);
+                pdu = loaded.mPdu;
+                slideshow = loaded.mSlideshow;
             } catch (final MmsException e) {
                 Log.e(TAG, "MmsException loading uri: " + mUri, e);
                 exception = e;
@@ -196,6 +335,10 @@ public class PduLoaderManager extends BackgroundLoaderManager {
             mCallbackHandler.post(new Runnable() {
                 public void run() {
                     final Set<ItemLoadedCallback> callbacks = mCallbacks.get(mUri);
+                    // Only prefetch for messages a list item still waits for. The
+                    // item's own thumbnail request then joins the prefetch, and its
+                    // cancellation drops it.
+                    final boolean waitedFor = callbacks != null && !callbacks.isEmpty();
                     if (callbacks != null) {
                         // Make a copy so that the callback can unregister itself
                         for (final ItemLoadedCallback<PduLoaded> callback : asList(callbacks)) {
@@ -206,9 +349,8 @@ public class PduLoaderManager extends BackgroundLoaderManager {
                             callback.onItemLoaded(pduLoaded, resultException);
                         }
                     }
-                    // Add the slideshow to the soft cache if the load succeeded
-                    if (resultSlideshow != null) {
-                        mSlideshowCache.put(mUri, resultSlideshow);
+                    if (resultSlideshow != null && waitedFor) {
+                        prefetchThumbnail(mUri, resultSlideshow);
                     }
 
                     mCallbacks.remove(mUri);
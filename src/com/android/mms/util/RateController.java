@@ -27,6 +27,8 @@ import android.database.sqlite.SqliteWrapper;
 import android.provider.Telephony.Mms.Rate;
 import android.util.Log;
 
+import com.android.mms.MmsApp;
+
 public class RateController {
     private static final String TAG = "RateController";
     private static final boolean DEBUG = false;
@@ -72,7 +74,7 @@ public class RateController {
         mContext = context;
     }
 
-    public static void init(Context context) {
+    public static synchronized void init(Context context) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "RateController.init()");
         }
@@ -83,9 +85,12 @@ public class RateController {
         sInstance = new RateController(context);
     }
 
-    public static RateController getInstance() {
+    /**
+     * Returns the global instance, creating it on first use.
+     */
+    public static synchronized RateController getInstance() {
         if (sInstance == null) {
-            throw new IllegalStateException("Uninitialized.");
+            init(MmsApp.getApplication());
         }
         return sInstance;
     }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs at most one load per key at a time. A thread asking for a key that another
+ * thread is already loading waits for that load and gets its result, instead of
+ * reading the same data again.
+ * <p>
+ * Results aren't kept once the load finishes, that's what the caches are for.
+ */
+public class RequestCoalescer<K, V> {
+
+    private static class Load<V> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        V mResult;
+        Throwable mFailure;
+    }
+
+    private final ConcurrentHashMap<K, Load<V>> mLoads = new ConcurrentHashMap<K, Load<V>>();
+
+    /**
+     * Returns the result of the running load for the key, or runs the loader on the
+     * calling thread if there is none.
+     *
+     * @throws ExecutionException if the loader threw a checked exception. Runtime
+     *         exceptions and errors are rethrown as they are.
+     */
+    public V load(K key, Callable<V> loader) throws ExecutionException {
+        Load<V> load = new Load<V>();
+        Load<V> running = mLoads.putIfAbsent(key, load);
+        if (running != null) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    running.mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return getResult(running);
+        }
+
+        try {
+            load.mResult = loader.call();
+        } catch (Throwable t) {
+            load.mFailure = t;
+        } finally {
+            mLoads.remove(key, load);
+            load.mDone.countDown();
+        }
+        return getResult(load);
+    }
+
+    private V getResult(Load<V> load) throws ExecutionException {
+        Throwable failure = load.mFailure;
+        if (failure == null) {
+            return load.mResult;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new ExecutionException(failure);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the initializers of the application on a few background threads. Each task
+ * runs as soon as the tasks it depends on are done, so independent ones run in
+ * parallel. The time each task took is kept for {@link #getTimings}.
+ * <p>
+ * Tasks must all be added before {@link #start}. The threads exit once every task is
+ * done.
+ */
+public class StartupGraph {
+    private static final String TAG = "Mms/startup";
+
+    /**
+     * An initializer. Created with the tasks that must be done before it runs.
+     */
+    public static abstract class Task {
+        private final String mName;
+        private final ArrayList<Task> mDependents = new ArrayList<Task>();
+        private int mPendingDependencies;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile long mDuration = -1;
+
+        protected Task(String name, Task... dependencies) {
+            mName = name;
+            for (Task dependency : dependencies) {
+                dependency.mDependents.add(this);
+                mPendingDependencies++;
+            }
+        }
+
+        protected abstract void run();
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Waits until the task is done.
+         */
+        public void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final ArrayList<Task> mTasks = new ArrayList<Task>();
+    private final ExecutorService mExecutor;
+    private int mRemaining;
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of tasks that may run at the same time.
+     */
+    public StartupGraph(int threadCount) {
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                // The UI waits for some of the tasks, so they run at the default priority.
+                return new Thread(r, "StartupGraph #" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    public synchronized void add(Task task) {
+        mTasks.add(task);
+        mRemaining++;
+    }
+
+    /**
+     * Starts running the tasks and returns immediately.
+     */
+    public synchronized void start() {
+        for (Task task : mTasks) {
+            if (task.mPendingDependencies == 0) {
+                execute(task);
+            }
+        }
+    }
+
+    /**
+     * Waits until all the tasks are done.
+     */
+    public void await() {
+        ArrayList<Task> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<Task>(mTasks);
+        }
+        for (Task task : tasks) {
+            task.await();
+        }
+    }
+
+    /**
+     * Returns the milliseconds each task that is done took, by task name, in the order
+     * the tasks were added.
+     */
+    public synchronized Map<String, Long> getTimings() {
+        LinkedHashMap<String, Long> timings = new LinkedHashMap<String, Long>();
+        for (Task task : mTasks) {
+            if (task.mDuration >= 0) {
+                timings.put(task.mName, task.mDuration);
+            }
+        }
+        return timings;
+    }
+
+    private void execute(final Task task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    task.run();
+                } finally {
+                    task.mDuration = SystemClock.elapsedRealtime() - start;
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, task.mName + " took " + task.mDuration + "ms");
+                    }
+                    task.mDone.countDown();
+                    done(task);
+                }
+            }
+        });
+    }
+
+    private synchronized void done(Task task) {
+        for (Task dependent : task.mDependents) {
+            if (--dependent.mPendingDependencies == 0) {
+                execute(dependent);
+            }
+        }
+        if (--mRemaining == 0) {
+            mExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.util.Log;
+
+import com.android.mms.exif.ExifInterface;
+import com.android.mms.ui.UriImage;
+
+/**
+ * Decodes images straight to thumbnail size. A large camera picture is never
+ * decoded at full size:
+ * <ul>
+ * <li>If the EXIF data holds a thumbnail at least as big as the view draws it, that
+ * thumbnail is used and the picture itself isn't decoded at all. The EXIF data is
+ * only read for it when such a thumbnail is possible at all.
+ * <li>Otherwise the picture is subsampled by a power of two and then scaled by the
+ * decoder itself to the target size, so exactly one bitmap of the final size is
+ * allocated.
+ * </ul>
+ * Given a {@link BitmapPool}, the picture is decoded into a pooled bitmap with
+ * {@link BitmapFactory.Options#inBitmap} when one fits, and the unrotated bitmap of a
+ * picture that has to be rotated goes back to the pool.
+ */
+public class ThumbnailDecoder {
+    private static final String TAG = "ThumbnailDecoder";
+
+    // The EXIF thumbnail shares the 64KB APP1 segment with the rest of the EXIF data.
+    // Cameras write 160x120 up to 320x240, none is bigger than this in practice.
+    private static final int MAX_EXIF_THUMBNAIL_SIZE = 512;
+
+    private ThumbnailDecoder() {
+    }
+
+    /**
+     * Decodes the image so that its longer side is at most targetSize, and rotates it
+     * as its orientation says. Returns null if the image can't be decoded.
+     */
+    public static Bitmap decode(Context context, Uri uri, int targetSize) {
+        return decode(context, uri, targetSize, null);
+    }
+
+    /**
+     * Like {@link #decode(Context, Uri, int)}, but decodes into a bitmap from the pool
+     * when there is one that fits. The pool may be null.
+     */
+    public static Bitmap decode(Context context, Uri uri, int targetSize, BitmapPool pool) {
+        return decode(context, uri, targetSize, targetSize, pool);
+    }
+
+    /**
+     * Like {@link #decode(Context, Uri, int, BitmapPool)}, but uses the thumbnail in the
+     * EXIF data if its longer side is at least minSize, the size the view draws the
+     * image at, even if that's smaller than targetSize.
+     */
+    public static Bitmap decode(Context context, Uri uri, int targetSize, int minSize,
+            BitmapPool pool) {
+        int rotation = -1;
+        ExifInterface exif = minSize <= MAX_EXIF_THUMBNAIL_SIZE ? readExif(context, uri) : null;
+        if (exif != null) {
+            Integer val = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+            rotation = val == null ? 0
+                    : ExifInterface.getRotationForOrientationValue(val.shortValue());
+            Bitmap thumbnail = decodeExifThumbnail(exif, targetSize, minSize);
+            if (thumbnail != null) {
+                thumbnail.setDensity(context.getResources().getDisplayMetrics().densityDpi);
+                return rotate(thumbnail, rotation, null);
+            }
+        }
+        if (rotation < 0) {
+            // Not a JPEG with EXIF data or the EXIF data wasn't read. The orientation may
+            // be in the database, or else UriImage reads it from the EXIF data.
+            rotation = UriImage.getOrientation(context, uri);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeBitmap(context, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        setScale(options, options.outWidth, options.outHeight, targetSize);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        if (pool != null) {
+            options.inMutable = true;
+            options.inBitmap = pool.get(getDecodedByteCount(options));
+        }
+        Bitmap result;
+        try {
+            result = decodeBitmap(context, uri, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The bitmap couldn't be reused for this image, it's still good for others.
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            result = decodeBitmap(context, uri, options);
+        }
+        if (result == null) {
+            return null;
+        }
+        result.setDensity(context.getResources().getDisplayMetrics().densityDpi);
+        if (result.getConfig() == null) {
+            // Not every decoder honors inPreferredConfig, make it drawable with GL.
+            Bitmap copy = result.copy(Bitmap.Config.ARGB_8888, false);
+            result.recycle();
+            result = copy;
+        }
+        return rotate(result, rotation, pool);
+    }
+
+    private static ExifInterface readExif(Context context, Uri uri) {
+        InputStream inputStream = null;
+        try {
+            inputStream = context.getContentResolver().openInputStream(uri);
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(inputStream);
+            return exif;
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Can't open uri: " + uri, e);
+        } catch (IOException e) {
+            // Not a JPEG, or no EXIF data.
+        } finally {
+            closeSilently(inputStream);
+        }
+        return null;
+    }
+
+    private static Bitmap decodeExifThumbnail(ExifInterface exif, int targetSize,
+            int minSize) {
+        byte[] jpeg = exif.getThumbnailBytes();
+        if (jpeg == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (Math.max(options.outWidth, options.outHeight) < minSize) {
+            // Too small, it would look blurry.
+            return null;
+        }
+        setScale(options, options.outWidth, options.outHeight, targetSize);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        try {
+            return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "there is no enough memory to decode the exif thumbnail");
+            return null;
+        }
+    }
+
+    // Sets up options to subsample by the largest power of two that keeps the longer
+    // side at least targetSize, then scale the rest of the way while decoding.
+    private static void setScale(BitmapFactory.Options options, int width, int height,
+            int targetSize) {
+        int longSide = Math.max(width, height);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        options.inSampleSize = sampleSize;
+        int sampledSide = (longSide + sampleSize - 1) / sampleSize;
+        if (sampledSide > targetSize) {
+            options.inScaled = true;
+            options.inDensity = sampledSide;
+            options.inTargetDensity = targetSize;
+        }
+    }
+
+    // Returns the size in bytes of the ARGB_8888 bitmap the options decode to, rounding
+    // the scaled size up so that a bitmap of that size is surely big enough.
+    private static int getDecodedByteCount(BitmapFactory.Options options) {
+        int sampleSize = options.inSampleSize;
+        long width = (options.outWidth + sampleSize - 1) / sampleSize;
+        long height = (options.outHeight + sampleSize - 1) / sampleSize;
+        if (options.inScaled && options.inDensity > 0) {
+            width = (width * options.inTargetDensity + options.inDensity - 1) / options.inDensity;
+            height = (height * options.inTargetDensity + options.inDensity - 1)
+                    / options.inDensity;
+        }
+        return (int) Math.min(width * height * 4, Integer.MAX_VALUE);
+    }
+
+    private static Bitmap decodeBitmap(Context context, Uri uri, BitmapFactory.Options options) {
+        InputStream inputStream;
+        try {
+            inputStream = context.getContentResolver().openInputStream(uri);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Can't open uri: " + uri, e);
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "there is no enough memory to decode this large bitmap");
+            return null;
+        } finally {
+            closeSilently(inputStream);
+        }
+    }
+
+    // Rotates the bitmap. The unrotated bitmap goes back to the pool if there is one,
+    // otherwise it's recycled.
+    private static Bitmap rotate(Bitmap bitmap, int degrees, BitmapPool pool) {
+        if (degrees == 0) {
+            return bitmap;
+        }
+        Matrix m = new Matrix();
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        m.setRotate(degrees, (float) w / 2, (float) h / 2);
+        Bitmap rotated;
+        try {
+            rotated = Bitmap.createBitmap(bitmap, 0, 0, w, h, m, true);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OOM in rotate", e);
+            return bitmap;
+        }
+        if (rotated != bitmap) {
+            if (pool == null || !pool.put(bitmap)) {
+                bitmap.recycle();
+            }
+        }
+        return rotated;
+    }
+
+    private static void closeSilently(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (Throwable t) {
+            Log.w(TAG, "close fail", t);
+        }
+    }
+}
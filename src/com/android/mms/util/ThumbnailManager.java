@@ -25,6 +25,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.mms.LogTag;
@@ -34,10 +35,10 @@ import com.android.mms.ui.UriImage;
 import com.android.mms.util.ImageCacheService.ImageData;
 
 import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Primary {@link ThumbnailManager} implementation used by {@link MessagingApplication}.
@@ -55,6 +56,11 @@ import java.util.Set;
  * are stored in a local cache with SoftReferences. Once a thumbnail is loaded, it will call the
  * passed in callback with the result. If a thumbnail is immediately available in the cache,
  * the callback will be called immediately as well.
+ * <p>
+ * Thumbnails that have left the cache and that no client displays anymore go to a
+ * {@link BitmapPool}, and new thumbnails are decoded into bitmaps from the pool. A client
+ * that hands back the bitmaps it's given with {@link #releaseBitmap} lets them be reused;
+ * the bitmaps of a client that doesn't are simply never pooled.
  *
  * Based on BooksImageManager by Virgil King.
  */
@@ -68,9 +74,30 @@ public class ThumbnailManager extends BackgroundLoaderManager {
 
     private static final int COMPRESS_JPEG_QUALITY = 90;
 
-    private final SimpleCache<Uri, Bitmap> mThumbnailCache;
+    // The in-memory thumbnails may use up to 1/8 of the heap.
+    private static final int THUMBNAIL_CACHE_HEAP_DIVISOR = 8;
+    // The pooled bitmaps may use up to 1/16 of the heap.
+    private static final int BITMAP_POOL_HEAP_DIVISOR = 16;
+
+    // How many times a bitmap was given to clients and not released yet, and whether it
+    // has left the cache.
+    private static class Delivery {
+        int mRefs;
+        boolean mRemoved;
+    }
+
+    private final WeightedLruCache<Uri, Bitmap> mThumbnailCache;
+    private final BitmapPool mBitmapPool;
+    // The bitmaps given to clients. Clients that never release a bitmap keep it out of
+    // the pool, the weak keys let it be collected anyway.
+    private final WeakHashMap<Bitmap, Delivery> mDeliveries = new WeakHashMap<Bitmap, Delivery>();
     private final Context mContext;
+    // The size MessageListItem draws image attachments at, in pixels.
+    private final int mInlineAttachmentSize;
     private ImageCacheService mImageCacheService;
+    // Number of ThumbnailTasks queued or running. The last one to finish
+    // writes the thumbnails it and its predecessors produced to the disk cache.
+    private final AtomicInteger mTaskCount = new AtomicInteger();
     private static Bitmap mEmptyImageBitmap;
     private static Bitmap mEmptyVideoBitmap;
 
@@ -80,12 +107,33 @@ public class ThumbnailManager extends BackgroundLoaderManager {
     public static final int TYPE_MICROTHUMBNAIL = 2;
 
     public static final int THUMBNAIL_TARGET_SIZE = 640;
+    // The largest thumbnail: the target size square, in ARGB_8888. Anything up to this
+    // is admitted to the cache, even if it's more than the default share of the budget.
+    private static final int MAX_THUMBNAIL_BYTES =
+            THUMBNAIL_TARGET_SIZE * THUMBNAIL_TARGET_SIZE * 4;
 
     public ThumbnailManager(final Context context) {
         super(context);
 
-        mThumbnailCache = new SimpleCache<Uri, Bitmap>(8, 16, 0.75f, true);
+        mThumbnailCache = new WeightedLruCache<Uri, Bitmap>("ThumbnailManager.bitmaps",
+                WeightedLruCache.getMemoryBudget(context, THUMBNAIL_CACHE_HEAP_DIVISOR),
+                MAX_THUMBNAIL_BYTES,
+                new WeightedLruCache.Weigher<Uri, Bitmap>() {
+                    @Override
+                    public int weigh(Uri key, Bitmap value) {
+                        return value.getByteCount();
+                    }
+                }) {
+            @Override
+            protected void entryRemoved(Uri key, Bitmap value) {
+                onThumbnailRemoved(value);
+            }
+        };
+        mBitmapPool = new BitmapPool("ThumbnailManager.pool",
+                WeightedLruCache.getMemoryBudget(context, BITMAP_POOL_HEAP_DIVISOR));
         mContext = context;
+        mInlineAttachmentSize = context.getResources().getDimensionPixelSize(
+                R.dimen.mms_inline_attachment_size);
 
         mEmptyImageBitmap = BitmapFactory.decodeResource(context.getResources(),
                 R.drawable.ic_missing_thumbnail_picture);
@@ -120,18 +168,35 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         return getThumbnail(uri, true, callback);
     }
 
+    /**
+     * Drops a thumbnail load started with a null callback, unless it has started or a
+     * client has asked for the thumbnail since. Must be called on the UI thread.
+     */
+    public void cancelPrefetch(Uri uri) {
+        if (uri != null) {
+            cancelUnclaimedTask(uri);
+        }
+    }
+
     private ItemLoadedFuture getThumbnail(Uri uri, boolean isVideo,
             final ItemLoadedCallback<ImageLoaded> callback) {
         if (uri == null) {
             throw new NullPointerException();
         }
 
-        final Bitmap thumbnail = DEBUG_DISABLE_CACHE ? null : mThumbnailCache.get(uri);
+        final boolean callbackRequired = (callback != null);
+        final Bitmap thumbnail;
+        synchronized (mThumbnailCache) {
+            // Counted before it can be evicted, so it isn't pooled while the callback has it.
+            thumbnail = DEBUG_DISABLE_CACHE ? null : mThumbnailCache.get(uri);
+            if (thumbnail != null && callbackRequired && !DEBUG_DISABLE_CALLBACK) {
+                deliver(thumbnail);
+            }
+        }
 
         final boolean thumbnailExists = (thumbnail != null);
         final boolean taskExists = mPendingTaskUris.contains(uri);
         final boolean newTaskRequired = !thumbnailExists && !taskExists;
-        final boolean callbackRequired = (callback != null);
 
         if (Log.isLoggable(LogTag.THUMBNAIL_CACHE, Log.DEBUG)) {
             Log.v(TAG, "getThumbnail mThumbnailCache.get for uri: " + uri + " thumbnail: " +
@@ -153,10 +218,14 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             addCallback(uri, callback);
         }
 
+        final int priority = callbackRequired ? PRIORITY_VISIBLE : PRIORITY_PREFETCH;
         if (newTaskRequired) {
             mPendingTaskUris.add(uri);
             Runnable task = new ThumbnailTask(uri, isVideo);
-            mExecutor.execute(task);
+            mTaskCount.incrementAndGet();
+            executeTask(uri, task, priority);
+        } else if (taskExists) {
+            promoteTask(uri, priority);
         }
         return new ItemLoadedFuture() {
             private boolean mIsDone;
@@ -184,9 +253,79 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         super.clear();
 
         mThumbnailCache.clear();    // clear in-memory cache
+        mBitmapPool.clear();
         clearBackingStore();        // clear on-disk cache
     }
 
+    @Override
+    protected void onTaskCanceled(Uri uri, Runnable task) {
+        if (mTaskCount.decrementAndGet() == 0) {
+            // The canceled task was the one due to write the new thumbnails out.
+            executeTask(null, new Runnable() {
+                @Override
+                public void run() {
+                    getImageCacheService().flush();
+                }
+            }, PRIORITY_PREFETCH);
+        }
+    }
+
+    @Override
+    protected void trimMemory(int percent) {
+        // Only the in-memory cache, the on-disk cache costs no heap.
+        mThumbnailCache.trim(percent);
+        mBitmapPool.trim(percent);
+    }
+
+    /**
+     * Hands back a bitmap given to the caller by a callback or by
+     * {@link #getCachedThumbnail}, once it's no longer displayed. The caller must not use
+     * the bitmap anymore. Bitmaps that didn't come from this manager are ignored.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mDeliveries) {
+            Delivery delivery = mDeliveries.get(bitmap);
+            if (delivery == null || --delivery.mRefs > 0) {
+                return;
+            }
+            mDeliveries.remove(bitmap);
+            if (!delivery.mRemoved) {
+                // Still cached, the cache will pool it when it's evicted.
+                return;
+            }
+        }
+        mBitmapPool.put(bitmap);
+    }
+
+    // Counts a bitmap given to a client.
+    private Bitmap deliver(Bitmap bitmap) {
+        synchronized (mDeliveries) {
+            Delivery delivery = mDeliveries.get(bitmap);
+            if (delivery == null) {
+                delivery = new Delivery();
+                mDeliveries.put(bitmap, delivery);
+            }
+            delivery.mRefs++;
+        }
+        return bitmap;
+    }
+
+    // Called with the cache locked when a thumbnail leaves the cache. Pools it unless a
+    // client still has it.
+    private void onThumbnailRemoved(Bitmap bitmap) {
+        synchronized (mDeliveries) {
+            Delivery delivery = mDeliveries.get(bitmap);
+            if (delivery != null) {
+                delivery.mRemoved = true;
+                return;
+            }
+        }
+        mBitmapPool.put(bitmap);
+    }
+
     // Delete the on-disk cache, but leave the in-memory cache intact
     public synchronized void clearBackingStore() {
         if (mImageCacheService == null) {
@@ -201,6 +340,20 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         }
     }
 
+    /**
+     * Returns the thumbnail for the uri if it's in memory, or null. Unlike the other
+     * methods this one may be called from any thread. The caller must hand the bitmap
+     * back with {@link #releaseBitmap}.
+     */
+    public Bitmap getCachedThumbnail(Uri uri) {
+        // The cache lock keeps the thumbnail from being evicted and pooled before it's
+        // counted.
+        synchronized (mThumbnailCache) {
+            Bitmap thumbnail = mThumbnailCache.get(uri);
+            return thumbnail == null ? null : deliver(thumbnail);
+        }
+    }
+
     public void removeThumbnail(Uri uri) {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "removeThumbnail: " + uri);
@@ -248,12 +401,18 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             }
 
             Bitmap bitmap = null;
+            long start = SystemClock.elapsedRealtime();
             try {
                 bitmap = getBitmap(mIsVideo);
             } catch (IllegalArgumentException e) {
                 Log.e(TAG, "Couldn't load bitmap for " + mUri, e);
             } catch (OutOfMemoryError e) {
                 Log.e(TAG, "Couldn't load bitmap for " + mUri, e);
+            } finally {
+                mThumbnailCache.getStats().recordLoadTime(start);
+                if (mTaskCount.decrementAndGet() == 0) {
+                    getImageCacheService().flush();
+                }
             }
             final Bitmap resultBitmap = bitmap;
 
@@ -265,6 +424,8 @@ public class ThumbnailManager extends BackgroundLoaderManager {
                         Bitmap bitmap = resultBitmap == null ?
                                 (mIsVideo ? mEmptyVideoBitmap : mEmptyImageBitmap)
                                 : resultBitmap;
+                        // The stand-ins are shared, only the loaded bitmap is counted.
+                        final boolean loaded = resultBitmap != null;
 
                         // Make a copy so that the callback can unregister itself
                         for (final ItemLoadedCallback<ImageLoaded> callback : asList(callbacks)) {
@@ -272,7 +433,8 @@ public class ThumbnailManager extends BackgroundLoaderManager {
                                 Log.d(TAG, "Invoking item loaded callback " + callback);
                             }
                             if (!DEBUG_DISABLE_CALLBACK) {
-                                ImageLoaded imageLoaded = new ImageLoaded(bitmap, mIsVideo);
+                                ImageLoaded imageLoaded = new ImageLoaded(
+                                        loaded ? deliver(bitmap) : bitmap, mIsVideo);
                                 callback.onItemLoaded(imageLoaded, null);
                             }
                         }
@@ -282,8 +444,9 @@ public class ThumbnailManager extends BackgroundLoaderManager {
                         }
                     }
 
-                    // Add the bitmap to the soft cache if the load succeeded. Don't cache the
-                    // stand-ins for empty bitmaps.
+                    // Add the bitmap to the cache if the load succeeded. Don't cache the
+                    // stand-ins for empty bitmaps. This comes after the callbacks so that
+                    // a bitmap the cache doesn't admit isn't pooled while they have it.
                     if (resultBitmap != null) {
                         mThumbnailCache.put(mUri, resultBitmap);
                         if (Log.isLoggable(LogTag.THUMBNAIL_CACHE, Log.DEBUG)) {
@@ -321,39 +484,60 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             boolean isTempFile = TempFileProvider.isTempFile(path);
 
             ImageData data = null;
+            long contentHash = 0;
             if (!isTempFile) {
                 data = cacheService.getImageData(path, TYPE_THUMBNAIL);
+                if (data == null) {
+                    // Maybe the same attachment was cached under another uri.
+                    contentHash = cacheService.getContentHash(mUri);
+                    if (contentHash != 0) {
+                        data = cacheService.getImageData(path, TYPE_THUMBNAIL, contentHash);
+                    }
+                }
             }
 
+            Bitmap bitmap;
             if (data != null) {
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap = requestDecode(data.mData,
-                        data.mOffset, data.mData.length - data.mOffset, options);
-                if (bitmap == null) {
-                    Log.w(TAG, "decode cached failed " + path);
-                }
-                return bitmap;
-            } else {
-                Bitmap bitmap;
-                if (isVideo) {
-                    bitmap = getVideoBitmap();
+                if (data.mBuffer != null) {
+                    // Decode straight from the mapped cache file.
+                    bitmap = requestDecode(data.mBuffer, options);
                 } else {
-                    bitmap = onDecodeOriginal(mUri, TYPE_THUMBNAIL);
+                    bitmap = requestDecode(data.mData,
+                            data.mOffset, data.mData.length - data.mOffset, options);
                 }
-                if (bitmap == null) {
-                    Log.w(TAG, "decode orig failed " + path);
-                    return null;
+                if (cacheService.isValid(data)) {
+                    if (bitmap == null) {
+                        Log.w(TAG, "decode cached failed " + path);
+                    }
+                    return bitmap;
                 }
+                // The cache region was recycled while we were decoding, so the
+                // bitmap may be garbage. Decode the original instead.
+                Log.w(TAG, "cached data went stale while decoding " + path);
+                if (bitmap != null && !mBitmapPool.put(bitmap)) {
+                    bitmap.recycle();
+                }
+            }
+
+            if (isVideo) {
+                bitmap = getVideoBitmap();
+            } else {
+                bitmap = onDecodeOriginal(mUri, TYPE_THUMBNAIL);
+            }
+            if (bitmap == null) {
+                Log.w(TAG, "decode orig failed " + path);
+                return null;
+            }
 
-                bitmap = resizeDownBySideLength(bitmap, THUMBNAIL_TARGET_SIZE, true);
+            bitmap = resizeDownBySideLength(bitmap, THUMBNAIL_TARGET_SIZE, true);
 
-                if (!isTempFile) {
-                    byte[] array = compressBitmap(bitmap);
-                    cacheService.putImageData(path, TYPE_THUMBNAIL, array);
-                }
-                return bitmap;
+            if (!isTempFile) {
+                byte[] array = compressBitmap(bitmap);
+                cacheService.putImageData(path, TYPE_THUMBNAIL, array, contentHash);
             }
+            return bitmap;
         }
 
         private Bitmap getVideoBitmap() {
@@ -380,21 +564,78 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             return os.toByteArray();
         }
 
+        private Bitmap requestDecode(ByteBuffer buffer, Options options) {
+            if (options == null) {
+                options = new Options();
+            }
+
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+            usePooledBitmap(options);
+            try {
+                try {
+                    return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                            new ByteBufferInputStream(buffer), null, options));
+                } catch (IllegalArgumentException e) {
+                    if (!returnPooledBitmap(options)) {
+                        throw e;
+                    }
+                    return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                            new ByteBufferInputStream(buffer), null, options));
+                }
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG,"there is no enough memory to decode this large bitmap");
+                return null;
+            }
+        }
+
         private Bitmap requestDecode(byte[] bytes, int offset,
                 int length, Options options) {
             if (options == null) {
                 options = new Options();
             }
 
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, offset, length, options);
+            usePooledBitmap(options);
             try {
-                return ensureGLCompatibleBitmap(
-                    BitmapFactory.decodeByteArray(bytes, offset, length, options));
+                try {
+                    return ensureGLCompatibleBitmap(
+                        BitmapFactory.decodeByteArray(bytes, offset, length, options));
+                } catch (IllegalArgumentException e) {
+                    if (!returnPooledBitmap(options)) {
+                        throw e;
+                    }
+                    return ensureGLCompatibleBitmap(
+                        BitmapFactory.decodeByteArray(bytes, offset, length, options));
+                }
             } catch (OutOfMemoryError e) {
                 Log.e(TAG,"there is no enough memory to decode this large bitmap");
                 return null;
             }
         }
 
+        // Sets up options whose bounds have been decoded to decode into a pooled bitmap,
+        // if there is one big enough.
+        private void usePooledBitmap(Options options) {
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                options.inBitmap = mBitmapPool.get(options.outWidth * options.outHeight * 4);
+            }
+        }
+
+        // Puts back the pooled bitmap the decoder couldn't use. Returns false if the
+        // options had none.
+        private boolean returnPooledBitmap(Options options) {
+            if (options.inBitmap == null) {
+                return false;
+            }
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return true;
+        }
+
         private Bitmap resizeDownBySideLength(
                 Bitmap bitmap, int maxLength, boolean recycle) {
             int srcWidth = bitmap.getWidth();
@@ -439,112 +680,8 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         }
 
         private Bitmap onDecodeOriginal(Uri uri, int type) {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-
-            return requestDecode(uri, options, THUMBNAIL_TARGET_SIZE);
-        }
-
-        private void closeSilently(Closeable c) {
-            if (c == null) return;
-            try {
-                c.close();
-            } catch (Throwable t) {
-                Log.w(TAG, "close fail", t);
-            }
-        }
-
-        private Bitmap requestDecode(final Uri uri, Options options, int targetSize) {
-            if (options == null) options = new Options();
-
-            InputStream inputStream;
-            try {
-                inputStream = mContext.getContentResolver().openInputStream(uri);
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Can't open uri: " + uri, e);
-                return null;
-            }
-
-            options.inJustDecodeBounds = true;
-
-            try {
-                BitmapFactory.decodeStream(inputStream, null, options);
-            } catch (OutOfMemoryError e) {
-                Log.e(TAG,"there is no enough memory to decode this large bitmap");
-                return null;
-            }
-
-            closeSilently(inputStream);
-
-            // No way to reset the stream. Have to open it again :-(
-            try {
-                inputStream = mContext.getContentResolver().openInputStream(uri);
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Can't open uri: " + uri, e);
-                return null;
-            }
-
-            options.inSampleSize = computeSampleSizeLarger(
-                    options.outWidth, options.outHeight, targetSize);
-            options.inJustDecodeBounds = false;
-
-            Bitmap result;
-            try {
-                result = BitmapFactory.decodeStream(inputStream, null, options);
-            } catch (OutOfMemoryError e) {
-                Log.e(TAG,"there is no enough memory to decode this large bitmap");
-                return null;
-            }
-
-
-            closeSilently(inputStream);
-
-            if (result == null) {
-                return null;
-            }
-
-            // We need to resize down if the decoder does not support inSampleSize.
-            // (For example, GIF images.)
-            result = resizeDownIfTooBig(result, targetSize, true);
-            result = ensureGLCompatibleBitmap(result);
-
-            int orientation = UriImage.getOrientation(mContext, uri);
-            // Rotate the bitmap if we need to.
-            if (result != null && orientation != 0) {
-                result = UriImage.rotateBitmap(result, orientation);
-            }
-            return result;
-        }
-
-        // This computes a sample size which makes the longer side at least
-        // minSideLength long. If that's not possible, return 1.
-        private int computeSampleSizeLarger(int w, int h,
-                int minSideLength) {
-            int initialSize = Math.max(w / minSideLength, h / minSideLength);
-            if (initialSize <= 1) return 1;
-
-            return initialSize <= 8
-                    ? prevPowerOf2(initialSize)
-                    : initialSize / 8 * 8;
-        }
-
-        // Returns the previous power of two.
-        // Returns the input if it is already power of 2.
-        // Throws IllegalArgumentException if the input is <= 0
-        private int prevPowerOf2(int n) {
-            if (n <= 0) throw new IllegalArgumentException();
-            return Integer.highestOneBit(n);
-        }
-
-        // Resize the bitmap if each side is >= targetSize * 2
-        private Bitmap resizeDownIfTooBig(
-                Bitmap bitmap, int targetSize, boolean recycle) {
-            int srcWidth = bitmap.getWidth();
-            int srcHeight = bitmap.getHeight();
-            float scale = Math.max(
-                    (float) targetSize / srcWidth, (float) targetSize / srcHeight);
-            if (scale > 0.5f) return bitmap;
-            return resizeBitmapByScale(bitmap, scale, recycle);
+            return ThumbnailDecoder.decode(mContext, uri, THUMBNAIL_TARGET_SIZE,
+                    mInlineAttachmentSize, mBitmapPool);
         }
     }
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+/**
+ * A cache bounded by the total weight of its values rather than by their number. The
+ * weight of a value is given by a {@link Weigher}, typically its size in bytes, so a
+ * full size thumbnail costs more of the budget than a micro thumbnail.
+ * <p>
+ * Eviction uses a second-chance policy: entries are kept in insertion order and each
+ * one has a referenced bit, set by {@link #get}. When the cache is over budget the
+ * eldest entry is evicted unless its bit is set, in which case the bit is cleared and
+ * the entry moves to the back of the queue. Values heavier than the admission limit
+ * are not cached at all, so one huge value can't flush the whole cache.
+ * <p>
+ * All methods are thread-safe. The interface is a subset of {@link Map}.
+ */
+public class WeightedLruCache<K, V> {
+
+    /**
+     * Computes the weight of a cache entry. The weight of an entry must not change while
+     * it's in the cache.
+     */
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private static class Entry<V> {
+        final V mValue;
+        final int mWeight;
+        boolean mReferenced;
+
+        Entry(V value, int weight) {
+            mValue = value;
+            mWeight = weight;
+        }
+    }
+
+    // By default a single value may take up to a quarter of the budget.
+    private static final int DEFAULT_ADMISSION_DIVISOR = 4;
+
+    private final LinkedHashMap<K, Entry<V>> mMap;
+    private final Weigher<K, V> mWeigher;
+    private final int mMaxWeight;
+    private final int mMaxEntryWeight;
+    private int mWeight;
+    private final CacheStatsRecorder mStats;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name the cache statistics are reported under.
+     * @param maxWeight the budget for the sum of the weights of all the values.
+     * @param weigher computes the weight of each value.
+     */
+    public WeightedLruCache(String name, int maxWeight, Weigher<K, V> weigher) {
+        this(name, maxWeight, maxWeight / DEFAULT_ADMISSION_DIVISOR, weigher);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name the cache statistics are reported under.
+     * @param maxWeight the budget for the sum of the weights of all the values.
+     * @param maxEntryWeight values heavier than this are not admitted to the cache.
+     * @param weigher computes the weight of each value.
+     */
+    public WeightedLruCache(String name, int maxWeight, int maxEntryWeight,
+            Weigher<K, V> weigher) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight <= 0");
+        }
+        if (weigher == null) {
+            throw new NullPointerException("weigher is null");
+        }
+        mMap = new LinkedHashMap<K, Entry<V>>(16, 0.75f, false);
+        mWeigher = weigher;
+        mMaxWeight = maxWeight;
+        mMaxEntryWeight = Math.min(maxEntryWeight, maxWeight);
+        mStats = new CacheStatsRecorder(name) {
+            @Override
+            public int getEntryCount() {
+                return size();
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                return weight();
+            }
+        };
+    }
+
+    /**
+     * Returns a budget of 1/divisor of the heap the app may use, in bytes.
+     */
+    public static int getMemoryBudget(Context context, int divisor) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024 * 1024 / divisor;
+    }
+
+    /**
+     * See {@link Map#get(Object)}.
+     */
+    public synchronized V get(Object key) {
+        Entry<V> entry = mMap.get(key);
+        if (entry == null) {
+            mStats.recordMiss();
+            return null;
+        }
+        entry.mReferenced = true;
+        mStats.recordHit();
+        return entry.mValue;
+    }
+
+    /**
+     * See {@link Map#containsKey(Object)}. Unlike {@link #get} it doesn't count as a use
+     * of the entry.
+     */
+    public synchronized boolean containsKey(Object key) {
+        return mMap.containsKey(key);
+    }
+
+    /**
+     * See {@link Map#put(Object, Object)}. Values heavier than the admission limit are
+     * not stored, but still replace any previous value for the key.
+     */
+    public synchronized V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int weight = mWeigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("negative weight for " + key);
+        }
+        Entry<V> previous = mMap.remove(key);
+        if (previous != null) {
+            mWeight -= previous.mWeight;
+            if (previous.mValue != value) {
+                entryRemoved(key, previous.mValue);
+            }
+        }
+        if (weight <= mMaxEntryWeight) {
+            mMap.put(key, new Entry<V>(value, weight));
+            mWeight += weight;
+            trimToWeight(mMaxWeight);
+        } else {
+            entryRemoved(key, value);
+        }
+        return previous != null ? previous.mValue : null;
+    }
+
+    /**
+     * See {@link Map#remove(Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(Object key) {
+        Entry<V> entry = mMap.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        mWeight -= entry.mWeight;
+        // The key was found, so it's a K.
+        entryRemoved((K) key, entry.mValue);
+        return entry.mValue;
+    }
+
+    /**
+     * See {@link Map#clear()}.
+     */
+    public synchronized void clear() {
+        for (Map.Entry<K, Entry<V>> entry : mMap.entrySet()) {
+            entryRemoved(entry.getKey(), entry.getValue().mValue);
+        }
+        mMap.clear();
+        mWeight = 0;
+    }
+
+    /**
+     * Evicts entries until the cache uses at most the given percentage of its budget.
+     * Called when the system is low on memory.
+     */
+    public synchronized void trim(int percent) {
+        trimToWeight((int) ((long) mMaxWeight * percent / 100));
+    }
+
+    private void trimToWeight(int maxWeight) {
+        int evicted = 0;
+        while (mWeight > maxWeight) {
+            Iterator<Map.Entry<K, Entry<V>>> it = mMap.entrySet().iterator();
+            Map.Entry<K, Entry<V>> eldest = it.next();
+            Entry<V> entry = eldest.getValue();
+            it.remove();
+            if (entry.mReferenced && maxWeight > 0) {
+                // Give it a second chance at the back of the queue.
+                entry.mReferenced = false;
+                mMap.put(eldest.getKey(), entry);
+            } else {
+                mWeight -= entry.mWeight;
+                evicted++;
+                entryRemoved(eldest.getKey(), entry.mValue);
+            }
+        }
+        if (evicted > 0) {
+            mStats.recordEvictions(evicted);
+        }
+    }
+
+    /**
+     * Called with the cache locked whenever a value leaves the cache: when it's evicted,
+     * removed, replaced or cleared, or wasn't admitted in the first place. The default
+     * implementation does nothing.
+     */
+    protected void entryRemoved(K key, V value) {
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    /**
+     * Returns the sum of the weights of the entries.
+     */
+    public synchronized int weight() {
+        return mWeight;
+    }
+
+    /**
+     * Returns the budget for the sum of the weights.
+     */
+    public int maxWeight() {
+        return mMaxWeight;
+    }
+
+    /**
+     * Returns the statistics of this cache. Owners record load times through it.
+     */
+    public CacheStatsRecorder getStats() {
+        return mStats;
+    }
+}
@@ -1,5 +1,7 @@
 package com.android.mms;
 
+import java.util.Map;
+
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
@@ -17,12 +19,17 @@ public class MmsLaunchPerformance extends LaunchPerformanceBase {
     }
 
     /**
-     * Calls LaunchApp and finish.
+     * Calls LaunchApp, adds the time each startup stage of the application took to the
+     * results as startup_<stage> in milliseconds, and finish.
      */
     @Override
     public void onStart() {
         super.onStart();
         LaunchApp();
+        MmsApp app = (MmsApp) getTargetContext().getApplicationContext();
+        for (Map.Entry<String, Long> timing : app.awaitStartupTimings().entrySet()) {
+            mResults.putLong("startup_" + timing.getKey(), timing.getValue());
+        }
         finish(Activity.RESULT_OK, mResults);
     }
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.data;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures how many cached lookups per second Contact.get does with one and with
+ * several threads looking up at the same time, like the conversation list binding rows
+ * while notifications are built.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.data.ContactLookupThroughputTest mms
+ */
+@LargeTest
+public class ContactLookupThroughputTest extends AndroidTestCase {
+    private static final String TAG = "ContactLookupThroughputTest";
+
+    private static final int NUMBER_COUNT = 500;
+    private static final long RUN_MILLIS = 2000;
+
+    private String[] mNumbers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mNumbers = new String[NUMBER_COUNT];
+        for (int i = 0; i < NUMBER_COUNT; i++) {
+            // Half of them spelled differently from the first lookup below.
+            mNumbers[i] = (i % 2 == 0 ? "+1 (650) 555-" : "650555") + (1000 + i);
+        }
+        // Fill the cache.
+        for (int i = 0; i < NUMBER_COUNT; i++) {
+            Contact.get("+1650555" + (1000 + i), false);
+        }
+    }
+
+    public void testLookupThroughputScales() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long single = measure(1);
+        long parallel = measure(Math.max(2, cores));
+        Log.i(TAG, "lookups per second: 1 thread " + single + ", " + Math.max(2, cores)
+                + " threads " + parallel + " (" + cores + " cores)");
+        if (cores > 1) {
+            assertTrue("lookups don't scale: " + parallel + " vs " + single, parallel > single);
+        }
+    }
+
+    // Returns the lookups per second done by the given number of threads together.
+    private long measure(int threadCount) throws Exception {
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            // Each thread starts at a different number so they don't all lock the same
+            // Contact at once.
+            int offset = t * NUMBER_COUNT / threadCount;
+            new Thread(new LookupLoop(offset, start, done, lookups)).start();
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        return lookups.get() * 1000 / Math.max(1, elapsed);
+    }
+
+    private class LookupLoop implements Runnable {
+        private final int mOffset;
+        private final CountDownLatch mStart;
+        private final CountDownLatch mDone;
+        private final AtomicLong mLookups;
+
+        LookupLoop(int offset, CountDownLatch start, CountDownLatch done, AtomicLong lookups) {
+            mOffset = offset;
+            mStart = start;
+            mDone = done;
+            mLookups = lookups;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStart.await();
+                long end = SystemClock.elapsedRealtime() + RUN_MILLIS;
+                long count = 0;
+                int i = mOffset;
+                while (SystemClock.elapsedRealtime() < end) {
+                    for (int j = 0; j < 100; j++) {
+                        assertNotNull(Contact.get(mNumbers[i], false));
+                        i = (i + 1) % NUMBER_COUNT;
+                    }
+                    count += 100;
+                }
+                mLookups.addAndGet(count);
+            } catch (InterruptedException e) {
+                // Just count what we have.
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+}
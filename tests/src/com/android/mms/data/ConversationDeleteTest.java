@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.data;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.provider.Telephony.Sms;
+import android.provider.Telephony.Threads;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * Deletes a thread that shares a recipient with a thread that stays, the way
+ * ConversationList does: the recipients of the deleted thread are dropped from the
+ * contact cache and the conversation cache is initialized again. The surviving thread
+ * must then hold the contact that is in the contact cache, so that looking it up by its
+ * recipients finds it instead of making a second conversation for the same thread.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.data.ConversationDeleteTest mms
+ */
+@LargeTest
+public class ConversationDeleteTest extends AndroidTestCase {
+    private static final String SHARED_NUMBER = "+16505552000";
+    private static final String OTHER_NUMBER = "+16505552001";
+
+    private long mDeletedThreadId;
+    private long mSurvivingThreadId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDeletedThreadId = createThread(SHARED_NUMBER);
+        mSurvivingThreadId = createThread(SHARED_NUMBER, OTHER_NUMBER);
+        Conversation.init(getContext());
+        Conversation.waitForSync(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteThread(mDeletedThreadId);
+        deleteThread(mSurvivingThreadId);
+        Conversation.init(getContext());
+        Conversation.waitForSync(getContext());
+        super.tearDown();
+    }
+
+    public void testDeleteThreadSharingContact() throws Exception {
+        Conversation surviving = Conversation.get(getContext(), mSurvivingThreadId, false);
+        assertEquals(2, surviving.getRecipients().size());
+
+        Conversation deleted = Conversation.get(getContext(), mDeletedThreadId, false);
+        for (Contact contact : deleted.getRecipients()) {
+            contact.removeFromCache();
+        }
+        deleteThread(mDeletedThreadId);
+        Conversation.init(getContext());
+        Conversation.waitForSync(getContext());
+
+        assertSame(surviving, Conversation.get(getContext(), mSurvivingThreadId, false));
+
+        // The shared contact was made again when the cache was filled, and the surviving
+        // thread must have picked that one up.
+        Contact shared = Contact.get(SHARED_NUMBER, false);
+        boolean found = false;
+        for (Contact contact : surviving.getRecipients()) {
+            if (contact == shared) {
+                found = true;
+            }
+        }
+        assertTrue("surviving thread kept the dropped contact", found);
+
+        ContactList recipients = ContactList.getByNumbers(
+                SHARED_NUMBER + ";" + OTHER_NUMBER, false, false);
+        assertSame(surviving, Conversation.get(getContext(), recipients, false));
+    }
+
+    private long createThread(String... numbers) {
+        Set<String> recipients = new HashSet<String>();
+        for (String number : numbers) {
+            recipients.add(number);
+        }
+        long threadId = Threads.getOrCreateThreadId(getContext(), recipients);
+
+        // A thread without messages is removed by the provider as soon as any other
+        // thread is deleted.
+        ContentValues values = new ContentValues();
+        values.put(Sms.ADDRESS, numbers[0]);
+        values.put(Sms.BODY, "ConversationDeleteTest");
+        values.put(Sms.THREAD_ID, threadId);
+        values.put(Sms.READ, 1);
+        assertNotNull(getContext().getContentResolver().insert(Sms.Inbox.CONTENT_URI, values));
+        return threadId;
+    }
+
+    private void deleteThread(long threadId) {
+        getContext().getContentResolver().delete(
+                ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), null, null);
+    }
+}
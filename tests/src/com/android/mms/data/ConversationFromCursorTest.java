@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.data;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.provider.Telephony.Threads;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures Conversation.from over a conversation list cursor of 10,000 threads, first
+ * while the conversations are added to the cache and then while they are updated in
+ * place, the way ConversationListAdapter binds them. Also measures Conversation.get by
+ * thread ID with all of them cached.
+ * <p>
+ * The threads only exist in the cursor. Their recipients are subsets of the recipients
+ * of one group thread the test creates, so that every row has a different recipient set
+ * made of real canonical addresses.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.data.ConversationFromCursorTest mms
+ */
+@LargeTest
+public class ConversationFromCursorTest extends AndroidTestCase {
+    private static final String TAG = "ConversationFromCursorTest";
+
+    private static final int ROW_COUNT = 10000;
+    // 2^14 subsets is enough for ROW_COUNT different recipient sets.
+    private static final int RECIPIENT_COUNT = 14;
+    // Far above the IDs of the real threads.
+    private static final long FIRST_THREAD_ID = 1000000;
+
+    private long mGroupThreadId;
+    private MatrixCursor mCursor;
+    private Conversation[] mConversations;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Set<String> numbers = new HashSet<String>();
+        for (int i = 0; i < RECIPIENT_COUNT; i++) {
+            numbers.add("+1650555" + (1000 + i));
+        }
+        mGroupThreadId = Threads.getOrCreateThreadId(getContext(), numbers);
+        String[] recipientIds = getRecipientIds(mGroupThreadId);
+        assertEquals(RECIPIENT_COUNT, recipientIds.length);
+
+        mCursor = new MatrixCursor(Conversation.ALL_THREADS_PROJECTION, ROW_COUNT);
+        long now = System.currentTimeMillis();
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            ids.setLength(0);
+            int subset = i + 1;
+            for (int j = 0; j < RECIPIENT_COUNT; j++) {
+                if ((subset & (1 << j)) != 0) {
+                    if (ids.length() > 0) {
+                        ids.append(' ');
+                    }
+                    ids.append(recipientIds[j]);
+                }
+            }
+            mCursor.addRow(new Object[] {
+                FIRST_THREAD_ID + i, now - i * 60000L, 1, ids.toString(),
+                "Message " + i, 0, 1, 0, 0
+            });
+        }
+        mConversations = new Conversation[ROW_COUNT];
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Conversation conv : mConversations) {
+            if (conv != null) {
+                conv.clearThreadId();
+            }
+        }
+        mCursor.close();
+        getContext().getContentResolver().delete(
+                ContentUris.withAppendedId(Threads.CONTENT_URI, mGroupThreadId), null, null);
+        super.tearDown();
+    }
+
+    public void testFromCursor() {
+        long cold = fromAllRows(true);
+        long warm = fromAllRows(false);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            assertSame(mConversations[i],
+                    Conversation.get(getContext(), FIRST_THREAD_ID + i, false));
+        }
+        long get = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, ROW_COUNT + " rows: from() adding " + cold + "ms, from() updating "
+                + warm + "ms, get(threadId) " + get + "ms");
+    }
+
+    // Returns the milliseconds taken by Conversation.from over all the rows.
+    private long fromAllRows(boolean first) {
+        long start = SystemClock.elapsedRealtime();
+        mCursor.moveToPosition(-1);
+        int i = 0;
+        while (mCursor.moveToNext()) {
+            Conversation conv = Conversation.from(getContext(), mCursor);
+            if (first) {
+                mConversations[i] = conv;
+            } else {
+                assertSame(mConversations[i], conv);
+            }
+            i++;
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private String[] getRecipientIds(long threadId) {
+        Cursor c = getContext().getContentResolver().query(Conversation.sAllThreadsUri,
+                Conversation.ALL_THREADS_PROJECTION, Threads._ID + "=" + threadId, null, null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(c.getColumnIndexOrThrow(Threads.RECIPIENT_IDS)).split(" ");
+        } finally {
+            c.close();
+        }
+    }
+}
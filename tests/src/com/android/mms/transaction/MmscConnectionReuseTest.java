@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.mms.util.SendingProgressTokenManager;
+
+/**
+ * Measures the latency of MMS transactions against a local mock MMSC, with the HTTP
+ * client and its connections kept between transactions and with a new client for each
+ * transaction, the way HttpUtils used to work. The mock MMSC waits before serving the
+ * first request of every connection, to stand for the TCP and proxy setup of a real
+ * MMSC.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.transaction.MmscConnectionReuseTest mms
+ */
+@LargeTest
+public class MmscConnectionReuseTest extends AndroidTestCase {
+    private static final String TAG = "MmscConnectionReuseTest";
+
+    private static final int TRANSACTION_COUNT = 20;
+    private static final int CONNECTION_SETUP_MILLIS = 100;
+    private static final int PDU_SIZE = 4 * 1024;
+
+    private MockMmsc mMmsc;
+    private String mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new MockMmsc(CONNECTION_SETUP_MILLIS, 0, PDU_SIZE);
+        mMmsc.start();
+        mUrl = "http://127.0.0.1:" + mMmsc.getPort() + "/mms";
+        HttpUtils.closeHttpClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        HttpUtils.closeHttpClient();
+        mMmsc.close();
+        super.tearDown();
+    }
+
+    public void testConnectionReuse() throws Exception {
+        byte[] pdu = new byte[PDU_SIZE];
+
+        int connections = mMmsc.getConnectionCount();
+        long reused = runTransactions(pdu, true);
+        int reusedConnections = mMmsc.getConnectionCount() - connections;
+
+        connections = mMmsc.getConnectionCount();
+        long unreused = runTransactions(pdu, false);
+        int unreusedConnections = mMmsc.getConnectionCount() - connections;
+
+        Log.i(TAG, String.format(Locale.US, "%d transactions: %.1fms each over %d "
+                + "connections with reuse, %.1fms each over %d connections without",
+                TRANSACTION_COUNT, (double) reused / TRANSACTION_COUNT, reusedConnections,
+                (double) unreused / TRANSACTION_COUNT, unreusedConnections));
+        assertEquals(1, reusedConnections);
+        assertEquals(TRANSACTION_COUNT, unreusedConnections);
+        assertTrue("reuse isn't faster: " + reused + "ms vs " + unreused + "ms",
+                reused < unreused);
+    }
+
+    // Alternates retrievals and sends, returns the milliseconds they took together.
+    private long runTransactions(byte[] pdu, boolean reuse) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < TRANSACTION_COUNT; i++) {
+            byte[] response;
+            if (i % 2 == 0) {
+                response = HttpUtils.httpConnection(getContext(),
+                        SendingProgressTokenManager.NO_TOKEN, mUrl, null,
+                        HttpUtils.HTTP_GET_METHOD, false, null, 0);
+            } else {
+                response = HttpUtils.httpConnection(getContext(),
+                        SendingProgressTokenManager.NO_TOKEN, mUrl, pdu,
+                        HttpUtils.HTTP_POST_METHOD, false, null, 0);
+            }
+            assertNotNull(response);
+            assertEquals(PDU_SIZE, response.length);
+            if (!reuse) {
+                HttpUtils.closeHttpClient();
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+/**
+ * A minimal HTTP/1.1 server with keep-alive that stands for an MMSC in tests. It
+ * answers every request with a PDU of a fixed size, on a port of the loopback
+ * interface.
+ * <p>
+ * It waits before serving the first request of every connection, for the TCP and
+ * proxy setup of a real MMSC, and before every response, for the MMSC's own processing
+ * time. It can also answer Range requests, and drop connections in the middle of the
+ * body like a failing data connection.
+ */
+class MockMmsc extends Thread {
+    private final ServerSocket mServerSocket;
+    private final int mSetupMillis;
+    private final int mResponseMillis;
+    private final byte[] mPdu;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mPartialResponseCount = new AtomicInteger();
+    private final AtomicInteger mBodyBytesSent = new AtomicInteger();
+    private final AtomicInteger mDisconnects = new AtomicInteger();
+    private volatile boolean mRangesSupported;
+    private volatile String mEtag;
+    private volatile int mDisconnectAfter;
+
+    MockMmsc(int setupMillis, int responseMillis, int pduSize) throws IOException {
+        super("MockMmsc");
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mSetupMillis = setupMillis;
+        mResponseMillis = responseMillis;
+        mPdu = new byte[pduSize];
+        for (int i = 0; i < pduSize; i++) {
+            mPdu[i] = (byte) (0x8c + i * 31);
+        }
+    }
+
+    byte[] getPdu() {
+        return mPdu;
+    }
+
+    /**
+     * Answers the requests with a Range header with the rest of the PDU, if their
+     * If-Range, if any, matches the ETag, and says so with Accept-Ranges.
+     */
+    void setRangesSupported(boolean supported) {
+        mRangesSupported = supported;
+    }
+
+    /**
+     * Sets the ETag sent with the PDU, or none if null.
+     */
+    void setEtag(String etag) {
+        mEtag = etag;
+    }
+
+    /**
+     * Closes the connection after sending the given number of bytes of the body, for
+     * the next given number of responses.
+     */
+    void disconnectAfter(int bodyBytes, int responses) {
+        mDisconnectAfter = bodyBytes;
+        mDisconnects.set(responses);
+    }
+
+    int getPartialResponseCount() {
+        return mPartialResponseCount.get();
+    }
+
+    int getBodyBytesSent() {
+        return mBodyBytesSent.get();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "MockMmsc connection").start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            SystemClock.sleep(mSetupMillis);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                HashMap<String, String> headers = readHeaders(in);
+                if (headers == null) {
+                    break;
+                }
+                String contentLength = headers.get("content-length");
+                int length = contentLength != null ? Integer.parseInt(contentLength) : 0;
+                for (int i = 0; i < length; i++) {
+                    if (in.read() < 0) {
+                        return;
+                    }
+                }
+                mRequestCount.incrementAndGet();
+                SystemClock.sleep(mResponseMillis);
+                if (!respond(out, headers)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    // Sends the PDU or the requested range of it. Returns false if the connection was
+    // dropped.
+    private boolean respond(OutputStream out, HashMap<String, String> headers)
+            throws IOException {
+        String etag = mEtag;
+        int start = 0;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (mRangesSupported && range != null && range.startsWith("bytes=")
+                && range.endsWith("-") && (ifRange == null || ifRange.equals(etag))) {
+            start = Integer.parseInt(range.substring(6, range.length() - 1));
+        }
+        StringBuilder response = new StringBuilder();
+        if (start >= mPdu.length) {
+            response.append("HTTP/1.1 416 Requested Range Not Satisfiable\r\n")
+                    .append("Content-Range: bytes */").append(mPdu.length).append("\r\n")
+                    .append("Content-Length: 0\r\n\r\n");
+            out.write(response.toString().getBytes("US-ASCII"));
+            out.flush();
+            return true;
+        }
+        if (start > 0) {
+            mPartialResponseCount.incrementAndGet();
+            response.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(start).append('-')
+                    .append(mPdu.length - 1).append('/').append(mPdu.length).append("\r\n");
+        } else {
+            response.append("HTTP/1.1 200 OK\r\n");
+        }
+        if (mRangesSupported) {
+            response.append("Accept-Ranges: bytes\r\n");
+        }
+        if (etag != null) {
+            response.append("ETag: ").append(etag).append("\r\n");
+        }
+        response.append("Content-Type: application/vnd.wap.mms-message\r\n")
+                .append("Content-Length: ").append(mPdu.length - start).append("\r\n")
+                .append("\r\n");
+        out.write(response.toString().getBytes("US-ASCII"));
+
+        int end = mPdu.length;
+        boolean disconnect = mDisconnects.getAndDecrement() > 0;
+        if (disconnect) {
+            end = Math.min(end, start + mDisconnectAfter);
+        } else {
+            mDisconnects.set(0);
+        }
+        out.write(mPdu, start, end - start);
+        out.flush();
+        mBodyBytesSent.addAndGet(end - start);
+        return !disconnect;
+    }
+
+    // Reads the request line and headers, returns the headers by their lower case name or
+    // null at the end of the stream.
+    private static HashMap<String, String> readHeaders(InputStream in) throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        boolean first = true;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                return null;
+            }
+            if (c == '\r') {
+                continue;
+            }
+            if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+            if (line.length() == 0) {
+                if (first) {
+                    // Stray line break between requests.
+                    continue;
+                }
+                return headers;
+            }
+            int colon = line.indexOf(":");
+            if (!first && colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+            first = false;
+            line.setLength(0);
+        }
+    }
+}
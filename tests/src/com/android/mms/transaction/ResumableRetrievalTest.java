@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Retrieves a large message from a local mock MMSC that drops the connection in the
+ * middle of the body, the way a weak data connection does, and checks that each retry
+ * only retrieves the rest of the message, or all of it again when the MMSC doesn't
+ * honor the range or the message is small enough to be read in memory.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.transaction.ResumableRetrievalTest mms
+ */
+@LargeTest
+public class ResumableRetrievalTest extends AndroidTestCase {
+    private static final String TAG = "ResumableRetrievalTest";
+
+    private static final int PDU_SIZE = 600 * 1024;
+    private static final int DISCONNECT_AFTER = 200 * 1024;
+    private static final int DISCONNECTS = 2;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int SMALL_PDU_SIZE = 64 * 1024;
+
+    private MockMmsc mMmsc;
+    private String mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new MockMmsc(0, 0, PDU_SIZE);
+        mMmsc.start();
+        mUrl = "http://127.0.0.1:" + mMmsc.getPort() + "/mms?id=" + getName();
+        PartialDownload.open(getContext(), mUrl).discard();
+        HttpUtils.closeHttpClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PartialDownload.open(getContext(), mUrl).discard();
+        HttpUtils.closeHttpClient();
+        mMmsc.close();
+        super.tearDown();
+    }
+
+    public void testResumeWithEtag() throws Exception {
+        mMmsc.setRangesSupported(true);
+        mMmsc.setEtag("\"v1\"");
+        mMmsc.disconnectAfter(DISCONNECT_AFTER, DISCONNECTS);
+
+        assertEquals(DISCONNECTS + 1, retrieve());
+        assertEquals(DISCONNECTS, mMmsc.getPartialResponseCount());
+        assertEquals(PDU_SIZE, mMmsc.getBodyBytesSent());
+    }
+
+    public void testResumeWithoutValidator() throws Exception {
+        // Resumed on the total length alone.
+        mMmsc.setRangesSupported(true);
+        mMmsc.disconnectAfter(DISCONNECT_AFTER, DISCONNECTS);
+
+        assertEquals(DISCONNECTS + 1, retrieve());
+        assertEquals(DISCONNECTS, mMmsc.getPartialResponseCount());
+        assertEquals(PDU_SIZE, mMmsc.getBodyBytesSent());
+    }
+
+    public void testRangesNotSupported() throws Exception {
+        mMmsc.setEtag("\"v1\"");
+        mMmsc.disconnectAfter(DISCONNECT_AFTER, DISCONNECTS);
+
+        assertEquals(DISCONNECTS + 1, retrieve());
+        assertEquals(0, mMmsc.getPartialResponseCount());
+        assertEquals(DISCONNECTS * DISCONNECT_AFTER + PDU_SIZE, mMmsc.getBodyBytesSent());
+    }
+
+    public void testMessageChanged() throws Exception {
+        // The If-Range doesn't match anymore, the MMSC sends the whole message again.
+        mMmsc.setRangesSupported(true);
+        mMmsc.setEtag("\"v1\"");
+        mMmsc.disconnectAfter(DISCONNECT_AFTER, 1);
+        assertNull(attempt());
+        mMmsc.setEtag("\"v2\"");
+
+        assertEquals(1, retrieve());
+        assertEquals(0, mMmsc.getPartialResponseCount());
+        assertEquals(DISCONNECT_AFTER + PDU_SIZE, mMmsc.getBodyBytesSent());
+    }
+
+    public void testSmallBodyNotResumed() throws Exception {
+        // Read in memory and retrieved whole again, even though the MMSC takes ranges.
+        mMmsc.close();
+        mMmsc = new MockMmsc(0, 0, SMALL_PDU_SIZE);
+        mMmsc.start();
+        mUrl = "http://127.0.0.1:" + mMmsc.getPort() + "/mms?id=" + getName();
+        mMmsc.setRangesSupported(true);
+        mMmsc.setEtag("\"v1\"");
+        mMmsc.disconnectAfter(SMALL_PDU_SIZE / 2, 1);
+
+        assertEquals(2, retrieve());
+        assertEquals(0, mMmsc.getPartialResponseCount());
+        assertEquals(SMALL_PDU_SIZE / 2 + SMALL_PDU_SIZE, mMmsc.getBodyBytesSent());
+    }
+
+    // Retries like RetryScheduler until the message is retrieved, checks it and returns
+    // the number of attempts.
+    private int retrieve() throws Exception {
+        for (int attempts = 1; attempts <= MAX_ATTEMPTS; attempts++) {
+            byte[] pdu = attempt();
+            if (pdu != null) {
+                assertTrue("corrupted PDU", Arrays.equals(mMmsc.getPdu(), pdu));
+                Log.i(TAG, getName() + ": " + pdu.length + " bytes retrieved in " + attempts
+                        + " attempts, " + mMmsc.getBodyBytesSent() + " bytes sent");
+                return attempts;
+            }
+        }
+        fail("not retrieved in " + MAX_ATTEMPTS + " attempts");
+        return 0;
+    }
+
+    // Returns the PDU, or null if the attempt failed.
+    private byte[] attempt() {
+        try {
+            return HttpUtils.httpGet(getContext(), mUrl,
+                    PartialDownload.open(getContext(), mUrl), false, null, 0);
+        } catch (IOException e) {
+            Log.i(TAG, "Retrieval failed: " + e.getMessage());
+            return null;
+        }
+    }
+}
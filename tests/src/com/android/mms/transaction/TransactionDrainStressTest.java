@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.telephony.PhoneConstants;
+import com.android.mms.util.SendingProgressTokenManager;
+
+/**
+ * Measures how long it takes TransactionService to drain N requests queued while MMS
+ * connectivity comes up, with one transaction at a time and with several talking to a
+ * local mock MMSC at once.
+ * <p>
+ * Every request is sent to the service twice in one go, and a third time once they are
+ * waiting for connectivity, to check that the service
+ * merges the queued requests, drops the duplicates of pending transactions and fetches
+ * each message once.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.transaction.TransactionDrainStressTest mms
+ */
+@LargeTest
+public class TransactionDrainStressTest extends AndroidTestCase {
+    private static final String TAG = "TransactionDrainStressTest";
+
+    private static final int MESSAGE_COUNT = 30;
+    private static final int PARALLEL_LIMIT = 4;
+    private static final int CONNECTION_SETUP_MILLIS = 50;
+    private static final int RESPONSE_MILLIS = 150;
+    private static final int PDU_SIZE = 16 * 1024;
+    private static final long DRAIN_TIMEOUT_SECONDS = 120;
+
+    private MockMmsc mMmsc;
+    private TransactionSettings mSettings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new MockMmsc(CONNECTION_SETUP_MILLIS, RESPONSE_MILLIS, PDU_SIZE);
+        mMmsc.start();
+        mSettings = new TransactionSettings(
+                "http://127.0.0.1:" + mMmsc.getPort() + "/mms", null, -1);
+        HttpUtils.closeHttpClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        HttpUtils.closeHttpClient();
+        mMmsc.close();
+        super.tearDown();
+    }
+
+    public void testDrainQueuedRequests() throws Exception {
+        long serial = drain(1);
+        long parallel = drain(PARALLEL_LIMIT);
+        Log.i(TAG, MESSAGE_COUNT + " queued requests drained in " + serial
+                + "ms one at a time, " + parallel + "ms " + PARALLEL_LIMIT + " at a time");
+        assertTrue("parallel drain isn't faster: " + parallel + "ms vs " + serial + "ms",
+                parallel < serial);
+    }
+
+    // Returns the milliseconds it took the service to fetch all the queued messages.
+    private long drain(int maxConcurrentTransactions) throws Exception {
+        HttpUtils.closeHttpClient();
+        int requests = mMmsc.getRequestCount();
+        final DrainService service = createService(maxConcurrentTransactions);
+        try {
+            // Queued while waiting for MMS connectivity. The second request for each
+            // message comes in before the service thread handled the first one.
+            ArrayList<TransactionBundle> twice = new ArrayList<TransactionBundle>();
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < MESSAGE_COUNT; i++) {
+                    twice.add(newRequest(i));
+                }
+            }
+            service.requestTransactions(1, twice);
+            assertTrue("timed out", service.awaitCreated(MESSAGE_COUNT));
+            assertEquals(MESSAGE_COUNT, service.getCreatedCount());
+
+            // The third one comes in while the first is waiting for connectivity.
+            ArrayList<TransactionBundle> again = new ArrayList<TransactionBundle>();
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                again.add(newRequest(i));
+            }
+            service.requestTransactions(2, again);
+            assertTrue("timed out", service.awaitCreated(2 * MESSAGE_COUNT));
+
+            // Connectivity is up.
+            long start = SystemClock.elapsedRealtime();
+            service.setConnected(true);
+            service.onMmsConnected(mSettings);
+            assertTrue("timed out",
+                    service.mDone.await(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            long elapsed = SystemClock.elapsedRealtime() - start;
+
+            for (FetchTransaction transaction : service.getCreated()) {
+                if (transaction.mProcessed) {
+                    assertEquals(TransactionState.SUCCESS, transaction.getState().getState());
+                }
+            }
+            assertEquals(MESSAGE_COUNT, service.mProcessedCount.get());
+            assertEquals(MESSAGE_COUNT, mMmsc.getRequestCount() - requests);
+            return elapsed;
+        } finally {
+            destroyService(service);
+        }
+    }
+
+    private static TransactionBundle newRequest(int i) {
+        // A read report, so that the service doesn't update the new message
+        // notification for messages that don't exist.
+        return new TransactionBundle(Transaction.READREC_TRANSACTION, "content://mms/" + i);
+    }
+
+    // Creates the service on the main thread, the way the framework does.
+    private DrainService createService(final int maxConcurrentTransactions)
+            throws InterruptedException {
+        final DrainService[] service = new DrainService[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                service[0] = new DrainService(getContext(), maxConcurrentTransactions,
+                        mSettings);
+                service[0].onCreate();
+            }
+        });
+        return service[0];
+    }
+
+    private void destroyService(final DrainService service) throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                service.onDestroy();
+            }
+        });
+    }
+
+    private static void runOnMainThread(final Runnable r) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        done.await();
+    }
+
+    /**
+     * A TransactionService whose transactions fetch from the mock MMSC, and whose MMS
+     * connectivity is only pretended.
+     */
+    private static class DrainService extends TransactionService {
+        private final TransactionSettings mSettings;
+        private final ArrayList<FetchTransaction> mCreated = new ArrayList<FetchTransaction>();
+        private volatile boolean mConnected;
+        // The looper of the service thread, once it created a transaction.
+        private volatile Looper mServiceLooper;
+        final AtomicInteger mProcessedCount = new AtomicInteger();
+        final CountDownLatch mDone = new CountDownLatch(MESSAGE_COUNT);
+
+        DrainService(Context context, int maxConcurrentTransactions,
+                TransactionSettings settings) {
+            super(maxConcurrentTransactions);
+            attachBaseContext(context);
+            mSettings = settings;
+        }
+
+        void setConnected(boolean connected) {
+            mConnected = connected;
+        }
+
+        @Override
+        Transaction createTransaction(int serviceId, TransactionSettings transactionSettings,
+                TransactionBundle args) {
+            mServiceLooper = Looper.myLooper();
+            FetchTransaction transaction = new FetchTransaction(this, serviceId, mSettings,
+                    args.getUri());
+            synchronized (mCreated) {
+                mCreated.add(transaction);
+                mCreated.notifyAll();
+            }
+            return transaction;
+        }
+
+        // Waits until the service thread created count transactions.
+        boolean awaitCreated(int count) throws InterruptedException {
+            long deadline = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT_SECONDS * 1000;
+            synchronized (mCreated) {
+                while (mCreated.size() < count) {
+                    long wait = deadline - SystemClock.elapsedRealtime();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    mCreated.wait(wait);
+                }
+            }
+            // Let the service thread finish handling the last one, too.
+            final CountDownLatch handled = new CountDownLatch(1);
+            new Handler(mServiceLooper).post(new Runnable() {
+                @Override
+                public void run() {
+                    handled.countDown();
+                }
+            });
+            return handled.await(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        int getCreatedCount() {
+            synchronized (mCreated) {
+                return mCreated.size();
+            }
+        }
+
+        ArrayList<FetchTransaction> getCreated() {
+            synchronized (mCreated) {
+                return new ArrayList<FetchTransaction>(mCreated);
+            }
+        }
+
+        @Override
+        protected int beginMmsConnectivity() {
+            return mConnected ? PhoneConstants.APN_ALREADY_ACTIVE
+                    : PhoneConstants.APN_REQUEST_STARTED;
+        }
+
+        @Override
+        protected void endMmsConnectivity() {
+        }
+
+        @Override
+        public void update(Observable observable) {
+            super.update(observable);
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Stands for a RetrieveTransaction: gets its message from the MMSC, without a route
+     * to request from the connectivity service or a PDU to store.
+     */
+    private static class FetchTransaction extends Transaction implements Runnable {
+        private final DrainService mService;
+        volatile boolean mProcessed;
+
+        FetchTransaction(DrainService service, int serviceId, TransactionSettings settings,
+                String uri) {
+            super(service, serviceId, settings);
+            mService = service;
+            mId = uri;
+        }
+
+        @Override
+        public void process() {
+            mProcessed = true;
+            mService.mProcessedCount.incrementAndGet();
+            execute(this, "FetchTransaction");
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] pdu = HttpUtils.httpConnection(mContext,
+                        SendingProgressTokenManager.NO_TOKEN,
+                        mTransactionSettings.getMmscUrl() + "?id=" + mId, null,
+                        HttpUtils.HTTP_GET_METHOD, false, null, 0);
+                mTransactionState.setState(pdu != null && pdu.length == PDU_SIZE
+                        ? TransactionState.SUCCESS : TransactionState.FAILED);
+            } catch (IOException e) {
+                Log.e(TAG, "Fetch failed", e);
+                mTransactionState.setState(TransactionState.FAILED);
+            } finally {
+                notifyObservers();
+            }
+        }
+
+        @Override
+        public int getType() {
+            return READREC_TRANSACTION;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.mms.ui;
 
 import android.content.Intent;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.test.ActivityInstrumentationTestCase2;
 import android.test.suitebuilder.annotation.LargeTest;
@@ -30,11 +31,16 @@ import android.view.ViewStub;
 import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 
+import com.android.mms.MmsApp;
 import com.android.mms.R;
+import com.android.mms.data.Conversation;
 import com.android.mms.ui.ComposeMessageActivity;
 import com.android.mms.ui.RecipientsEditor;
+import com.android.mms.util.PduLoaderManager;
+import com.android.mms.util.ThumbnailManager;
 
 import java.io.FileInputStream;
 import java.util.ArrayList;
@@ -433,4 +439,69 @@ extends ActivityInstrumentationTestCase2<ComposeMessageActivity> {
         }
         assertTrue(true);
     }
+
+    /**
+     * Fling through the longest thread and log how long the pdu and thumbnail loads
+     * for the rows coming into view took. Run testSendManyMessages first.
+     */
+    @LargeTest
+    public void testVisibleRowLoadLatency() throws Throwable {
+        final long threadId = findLongestThread();
+        if (threadId <= 0) {
+            Log.e(TAG, "no thread to scroll through, run testSendManyMessages first");
+            return;
+        }
+        final ComposeMessageActivity a = getActivity();
+        runTestOnUiThread(new Runnable() {
+            public void run() {
+                a.setIntent(ComposeMessageActivity.createIntent(a, threadId));
+                a.initialize(null, 0);
+                a.loadMessageContent();
+            }
+        });
+        Thread.sleep(2000);     // wait for the message list query
+
+        PduLoaderManager pduLoader = MmsApp.getApplication().getPduLoaderManager();
+        ThumbnailManager thumbnailLoader = MmsApp.getApplication().getThumbnailManager();
+        long pduTasks = pduLoader.getCompletedTaskCount();
+        long pduLatency = pduLoader.getTotalLatencyMillis();
+        long thumbnailTasks = thumbnailLoader.getCompletedTaskCount();
+        long thumbnailLatency = thumbnailLoader.getTotalLatencyMillis();
+
+        // Jump a screenful at a time from the bottom to the top, like a fling.
+        final ListView list = (ListView) a.findViewById(R.id.history);
+        final int page = Math.max(1, list.getChildCount());
+        for (int position = list.getCount() - 1; position >= 0; position -= page) {
+            final int selection = position;
+            runTestOnUiThread(new Runnable() {
+                public void run() {
+                    list.setSelection(selection);
+                }
+            });
+            Thread.sleep(50);
+        }
+        Thread.sleep(5000);     // let the loads for the rows in view finish
+
+        pduTasks = pduLoader.getCompletedTaskCount() - pduTasks;
+        pduLatency = pduLoader.getTotalLatencyMillis() - pduLatency;
+        thumbnailTasks = thumbnailLoader.getCompletedTaskCount() - thumbnailTasks;
+        thumbnailLatency = thumbnailLoader.getTotalLatencyMillis() - thumbnailLatency;
+        Log.v(TAG, "pdu loads: " + pduTasks + " avg latency: "
+                + (pduTasks > 0 ? pduLatency / pduTasks : 0) + "ms");
+        Log.v(TAG, "thumbnail loads: " + thumbnailTasks + " avg latency: "
+                + (thumbnailTasks > 0 ? thumbnailLatency / thumbnailTasks : 0) + "ms");
+    }
+
+    private long findLongestThread() {
+        Cursor c = mActivity.getContentResolver().query(Conversation.sAllThreadsUri,
+                new String[] { "_id", "message_count" }, null, null, "message_count DESC");
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Stress test for concurrent use of BlobCache.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.util.BlobCacheStressTest mms
+ */
+@LargeTest
+public class BlobCacheStressTest extends AndroidTestCase {
+    private static final String TAG = "BlobCacheStressTest";
+
+    private static final int MAX_ENTRIES = 500;
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final int KEY_COUNT = 200;
+    private static final int BLOB_SIZE = 8 * 1024;
+    private static final int LOOKUPS_PER_THREAD = 2000;
+    // Multi-threaded throughput may fall this far below single-threaded throughput
+    // before the test fails, to absorb scheduling noise on a loaded device.
+    private static final double SCALING_TOLERANCE = 0.8;
+
+    private String mPath;
+    private BlobCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPath = getContext().getCacheDir().getAbsolutePath() + "/" + TAG;
+        BlobCache.deleteFiles(mPath);
+        mCache = new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, true);
+        for (int key = 0; key < KEY_COUNT; key++) {
+            mCache.insert(key, makeBlob(key));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        BlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    /**
+     * Lookups on several threads must return intact blobs while another thread keeps
+     * inserting and flipping regions.
+     */
+    public void testLookupsWhileInserting() throws Exception {
+        final AtomicInteger corrupted = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                try {
+                    for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                        int key = random.nextInt(KEY_COUNT * 2);
+                        mCache.insert(key, makeBlob(key));
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "insert failed", e);
+                    failures.incrementAndGet();
+                }
+            }
+        };
+        writer.start();
+        runLookups(4, corrupted, failures);
+        writer.join();
+
+        assertEquals("lookup threw", 0, failures.get());
+        assertEquals("lookup returned a corrupted blob", 0, corrupted.get());
+    }
+
+    /**
+     * Lookup throughput should grow when threads are added, since lookups no longer
+     * serialize on the cache.
+     */
+    public void testLookupThroughputScales() throws Exception {
+        AtomicInteger corrupted = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Warm up so that neither measurement pays for the first lookups.
+        runLookups(1, corrupted, failures);
+        double single = runLookups(1, corrupted, failures);
+        double multi = runLookups(Math.max(2, cores), corrupted, failures);
+        Log.i(TAG, "lookups/s with 1 thread: " + single + ", with " + Math.max(2, cores)
+                + " threads: " + multi);
+
+        assertEquals(0, failures.get());
+        assertEquals(0, corrupted.get());
+        if (cores > 1) {
+            assertTrue("lookups did not scale: " + single + " vs " + multi,
+                    multi >= single * SCALING_TOLERANCE);
+        }
+    }
+
+    // Runs LOOKUPS_PER_THREAD lookups on each of the given number of threads and
+    // returns the completed lookups per second of wall-clock time.
+    private double runLookups(int threadCount, final AtomicInteger corrupted,
+            final AtomicInteger failures) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicLong completed = new AtomicLong();
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+                    try {
+                        start.await();
+                        for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                            req.key = random.nextInt(KEY_COUNT);
+                            if (mCache.lookup(req) && !isIntact(req)) {
+                                corrupted.incrementAndGet();
+                            }
+                            completed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "lookup failed", e);
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        return completed.get() / seconds;
+    }
+
+    private static byte[] makeBlob(int key) {
+        byte[] blob = new byte[BLOB_SIZE];
+        Arrays.fill(blob, (byte) key);
+        return blob;
+    }
+
+    private static boolean isIntact(BlobCache.LookupRequest req) {
+        if (req.length != BLOB_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < req.length; i++) {
+            if (req.buffer[i] != (byte) req.key) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.mms.exif.ExifInterface;
+
+/**
+ * Compares the heap allocated and the time taken per thumbnail by ThumbnailDecoder
+ * with the full decode and resize it replaced, on a camera sized picture. Also checks
+ * that a thumbnail in the EXIF data is used when it's as big as the view draws it, and
+ * the picture is decoded when it isn't.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.util.ThumbnailDecoderTest mms
+ */
+@LargeTest
+public class ThumbnailDecoderTest extends AndroidTestCase {
+    private static final String TAG = "ThumbnailDecoderTest";
+
+    // An 8MP camera picture.
+    private static final int PICTURE_WIDTH = 3264;
+    private static final int PICTURE_HEIGHT = 2448;
+    private static final int TARGET_SIZE = ThumbnailManager.THUMBNAIL_TARGET_SIZE;
+    private static final int ITERATIONS = 5;
+    // What cameras write, in a color the gradient of the picture doesn't have.
+    private static final int EXIF_THUMBNAIL_WIDTH = 320;
+    private static final int EXIF_THUMBNAIL_HEIGHT = 240;
+    private static final int EXIF_THUMBNAIL_COLOR = 0xffff0000;
+
+    private File mPicture;
+    private Uri mUri;
+    private File mExifPicture;
+    private Uri mExifUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPicture = new File(getContext().getCacheDir(), TAG + ".jpg");
+        Bitmap bitmap = Bitmap.createBitmap(PICTURE_WIDTH, PICTURE_HEIGHT,
+                Bitmap.Config.RGB_565);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, PICTURE_WIDTH, PICTURE_HEIGHT,
+                0xff203080, 0xffe0c040, Shader.TileMode.MIRROR));
+        new Canvas(bitmap).drawPaint(paint);
+        FileOutputStream out = new FileOutputStream(mPicture);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        } finally {
+            out.close();
+        }
+        mUri = Uri.fromFile(mPicture);
+
+        // The same picture, the way a camera writes it: with a thumbnail in the EXIF data.
+        mExifPicture = new File(getContext().getCacheDir(), TAG + "-exif.jpg");
+        Bitmap thumbnail = Bitmap.createBitmap(EXIF_THUMBNAIL_WIDTH, EXIF_THUMBNAIL_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        thumbnail.eraseColor(EXIF_THUMBNAIL_COLOR);
+        ExifInterface exif = new ExifInterface();
+        assertTrue(exif.setCompressedThumbnail(thumbnail));
+        exif.writeExif(bitmap, mExifPicture.getPath());
+        thumbnail.recycle();
+        bitmap.recycle();
+        mExifUri = Uri.fromFile(mExifPicture);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPicture.delete();
+        mExifPicture.delete();
+        super.tearDown();
+    }
+
+    public void testDecodeCostPerThumbnail() throws Exception {
+        long[] legacy = measure(true);
+        long[] current = measure(false);
+        Log.i(TAG, "full decode and resize: " + legacy[0] / 1024 + "KB " + legacy[1] + "ms"
+                + " per thumbnail, ThumbnailDecoder: " + current[0] / 1024 + "KB "
+                + current[1] + "ms per thumbnail");
+        assertTrue("ThumbnailDecoder allocated more: " + current[0] + " vs " + legacy[0],
+                current[0] < legacy[0]);
+    }
+
+    public void testDecodesToTargetSize() {
+        Bitmap thumbnail = ThumbnailDecoder.decode(getContext(), mUri, TARGET_SIZE);
+        assertNotNull(thumbnail);
+        assertEquals(TARGET_SIZE, Math.max(thumbnail.getWidth(), thumbnail.getHeight()), 1);
+    }
+
+    public void testUsesExifThumbnailAsBigAsDrawn() {
+        Bitmap thumbnail = ThumbnailDecoder.decode(getContext(), mExifUri, TARGET_SIZE,
+                EXIF_THUMBNAIL_WIDTH, null);
+        assertNotNull(thumbnail);
+        assertEquals(EXIF_THUMBNAIL_WIDTH, thumbnail.getWidth());
+        assertEquals(EXIF_THUMBNAIL_HEIGHT, thumbnail.getHeight());
+        assertTrue(isExifThumbnailColor(thumbnail));
+    }
+
+    public void testDecodesPictureWhenExifThumbnailTooSmall() {
+        Bitmap thumbnail = ThumbnailDecoder.decode(getContext(), mExifUri, TARGET_SIZE,
+                EXIF_THUMBNAIL_WIDTH + 1, null);
+        assertNotNull(thumbnail);
+        assertEquals(TARGET_SIZE, Math.max(thumbnail.getWidth(), thumbnail.getHeight()), 1);
+        assertFalse(isExifThumbnailColor(thumbnail));
+    }
+
+    // Returns true if the middle of the bitmap has the color of the EXIF thumbnail, give
+    // or take the JPEG compression.
+    private static boolean isExifThumbnailColor(Bitmap bitmap) {
+        int pixel = bitmap.getPixel(bitmap.getWidth() / 2, bitmap.getHeight() / 2);
+        return Color.red(pixel) > 0xe0 && Color.green(pixel) < 0x20
+                && Color.blue(pixel) < 0x20;
+    }
+
+    // Returns the bytes allocated and the milliseconds taken per thumbnail.
+    private long[] measure(boolean legacy) throws Exception {
+        long allocated = 0;
+        long elapsed = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            System.gc();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = SystemClock.elapsedRealtime();
+            Bitmap thumbnail = legacy ? decodeFullAndResize()
+                    : ThumbnailDecoder.decode(getContext(), mUri, TARGET_SIZE);
+            elapsed += SystemClock.elapsedRealtime() - start;
+            Debug.stopAllocCounting();
+            allocated += Debug.getThreadAllocSize();
+            assertNotNull(thumbnail);
+            thumbnail.recycle();
+        }
+        return new long[] { allocated / ITERATIONS, elapsed / ITERATIONS };
+    }
+
+    // What ThumbnailManager did before: subsample to at least twice the target size,
+    // then draw into a bitmap of the target size.
+    private Bitmap decodeFullAndResize() throws Exception {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(options);
+        int initialSize = Math.max(options.outWidth / TARGET_SIZE,
+                options.outHeight / TARGET_SIZE);
+        options.inSampleSize = initialSize <= 1 ? 1 : initialSize <= 8
+                ? Integer.highestOneBit(initialSize) : initialSize / 8 * 8;
+        options.inJustDecodeBounds = false;
+        Bitmap decoded = decode(options);
+
+        float scale = Math.min((float) TARGET_SIZE / decoded.getWidth(),
+                (float) TARGET_SIZE / decoded.getHeight());
+        if (scale >= 1.0f) {
+            return decoded;
+        }
+        Bitmap target = Bitmap.createBitmap(Math.round(decoded.getWidth() * scale),
+                Math.round(decoded.getHeight() * scale), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+        canvas.scale(scale, scale);
+        canvas.drawBitmap(decoded, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
+        decoded.recycle();
+        return target;
+    }
+
+    private Bitmap decode(BitmapFactory.Options options) throws Exception {
+        InputStream in = getContext().getContentResolver().openInputStream(mUri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}